@@ -39,7 +39,7 @@ import org.opennms.integration.api.v1.health.Response;
 import org.opennms.integration.api.v1.health.Status;
 import org.opennms.integration.api.v1.health.immutables.ImmutableResponse;
 import org.opennms.plugins.aci.client.ACIRestClient;
-import org.opennms.plugins.aci.client.ACIRestConfig;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
 import org.opennms.plugins.aci.config.SouthCluster;
 import org.opennms.plugins.aci.dao.southbound.SouthboundConfigDao;
 import org.slf4j.Logger;
@@ -52,8 +52,11 @@ public class AciHealthCheck implements HealthCheck {
 
     private final SouthboundConfigDao configDao;
 
-    public AciHealthCheck(SouthboundConfigDao configDao) {
+    private final ACIRestClientRegistry clientRegistry;
+
+    public AciHealthCheck(SouthboundConfigDao configDao, ACIRestClientRegistry clientRegistry) {
         this.configDao = configDao;
+        this.clientRegistry = clientRegistry;
     }
 
     @Override
@@ -69,10 +72,8 @@ public class AciHealthCheck implements HealthCheck {
         List<String> failureClusters = new ArrayList<>();
         int topCount = 0;
         for (SouthCluster cluster : clusters) {
-            ACIRestConfig config = new ACIRestConfig(cluster);
             try {
-                ACIRestClient client = ACIRestClient.newAciRest(config.getClusterName(), config.getAciUrl(),
-                        config.getUsername(), config.getPassword());
+                ACIRestClient client = clientRegistry.acquire(cluster.getClusterName());
                 JSONArray results = null;
                 try {
                     results = client.getClassInfo( "topSystem" );
@@ -84,6 +85,8 @@ public class AciHealthCheck implements HealthCheck {
                     }
                 } catch (Exception e) {
                     failureClusters.add(cluster.getClusterName());
+                } finally {
+                    clientRegistry.release(client);
                 }
             } catch (Exception e) {
                 return ImmutableResponse.newInstance(e);
@@ -44,6 +44,7 @@ import org.opennms.integration.api.v1.requisition.RequisitionProvider;
 import org.opennms.integration.api.v1.requisition.RequisitionRepository;
 import org.opennms.integration.api.v1.requisition.RequisitionRequest;
 import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
 import org.opennms.plugins.aci.config.SouthCluster;
 import org.opennms.plugins.aci.config.SouthElement;
 import org.opennms.plugins.aci.dao.southbound.SouthboundConfigDao;
@@ -72,9 +73,13 @@ public class AciRequisitionProvider implements RequisitionProvider {
 
     private final SouthboundConfigDao southboundConfigDao;
 
-    public AciRequisitionProvider(SouthboundConfigDao southboundConfigDao, RequisitionRepository requisitionRepository) {
+    private final ACIRestClientRegistry clientRegistry;
+
+    public AciRequisitionProvider(SouthboundConfigDao southboundConfigDao, RequisitionRepository requisitionRepository,
+                                  ACIRestClientRegistry clientRegistry) {
         this.southboundConfigDao = southboundConfigDao;
         this.requisitionRepository = requisitionRepository;
+        this.clientRegistry = clientRegistry;
     }
 
     @Override
@@ -125,7 +130,7 @@ public class AciRequisitionProvider implements RequisitionProvider {
 
         ACIRestClient client = null;
         try {
-            client = ACIRestClient.newAciRest(request.getForeignSource(), request.getApicUrl(), request.getUsername(),
+            client = clientRegistry.acquire(request.getForeignSource(), request.getApicUrl(), request.getUsername(),
                     request.getPassword());
         } catch (Exception e) {
             e.printStackTrace();
@@ -180,6 +185,8 @@ public class AciRequisitionProvider implements RequisitionProvider {
             results = client.getClassInfo( "topSystem" );
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            clientRegistry.release(client);
         }
         for (Object object : results) {
             JSONObject objectData = (JSONObject) object;
@@ -195,8 +202,13 @@ public class AciRequisitionProvider implements RequisitionProvider {
 
 
                 String dn = (String) attributes.get("dn");
-                String[] dnParts = dn.split("/");
-                dn = dnParts[0] + "_" + dnParts[1] + "_" + dnParts[2];
+                // Faults resolve their node with the same foreign id
+                String foreignId = ApicDnResolver.toForeignId(dn);
+                if (foreignId == null) {
+                    String[] dnParts = dn.split("/");
+                    foreignId = dnParts[0] + "_" + dnParts[1] + "_" + dnParts[2];
+                }
+                dn = foreignId;
 
                 String nodeId = (String) attributes.get("name");
 
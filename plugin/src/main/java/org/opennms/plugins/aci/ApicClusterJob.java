@@ -28,18 +28,20 @@
 
 package org.opennms.plugins.aci;
 
+import java.io.IOException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 import org.opennms.integration.api.v1.dao.NodeDao;
 import org.opennms.integration.api.v1.events.EventForwarder;
 import org.opennms.integration.api.v1.model.InMemoryEvent;
 import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
+import org.opennms.plugins.aci.client.ApicCheckpointStore;
+import org.opennms.plugins.aci.client.ApicTimestampCodec;
+import org.opennms.plugins.aci.client.FaultRecord;
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
@@ -55,7 +57,7 @@ public class ApicClusterJob implements Job {
 
     private static final Logger LOG = LoggerFactory.getLogger(ApicClusterJob.class);
 
-    private static final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    private static final String FAULT_CLASS = "faultRecord";
 
     private final EventForwarder eventForwarder;
 
@@ -63,9 +65,17 @@ public class ApicClusterJob implements Job {
 
     private ACIRestClient client;
 
+    private ACIRestClientRegistry clientRegistry;
+
+    private ApicCheckpointStore checkpointStore;
+
+    private FaultDedupCache dedupCache;
+
     private String lastProcessTime = null;
+
+    private long lastProcessMillis = -1;
     
-    private NodeCache nodeCache;
+    private ApicDnResolver dnResolver;
     
     private String localAddr;
 
@@ -86,6 +96,19 @@ public class ApicClusterJob implements Job {
         String username = (String) context.getMergedJobDataMap().get(ApicService.APIC_CONFIG_USERNAME_KEY);
         String password = (String) context.getMergedJobDataMap().get(ApicService.APIC_CONFIG_PASSWORD_KEY);
 
+        SchedulerContext schedulerContext = null;
+        try {
+            schedulerContext = context.getScheduler().getContext();
+        } catch (SchedulerException e1) {
+//            e1.printStackTrace();
+            throw new JobExecutionException(context.getJobDetail().getKey()
+                    + ": Failed to initialize client.", e1, false);
+        }
+
+        clientRegistry = (ACIRestClientRegistry) schedulerContext.get(ApicService.APIC_CONFIG_CLIENT_REGISTRY);
+        checkpointStore = (ApicCheckpointStore) schedulerContext.get(ApicService.APIC_CONFIG_CHECKPOINT_STORE);
+        dedupCache = (FaultDedupCache) schedulerContext.get(ApicService.APIC_CONFIG_DEDUP_CACHE);
+
         if (client == null) {
             try {
                 LOG.info("Initializing ACIRestClient with: \n"
@@ -94,7 +117,7 @@ public class ApicClusterJob implements Job {
                         + ": " + apicUrl + "\n"
                         + ApicService.APIC_CONFIG_USERNAME_KEY + ": "
                         + username);
-                client = ACIRestClient.newAciRest(location, apicUrl, username, password);
+                client = clientRegistry.acquire(location, apicUrl, username, password);
             } catch (Exception e) {
                 // e.printStackTrace();
                 String msg = "Failed to initialize ACIRestClient";
@@ -108,17 +131,11 @@ public class ApicClusterJob implements Job {
             throw new JobExecutionException(context.getJobDetail().getKey()
                     + ": Failed to initialize client.", false);
 
-        SchedulerContext schedulerContext = null;
-        try {
-            schedulerContext = context.getScheduler().getContext();
-        } catch (SchedulerException e1) {
-//            e1.printStackTrace();
-            throw new JobExecutionException(context.getJobDetail().getKey()
-                    + ": Failed to initialize client.", e1, false);
-        }
-
-        EventForwarder eventForwarder = (EventForwarder) schedulerContext.get(ApicService.APIC_CONFIG_EVENT_FORWARDER);
-        nodeCache = (NodeCache) schedulerContext.get(ApicService.APIC_CONFIG_NODE_CACHE);
+        Map<String, BatchingEventForwarder> batchingForwarders = (Map<String, BatchingEventForwarder>) schedulerContext.get(ApicService.APIC_CONFIG_BATCHING_FORWARDERS);
+        final BatchingEventForwarder batchingForwarder = batchingForwarders == null ? null : batchingForwarders.get(location);
+        final EventForwarder eventForwarder = batchingForwarder != null ? batchingForwarder
+                : (EventForwarder) schedulerContext.get(ApicService.APIC_CONFIG_EVENT_FORWARDER);
+        dnResolver = (ApicDnResolver) schedulerContext.get(ApicService.APIC_CONFIG_DN_RESOLVER);
         localAddr = (String) schedulerContext.get(ApicService.APIC_CONFIG_LOCAL_ADDR);
 
         int pollDuration = (int) context.getMergedJobDataMap().get(ApicService.APIC_CONFIG_POLL_DURATION_KEY);
@@ -131,96 +148,97 @@ public class ApicClusterJob implements Job {
                     + ApicService.APIC_CONFIG_CLUSTER_MAP;
 
             LOG.error(msg);
+            closeClient();
             throw new JobExecutionException(msg, false);
         }
 
-        Map<String, Object> clusterJobMap = (Map<String, Object>) ((Map<String, Map<String, Object>>) schedulerContext.get(ApicService.APIC_CONFIG_CLUSTER_MAP)).get(context.getJobDetail().getKey().toString());
         try {
-            this.setLastProcessTime(clusterJobMap, location, pollDuration);
+            this.setLastProcessTime(location, pollDuration);
 
             LOG.debug("Querying for faults after: " + lastProcessTime);
-            JSONArray results = client.getCurrentFaults(lastProcessTime);
+            final String apicHost = client.getHost();
+            int totalCount = client.getCurrentFaults(lastProcessTime, record -> {
+                try {
+                    this.sendEvent(eventForwarder, record, location, apicHost);
+                } catch (ParseException e) {
+                    LOG.warn("ACI: Skipping " + record.getMoClass() + " with invalid created time: " + record.toJSONString(), e);
+                }
+            });
 
-            if (results == null || results.isEmpty())
+            if (totalCount == 0)
                 return;
 
-            this.sendEvents(clusterJobMap, eventForwarder, results, location, client.getHost());
+            // Hand over what is still batched before moving the checkpoint past it
+            if (batchingForwarder != null)
+                batchingForwarder.flush();
+
+            if (checkpointStore != null) {
+                checkpointStore.put(location, FAULT_CLASS, lastProcessTime, null);
+                try {
+                    checkpointStore.flush();
+                } catch (IOException e) {
+                    // Stays dirty, the store retries in the background
+                    LOG.warn("ACI: Failed to write checkpoint of " + location, e);
+                }
+            }
+            LOG.debug("Last Process Date: " + lastProcessTime);
         } catch (Exception e) {
 //            e.printStackTrace();
             String msg = "ApicClusterJob failed for cluster: LS6 at "
                     + lastProcessTime;
             LOG.error(msg, e);
             throw new JobExecutionException(msg, e, false);
+        } finally {
+            closeClient();
         }
 
     }
 
-    private void setLastProcessTime(Map<String, Object> clusterJobMap, String location, int pollDuration)
+    private void closeClient() {
+        if (client != null) {
+            clientRegistry.release(client);
+            client = null;
+        }
+    }
+
+    private void setLastProcessTime(String location, int pollDuration)
             throws Exception {
 
-        // If last execution time is null (first time after restart),
-        // then set from last event
-        if (clusterJobMap.get(ApicService.APIC_CLUSTER_MAP_LAST_PROCESS_TIME) == null) {
-            //TODO - Need to figure out how to get the time from the last event
-            //For now, just get all events from last 60 minutes
-            final java.util.Calendar startCal = GregorianCalendar.getInstance();
-            startCal.add(GregorianCalendar.MINUTE, -60);
-            lastProcessTime = format.format(startCal.getTime());
+        ApicCheckpointStore.Checkpoint checkpoint = checkpointStore == null ? null
+                : checkpointStore.get(location, FAULT_CLASS);
+        // If there is no checkpoint (first run ever), then start from the last 60 minutes
+        if (checkpoint == null) {
+            lastProcessTime = ApicTimestampCodec.format(client.apicNow() - TimeUnit.MINUTES.toMillis(60));
         } else {
-            lastProcessTime = (String) clusterJobMap.get(ApicService.APIC_CLUSTER_MAP_LAST_PROCESS_TIME);
+            lastProcessTime = checkpoint.getCreated();
         }
         LOG.debug("Setting lastProcessTime = " + lastProcessTime);
 
     }
 
-    private void sendEvents(Map<String, Object> clusterJobMap,
-            EventForwarder eventForwarder, JSONArray results, String location, String apicHost)
+    private void sendEvent(EventForwarder eventForwarder, FaultRecord record, String location, String apicHost)
             throws ParseException {
 
-        Date lastProcessDate = null;
-
-        for (Object object : results) {
-            JSONObject objectData = (JSONObject) object;
-            if (objectData == null)
-                continue;
-            for (Object object2 : objectData.keySet()) {
-                String key = (String) object2;
-                JSONObject classData = (JSONObject) objectData.get(key);
-                JSONObject attributes = (JSONObject) classData.get("attributes");
-                if (attributes == null)
-                    continue;
-
-                if (attributes.get("created") != null) {
-                    String created = (String) attributes.get("created");
-                    String[] startTimeparts = created.split("T");
-                    String onlydate = startTimeparts[0];
-                    String onlytimewtz = startTimeparts[1];
-                    String onlytime = onlytimewtz.substring(0, onlytimewtz.length()
-                            - 6);
-                    String onlytz = onlytimewtz.substring(onlytimewtz.length()
-                            - 6);
-                    String tz = onlytz.replace(":", "");
-
-                    Date createDate = ApicService.format.parse(onlydate + "T"
-                            + onlytime + tz);
-                    if (lastProcessDate == null
-                            || createDate.after(lastProcessDate)) {
-                        lastProcessDate = createDate;
-                        lastProcessTime = ApicService.format.format(lastProcessDate);
-                    }
-
-                    LOG.debug(created + " --- " + attributes.toJSONString());
-                    InMemoryEvent event = ConvertToEvent.toEventBuilder(this.nodeCache, location, createDate, attributes, apicHost);
-
-                    if (event != null) {
-                        eventForwarder.sendAsync(event);
-                    }
-                }
+        if (record.getCreated() != null) {
+            String created = record.getCreated();
+            long createdMillis = ApicTimestampCodec.parse(created);
+            if (createdMillis > lastProcessMillis) {
+                lastProcessMillis = createdMillis;
+                lastProcessTime = ApicTimestampCodec.format(lastProcessMillis);
             }
-        }
 
-        clusterJobMap.put(ApicService.APIC_CLUSTER_MAP_LAST_PROCESS_TIME, lastProcessTime);
-        LOG.debug("Last Process Date: " + lastProcessTime);
+            LOG.debug("{} --- {}", created, record);
+            if (dedupCache != null && dedupCache.isDuplicate(location, record)) {
+                LOG.trace("ACI: Skipping duplicate record: {}", record);
+                return;
+            }
+            InMemoryEvent event = ConvertToEvent.toEventBuilder(this.dnResolver, location, new Date(client.getClock().toLocalMillis(createdMillis)),
+                                                                 record, apicHost);
+
+            if (event != null) {
+                eventForwarder.sendAsync(event);
+            }
+        }
     }
 
 //    private void sendNewSuspectEvent(EventForwarder eventForwarder, String localAddr, String eventInterface, String distPoller) {
@@ -29,14 +29,17 @@
 package org.opennms.plugins.aci;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URI;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
@@ -49,8 +52,12 @@ import org.glassfish.tyrus.client.ClientManager;
 import org.glassfish.tyrus.client.ClientProperties;
 import org.glassfish.tyrus.client.SslContextConfigurator;
 import org.glassfish.tyrus.client.SslEngineConfigurator;
-import org.json.simple.JSONObject;
 import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
+import org.opennms.plugins.aci.client.ApicMemberSelector;
+import org.opennms.plugins.aci.client.ApicTimestampCodec;
+import org.opennms.plugins.aci.client.ApicTokenManager;
+import org.opennms.plugins.aci.client.FaultRecord;
 import org.opennms.plugins.aci.config.SouthCluster;
 import org.opennms.plugins.aci.config.SouthElement;
 import org.slf4j.Logger;
@@ -60,9 +67,31 @@ import org.slf4j.LoggerFactory;
  * @author metispro
  *
  */
-public class ApicClusterManager extends Thread {
+public class ApicClusterManager {
     
     private static final Logger LOG = LoggerFactory.getLogger(ApicClusterManager.class);
+
+    private static final long PIPELINE_DRAIN_MILLIS = 10000;
+
+    /** Reach back before the watermark, records sharing its timestamp must not be missed */
+    private static final long BACKFILL_OVERLAP_MILLIS = 1000;
+
+    /** Live records held back while the backfill runs */
+    private static final int MAX_LIVE_BUFFER = 100000;
+
+    /** Refreshes per subscription or token timeout, whichever is shorter */
+    private static final int REFRESHES_PER_TIMEOUT = 3;
+
+    /** Spread of the refresh period, keeps clusters from refreshing in lockstep */
+    private static final double REFRESH_JITTER = 0.1;
+
+    private static final long TICK_MILLIS = 1000;
+
+    /** Refreshes failed in a row before the subscription is given up, it expires after the third */
+    private static final int MAX_MISSED_REFRESHES = 2;
+
+    /** Silence on the websocket after which it is presumed dead */
+    private static final long MAX_SILENCE_MILLIS = TimeUnit.MINUTES.toMillis(60);
     
     private final ApicEventForwader apicEventForwader;
     private final SouthCluster southCluster;
@@ -71,36 +100,88 @@ public class ApicClusterManager extends Thread {
     public final boolean hostVerficationEnabled;
     public final String clusterName;
     
+    private final ACIRestClientRegistry clientRegistry;
+    private final ApicScheduler scheduler;
+    private final Executor connectExecutor;
     private ACIRestClient aciClient;
-    private NodeCache nodeCache;
+    private volatile ApicMemberSelector.Member wsMember;
+    private final ApicEventPipeline eventPipeline;
+    private final ApicWatermark watermark;
+
+    /** Subscriptions sharing the websocket, faultRecord first */
+    private final List<ApicSubscription> subscriptions = new ArrayList<>();
+    private final Map<String, ApicSubscription> subscriptionsByClass = new HashMap<>();
+    private final Map<String, ApicSubscription> subscriptionsById = new ConcurrentHashMap<>();
+
+    private final Object liveLock = new Object();
+    private List<FaultRecord> liveBuffer = null;
+    private long liveOverflow = 0;
     
-    private boolean shutdown = false;
+    private volatile boolean shutdown = false;
+
+    private volatile boolean started = false;
+
+    private volatile boolean closed = false;
     
-    private boolean connectionOpen = false;
-    private String subscriptionId =  null;
+    private volatile boolean connectionOpen = false;
+
+    /** Set once subscribed, backfilled and refreshing */
+    private volatile boolean live = false;
+
+    private volatile long startedAt = -1;
+
+    private volatile long lastMessageAt = -1;
+
+    /** Token counters when the websocket was opened, it is bound to that token */
+    private long reloginsAtConnect;
+    private long authFailuresAtConnect;
     
-    private Session session = null;
+    private volatile Session session = null;
+
+    private ApicScheduler.JitteredTask refreshTask;
+
+    private ScheduledFuture<?> tickTask;
     
     private Date connectionStart = null;
+
+    /** Start of the subscription's query window, on the APIC's clock */
+    private long subscribedSince = -1;
     
 
     /**
      * Default Constructor
      * @param cluster
+     * @param clientRegistry registry providing the shared REST client
+     * @param watermark last processed fault of the cluster, kept across reconnects
+     * @param scheduler runs the refreshes and ticks of the cluster
+     * @param connectExecutor runs the connection and backfill, which block on the APIC
      * @throws Exception
      */
-    public ApicClusterManager(ApicEventForwader apicEventForwader, SouthCluster cluster) throws Exception {
-        this(apicEventForwader, cluster, false);
+    public ApicClusterManager(ApicEventForwader apicEventForwader, SouthCluster cluster,
+                              ACIRestClientRegistry clientRegistry, ApicWatermark watermark,
+                              ApicScheduler scheduler, Executor connectExecutor) throws Exception {
+        this(apicEventForwader, cluster, clientRegistry, watermark, scheduler, connectExecutor, false);
     }
 
     /**
      * Constructor with SSL HostVerification flag.
      * @param cluster
+     * @param clientRegistry registry providing the shared REST client
+     * @param watermark last processed fault of the cluster, kept across reconnects
+     * @param scheduler runs the refreshes and ticks of the cluster
+     * @param connectExecutor runs the connection and backfill, which block on the APIC
      * @param hostVerificationEnabled
      * @throws Exception
      */
-    public ApicClusterManager(ApicEventForwader apicEventForwader, SouthCluster cluster, boolean hostVerificationEnabled) throws Exception {
+    public ApicClusterManager(ApicEventForwader apicEventForwader, SouthCluster cluster,
+                              ACIRestClientRegistry clientRegistry, ApicWatermark watermark,
+                              ApicScheduler scheduler, Executor connectExecutor,
+                              boolean hostVerificationEnabled) throws Exception {
         this.southCluster = cluster;
+        this.watermark = watermark;
+        this.clientRegistry = clientRegistry;
+        this.scheduler = scheduler;
+        this.connectExecutor = connectExecutor;
         this.apicEventForwader = apicEventForwader;
         this.hostVerficationEnabled = hostVerificationEnabled;
         this.clusterName = cluster.getClusterName();
@@ -131,10 +212,27 @@ public class ApicClusterManager extends Thread {
         }
         this.clusterUrl = url;
         
-        nodeCache = new NodeCache();
-        
-        this.aciClient = ACIRestClient.newAciRest( cluster.getClusterName(), clusterUrl, username, password );
+        this.aciClient = clientRegistry.acquire( cluster.getClusterName(), clusterUrl, username, password );
+        apicEventForwader.setClock(aciClient.getClock());
+
+        // Records of one DN always land on the same worker, so a clear can't overtake its raise
+        this.eventPipeline = new ApicEventPipeline(clusterName, this::forward);
+        addSubscription(new ApicSubscription(FaultRecord.FAULT_RECORD, eventPipeline, this::onLiveRecord));
+
+        for (String moClass : cluster.getSubscriptionClasses()) {
+            if (moClass == null || moClass.trim().isEmpty() || subscriptionsByClass.containsKey(moClass.trim()))
+                continue;
+            // One worker each; dropping the oldest keeps a busy stream from stalling the shared websocket
+            ApicEventPipeline pipeline = new ApicEventPipeline(clusterName + "-" + moClass.trim(), 1,
+                    ApicEventPipeline.DEFAULT_QUEUE_CAPACITY, ApicEventPipeline.OverflowPolicy.DROP_OLDEST,
+                    record -> apicEventForwader.sendRecord(clusterName, wsMember.getHost(), record));
+            addSubscription(new ApicSubscription(moClass.trim(), pipeline));
+        }
+    }
 
+    private void addSubscription(ApicSubscription subscription) {
+        subscriptions.add(subscription);
+        subscriptionsByClass.put(subscription.getMoClass(), subscription);
     }
     
     public boolean isRunning() {
@@ -142,52 +240,179 @@ public class ApicClusterManager extends Thread {
     }
 
     public String apicHost() {
+        if (this.wsMember != null)
+            return this.wsMember.getHost();
+
         if (this.aciClient == null)
             return null;
 
         return this.aciClient.getHost();
     }
 
-    /* (non-Javadoc)
-     * @see java.lang.Runnable#run()
+    /**
+     * Connect and backfill on the connect executor, then keep the
+     * subscriptions refreshed from the shared scheduler. No thread of its own
+     * is kept per cluster.
      */
-    @Override
-    public void run() {
-        if (this.shutdown)
+    public synchronized void start() {
+        if (started)
             return;
+        started = true;
+        startedAt = System.currentTimeMillis();
+        connectExecutor.execute(this::connect);
+    }
+
+    /**
+     * @return true from {@link #start()} until the manager is shut down or
+     *         its connection failed and it has been cleaned up
+     */
+    public boolean isAlive() {
+        return started && !closed;
+    }
+
+    private void connect() {
+        if (this.shutdown || this.closed) {
+            close();
+            return;
+        }
 
         LOG.info("ACI: Starting ApicClusterManager for: " + clusterName);
 
         try {
-            long now = System.currentTimeMillis();
-            subscriptionId = this.connectAndSubscribeToFaults();
-
-            while (isRunning()) {
-                //Currently both Subscription and Token expire every 60 seconds
-                if ((System.currentTimeMillis() - now) > 30000 && this.subscriptionId != null) {
-                    LOG.debug("ACI: Refresh client session and subscription token for id: {}", subscriptionId);
-                    //Do refresh on client session
-                    aciClient.runQueryNoAuth("/api/aaaRefresh.json");
-                    //Do refresh on subscription
-                    aciClient.runQueryNoAuth("/api/subscriptionRefresh.json?id=" + subscriptionId);
-                    now = System.currentTimeMillis();
-                }
-                Thread.sleep(1000);
+            for (ApicSubscription subscription : subscriptions)
+                subscription.start();
+            this.connectAndSubscribe();
+            this.backfill();
+
+            synchronized (this) {
+                if (closed)
+                    return;
+                // All subscriptions live on the same APIC, refresh them in one go
+                refreshTask = scheduler.scheduleWithJitter("subscriptionRefresh-" + clusterName, this::refresh,
+                                                           this::refreshPeriodMillis, REFRESH_JITTER);
+                tickTask = scheduler.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS);
+                live = true;
             }
-            
-            LOG.info("ACI: Stopping websocket client for " + this.clusterName);
-            client.shutdown();
         } catch (Throwable e) {
             LOG.error("APIC websocket exception", e);
 //            e.printStackTrace();
             this.connectionOpen = false;
+            close();
+        }
+    }
+
+    /**
+     * @return true once subscribed, backfilled and refreshing, i.e. ready to
+     *         take over from a predecessor
+     */
+    public boolean isLive() {
+        return live && isRunning();
+    }
+
+    /**
+     * @return the time {@link #start()} was called, -1 before
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Check the health signals of a live connection.
+     *
+     * @return why the connection should be handed over to a new session, or
+     *         null while it is healthy
+     */
+    public String getHandoverReason() {
+        if (!isLive())
+            return null;
+
+        for (ApicSubscription subscription : subscriptions) {
+            if (subscription.getMissedRefreshes() >= MAX_MISSED_REFRESHES)
+                return subscription.getMissedRefreshes() + " missed refreshes of " + subscription.getMoClass();
+        }
+
+        ApicTokenManager tokenManager = aciClient.getTokenManager();
+        if (tokenManager.getReloginCount() > reloginsAtConnect)
+            return "APIC session re-established, the websocket's token is stale";
+        if (tokenManager.getAuthFailureCount() > authFailuresAtConnect)
+            return "APIC rejected the session token";
+
+        long silence = System.currentTimeMillis() - lastMessageAt;
+        if (silence > MAX_SILENCE_MILLIS)
+            return "no message for " + TimeUnit.MILLISECONDS.toMinutes(silence) + " minutes";
+        return null;
+    }
+
+    /**
+     * @return the refresh period derived from the subscription timeout and the
+     *         token timeout last reported by the APIC
+     */
+    private long refreshPeriodMillis() {
+        long timeoutSeconds = Math.min(ApicSubscription.TIMEOUT_SECONDS,
+                                       aciClient.getTokenManager().getRefreshTimeoutSeconds());
+        return TimeUnit.SECONDS.toMillis(timeoutSeconds) / REFRESHES_PER_TIMEOUT;
+    }
+
+    private void refresh() {
+        if (!isRunning()) {
+            close();
+            return;
+        }
+        //The client session is kept alive by its ApicTokenManager
+        for (ApicSubscription subscription : subscriptions)
+            subscription.refresh(aciClient, wsMember);
+    }
+
+    private void tick() {
+        if (!isRunning()) {
+            close();
+            return;
+        }
+        try {
+            apicEventForwader.tick(clusterName, apicHost());
+        } catch (Throwable e) {
+            LOG.warn("ACI: Flap damping tick of {} failed", clusterName, e);
         }
-        LOG.debug("ACI: Exiting thread ApicClusterManager for APIC: " + this.clusterName);
+    }
+
+    /**
+     * Stop refreshing, close the websocket, drain the pipelines and hand the
+     * REST client back. Safe to call more than once.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (refreshTask != null)
+                refreshTask.cancel();
+            if (tickTask != null)
+                tickTask.cancel(false);
+        }
+
+        LOG.info("ACI: Stopping websocket client for " + this.clusterName);
+        connectionOpen = false;
+        live = false;
+        resetSubscriptions();
+        Session current = this.session;
+        try {
+            if (current != null && current.isOpen())
+                current.close();
+        } catch (IOException e) {
+            LOG.debug("ACI: Failed to close websocket of {}", clusterName, e);
+        }
+        client.shutdown();
+
+        for (ApicSubscription subscription : subscriptions)
+            subscription.close(PIPELINE_DRAIN_MILLIS);
+        clientRegistry.release(aciClient);
+        LOG.debug("ACI: Stopped ApicClusterManager for APIC: " + this.clusterName);
     }
     
     public void shutdown() {
         LOG.debug("ACI: Shutting down " + this.clusterName);
         this.shutdown = true;
+        close();
     }
     
     public void setShutdown(boolean shutdown) {
@@ -198,30 +423,57 @@ public class ApicClusterManager extends Thread {
         return this.shutdown;
     }
 
-    private String connectAndSubscribeToFaults() throws Exception {
+    private void connectAndSubscribe() throws Exception {
         LOG.debug("ACI: Starting websocket client for: {}", clusterName);
 
         final ClientEndpointConfig cec = ClientEndpointConfig.Builder.create().build();
 
+        // Hold back live records until the gap since the last connection is filled
+        synchronized (liveLock) {
+            liveBuffer = new ArrayList<>();
+            liveOverflow = 0;
+        }
+
+        // Connect to the best APIC right now; the subscription has to be
+        // made and refreshed on that same APIC
+        this.wsMember = aciClient.getMembers().select();
+        ApicTokenManager tokenManager = aciClient.getTokenManager();
+        this.reloginsAtConnect = tokenManager.getReloginCount();
+        this.authFailuresAtConnect = tokenManager.getAuthFailureCount();
+        this.lastMessageAt = System.currentTimeMillis();
+        LOG.info("ACI: Using APIC {} for websocket of cluster {}", wsMember, clusterName);
+
         session = client.connectToServer(new Endpoint() {
 
             @Override
             public void onOpen(Session session, EndpointConfig config) {
                 try {
-                    session.addMessageHandler(new MessageHandler.Whole<String>() {
-
-                        ExecutorService execService = Executors.newFixedThreadPool(25);
+                    // Decoded while the frames arrive, a message is never held as a whole
+                    session.addMessageHandler(new MessageHandler.Whole<Reader>() {
 
                         @Override
-                        public void onMessage(String message) {
+                        public void onMessage(Reader message) {
                             if (message == null)
                                 return;
-                            LOG.trace("ACI: Received message: {}", message);
-                            Runnable runnableTask = () -> {
-                                apicEventForwader.sendEvent(clusterName, aciClient.getHost(), message);
-                            };
-                            
-                            execService.execute(runnableTask);
+                            lastMessageAt = System.currentTimeMillis();
+                            int count = 0;
+                            try (Reader reader = message) {
+                                // Blocks the websocket reader while the fault pipeline is full
+                                count = apicEventForwader.parse(reader, (subscriptionIds, record) -> {
+                                    LOG.trace("ACI: Received record: {}", record);
+                                    try {
+                                        route(subscriptionIds, record);
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                });
+                            } catch (org.json.simple.parser.ParseException e) {
+                                LOG.error("ACI: Failure processing message of {} at position {}: {}", clusterName,
+                                          e.getPosition(), e.toString());
+                            } catch (Exception e) {
+                                LOG.error("ACI: Failure processing message of {}", clusterName, e);
+                            }
+                            LOG.trace("ACI: Received {} record(s) from {}", count, clusterName);
                         }
 
                     });
@@ -240,9 +492,9 @@ public class ApicClusterManager extends Thread {
                 } catch (IOException e) {
                     //Don't care we are forcibly restarting
                 }
+                // The next tick cleans up, off the websocket's own thread
                 connectionOpen = false;
-                subscriptionId = null;
-                Thread.currentThread().interrupt();
+                resetSubscriptions();
             }
             
             @Override
@@ -254,32 +506,139 @@ public class ApicClusterManager extends Thread {
                 } catch (IOException e) {
                     //Don't care we are forcibly restarting
                 }
+                // The next tick cleans up, off the websocket's own thread
                 connectionOpen = false;
-                subscriptionId = null;
-                Thread.currentThread().interrupt();
+                resetSubscriptions();
             }
 
-        }, cec, new URI("wss://"+ this.aciClient.getHost() + "/socket" + this.aciClient.getToken()));
+        }, cec, new URI("wss://"+ this.wsMember.getHost() + ":" + this.wsMember.getPort() + "/socket" + this.aciClient.getToken()));
         
 //        session = fs.get();
         
-        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-        final Calendar startCal = GregorianCalendar.getInstance();
-        startCal.add(Calendar.SECOND, -30);
-        String formattedTime = format.format(startCal.getTime());
-
-//        String query = "/api/node/class/faultInfo.json?subscription=yes";
-        String query = "/api/node/class/faultRecord.json?query-target-filter=gt(faultRecord.created, \"" + formattedTime + "\")&subscription=yes";
-        LOG.debug("ACI: Subscribing to query: " + query);
-        JSONObject result = (JSONObject) aciClient.runQueryNoAuth(query);
-        this.connectionStart = startCal.getTime();
-        return (String)result.get("subscriptionId");
+        final Date start = new Date(System.currentTimeMillis() - 30000);
+        final long since = aciClient.apicNow() - 30000;
+        String formattedTime = ApicTimestampCodec.format(since);
+
+        // All subscriptions made with the websocket's token are pushed over it
+        for (ApicSubscription subscription : subscriptions) {
+            try {
+                subscriptionsById.put(subscription.subscribe(aciClient, wsMember, formattedTime), subscription);
+            } catch (Exception e) {
+                if (FaultRecord.FAULT_RECORD.equals(subscription.getMoClass()))
+                    throw e;
+                LOG.warn("ACI: Failed to subscribe to {} of {}", subscription.getMoClass(), clusterName, e);
+            }
+        }
+        this.connectionStart = start;
+        this.subscribedSince = since;
+    }
+
+    /**
+     * Hand a pushed record to the subscription it was pushed for. Records
+     * arriving before the APIC answered the subscribe call are matched by
+     * their class instead.
+     */
+    private void route(List<String> subscriptionIds, FaultRecord record) throws InterruptedException {
+        ApicSubscription subscription = null;
+        for (int i = 0; subscription == null && i < subscriptionIds.size(); i++)
+            subscription = subscriptionsById.get(subscriptionIds.get(i));
+        if (subscription == null)
+            subscription = subscriptionsByClass.get(record.getMoClass());
+
+        if (subscription != null)
+            subscription.onRecord(record);
+        else
+            LOG.debug("ACI: Dropping {} of {} without subscription {}", record.getMoClass(), clusterName, subscriptionIds);
+    }
+
+    private void resetSubscriptions() {
+        subscriptionsById.clear();
+        for (ApicSubscription subscription : subscriptions)
+            subscription.reset();
     }
     
+    private void onLiveRecord(FaultRecord record) throws InterruptedException {
+        synchronized (liveLock) {
+            if (liveBuffer != null) {
+                if (liveBuffer.size() < MAX_LIVE_BUFFER)
+                    liveBuffer.add(record);
+                else if (liveOverflow++ == 0)
+                    LOG.warn("ACI: Backfill of {} is too slow, dropping live records", clusterName);
+                return;
+            }
+        }
+        submit(record);
+    }
+
+    private void submit(FaultRecord record) throws InterruptedException {
+        if (!watermark.accept(record))
+            return;
+        boolean queued = false;
+        try {
+            queued = eventPipeline.submit(record);
+        } finally {
+            if (!queued)
+                watermark.rejected(record);
+        }
+    }
+
+    /**
+     * Runs on the pipeline workers. The watermark only moves past a record
+     * once it was handed to the forwarder.
+     */
+    private void forward(FaultRecord record) {
+        try {
+            apicEventForwader.sendEvent(clusterName, wsMember.getHost(), record);
+        } finally {
+            watermark.processed(record);
+        }
+    }
+
+    /**
+     * Fill the gap between the last processed fault and the live stream with
+     * paged REST queries, then release the live records held back meanwhile.
+     * Records seen on both paths are only processed once.
+     */
+    private void backfill() throws Exception {
+        final String since;
+        if (watermark.isSet()) {
+            since = watermark.getQueryTime(BACKFILL_OVERLAP_MILLIS);
+        } else {
+            since = ApicTimestampCodec.format(this.subscribedSince);
+        }
+
+        try {
+            LOG.info("ACI: Backfilling faults of {} created after {}", clusterName, since);
+            int totalCount = aciClient.getCurrentFaults(since, record -> {
+                if ("error".equals(record.getMoClass())) {
+                    LOG.warn("ACI: Backfill of {} failed: {}", clusterName, record.toJSONString());
+                    return;
+                }
+                try {
+                    submit(record);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            LOG.info("ACI: Backfilled {} fault(s) of {}", totalCount, clusterName);
+        } finally {
+            // Keep the lock while draining, live records must queue behind the buffered ones
+            synchronized (liveLock) {
+                List<FaultRecord> buffered = liveBuffer;
+                liveBuffer = null;
+                if (liveOverflow > 0)
+                    LOG.warn("ACI: Dropped {} live record(s) of {} during backfill", liveOverflow, clusterName);
+                if (buffered != null) {
+                    for (FaultRecord record : buffered)
+                        submit(record);
+                }
+            }
+        }
+    }
+
     public void printStatus() {
         System.out.println("\t" + this.southCluster.getClusterName());
-        System.out.println("\t--- subscriptionId: " + this.subscriptionId);
-        System.out.println("\t--- threadAlive: " + this.isAlive());
+        System.out.println("\t--- active: " + this.isAlive());
 
         if (this.isAlive())
             System.out.println("\t--- isRunning: " + this.isRunning());
@@ -289,6 +648,22 @@ public class ApicClusterManager extends Thread {
         if (this.isRunning()) {
             System.out.println("\t--- apicHost: " + this.apicHost());
             System.out.println("\t--- Running Since: " + this.connectionStart);
+            System.out.println("\t--- APIC clock: " + this.aciClient.getClock());
+            ApicTokenManager tokenManager = this.aciClient.getTokenManager();
+            System.out.println("\t--- Token refreshes: " + tokenManager.getRefreshCount()
+                    + ", re-logins: " + tokenManager.getReloginCount()
+                    + ", auth failures: " + tokenManager.getAuthFailureCount());
+            ApicMemberSelector members = this.aciClient.getMembers();
+            System.out.println("\t--- APICs: " + members.getMembers()
+                    + ", failovers: " + members.getFailoverCount()
+                    + ", hedged reads: " + members.getHedgeCount());
+            for (ApicSubscription subscription : this.subscriptions)
+                System.out.println("\t--- Subscription: " + subscription);
+            System.out.println("\t--- Watermark: " + this.watermark);
+            System.out.println("\t--- Event forwarding: " + this.apicEventForwader.getEventForwarder());
+            System.out.println("\t--- Dedup cache: " + this.apicEventForwader.getDedupCache());
+            System.out.println("\t--- Flap damping: " + this.apicEventForwader.getFlapDamper());
+            System.out.println("\t--- Node resolution: " + this.apicEventForwader.getDnResolver());
         } else {
             System.out.println("\t--- Not connected to apic: " + this.clusterUrl);
         }
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the node of an APIC DN. DNs below
+ * <code>topology/pod-X/node-Y</code> belong to the switch or controller the
+ * requisition imported as <code>topology_pod-X_node-Y</code> under the
+ * cluster's foreign source; anything else falls back to the node of the APIC
+ * host.
+ *
+ * @author metispro
+ */
+public class ApicDnResolver {
+
+    private static final Pattern NODE_DN = Pattern.compile("^topology/(pod-\\d+)/(node-\\d+)(?=/|$)");
+
+    private static final String FOREIGN_ID_SEP = "_";
+
+    private final NodeCache nodeCache;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong nodeDns = new AtomicLong();
+    private final AtomicLong dnHits = new AtomicLong();
+    private final AtomicLong hostHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ApicDnResolver(NodeCache nodeCache) {
+        this.nodeCache = nodeCache;
+    }
+
+    /**
+     * Map a DN to the foreign id of its node, as used by the requisition.
+     *
+     * @param dn
+     *            an APIC DN, e.g. <code>topology/pod-1/node-101/sys</code>
+     * @return the foreign id, e.g. <code>topology_pod-1_node-101</code>, or
+     *         null if the DN is not below a topology node
+     */
+    public static String toForeignId(String dn) {
+        if (dn == null)
+            return null;
+        Matcher matcher = NODE_DN.matcher(dn);
+        if (!matcher.lookingAt())
+            return null;
+        return "topology" + FOREIGN_ID_SEP + matcher.group(1) + FOREIGN_ID_SEP + matcher.group(2);
+    }
+
+    /**
+     * @param foreignSource
+     *            the cluster name, the foreign source of its requisition
+     * @param dn
+     *            the affected DN of a fault
+     * @param apicHost
+     *            the APIC the fault came from, the fallback node
+     * @return the node id, or null if neither resolves
+     */
+    public Long resolve(String foreignSource, String dn, String apicHost) {
+        lookups.incrementAndGet();
+        String foreignId = toForeignId(dn);
+        if (foreignId != null) {
+            nodeDns.incrementAndGet();
+            Long nodeId = nodeCache.getNodeId(foreignSource + ApicService.FS_SEP + foreignId);
+            if (nodeId != null && nodeId != 0) {
+                dnHits.incrementAndGet();
+                return nodeId;
+            }
+        }
+
+        Long nodeId = apicHost == null ? null : nodeCache.getNodeId(apicHost);
+        if (nodeId != null && nodeId != 0) {
+            hostHits.incrementAndGet();
+            return nodeId;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return the cache the node keys are resolved with
+     */
+    public NodeCache getNodeCache() {
+        return nodeCache;
+    }
+
+    /**
+     * @return number of resolved DNs
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return DNs that resolved to their own node
+     */
+    public long getDnHitCount() {
+        return dnHits.get();
+    }
+
+    /**
+     * @return DNs that fell back to the node of the APIC host
+     */
+    public long getHostHitCount() {
+        return hostHits.get();
+    }
+
+    /**
+     * @return DNs without any node
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return share of topology node DNs that resolved to their own node
+     */
+    public double getHitRate() {
+        long total = nodeDns.get();
+        return total == 0 ? 0.0 : (double) dnHits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ApicDnResolver{" +
+                "lookups=" + lookups +
+                ", nodeDns=" + nodeDns +
+                ", dnHits=" + dnHits +
+                ", hostHits=" + hostHits +
+                ", misses=" + misses +
+                ", hitRate=" + String.format("%.3f", getHitRate()) +
+                ", nodeCache=" + nodeCache +
+                '}';
+    }
+}
@@ -28,13 +28,20 @@
 
 package org.opennms.plugins.aci;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.opennms.integration.api.v1.events.EventForwarder;
 import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ApicClockEstimator;
+import org.opennms.plugins.aci.client.ApicTimestampCodec;
+import org.opennms.plugins.aci.client.FaultRecord;
+import org.opennms.plugins.aci.client.SubscriptionRecordConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,81 +53,247 @@ public class ApicEventForwader {
     
     private static final Logger LOG = LoggerFactory.getLogger(ApicEventForwader.class);
 
+    /** Characters of a failed message quoted at ERROR, the rest goes to DEBUG */
+    private static final int MAX_LOGGED_MESSAGE = 512;
+
     private final EventForwarder eventForwarder;
-    private final NodeCache nodeCache;
+    private final ApicDnResolver dnResolver;
+    private final FaultDedupCache dedupCache;
+    private final FlapDamper flapDamper;
+    private volatile ApicClockEstimator clock;
     
 //    private final String localAddr;
     
-    public ApicEventForwader (EventForwarder eventForwarder, NodeCache nodeCache) {
+    public ApicEventForwader (EventForwarder eventForwarder, ApicDnResolver dnResolver) {
+        this(eventForwarder, dnResolver, null, null);
+    }
+
+    /**
+     * @param dedupCache
+     *            skips records already forwarded, may be null
+     * @param flapDamper
+     *            holds back faults that keep toggling, may be null
+     */
+    public ApicEventForwader (EventForwarder eventForwarder, ApicDnResolver dnResolver, FaultDedupCache dedupCache,
+                              FlapDamper flapDamper) {
         this.eventForwarder = eventForwarder;
-        this.nodeCache = nodeCache;
+        this.dnResolver = dnResolver;
+        this.dedupCache = dedupCache;
+        this.flapDamper = flapDamper;
         
 //        Logging.putPrefix("aci");
         
 //        localAddr = InetAddressUtils.getLocalHostName();
     }
     
+    /**
+     * @return the forwarder events are handed to
+     */
+    public EventForwarder getEventForwarder() {
+        return eventForwarder;
+    }
+
+    /**
+     * @return the resolver of fault nodes
+     */
+    public ApicDnResolver getDnResolver() {
+        return dnResolver;
+    }
+
+    /**
+     * @param clock
+     *            offset of the APIC's clock, to move created times onto the
+     *            local one, may be null
+     */
+    public void setClock(ApicClockEstimator clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return the flap damper, may be null
+     */
+    public FlapDamper getFlapDamper() {
+        return flapDamper;
+    }
+
+    /**
+     * @return the dedup cache, may be null
+     */
+    public FaultDedupCache getDedupCache() {
+        return dedupCache;
+    }
+
     public void sendEvent(String clusterName, String apicHost, String jsonMessage) {
 
         LOG.debug("ACI: sendEvent clusterName: {} apicHost: {} jsonMessage: {}", clusterName, apicHost, jsonMessage);
         
         try {
-            final JSONParser parser = new JSONParser();
-            //TODO - Implement processing event
-            JSONObject result = (JSONObject) parser.parse(jsonMessage);
-            JSONArray imdata = (JSONArray) result.get("imdata");
-
-            for (Object object : imdata) {
-                JSONObject objectData = (JSONObject) object;
-                if (objectData == null)
-                    continue;
-                
-                for (Object object2 : objectData.keySet()) {
-                    String key = (String) object2;
-                    JSONObject classData = (JSONObject) objectData.get(key);
-                    JSONObject attributes = (JSONObject) classData.get("attributes");
-                    if (attributes == null)
-                        continue;
-                    
-                    Date createDate = null;
-                    String created = (String) attributes.get("created");
-                    if (created != null) {
-                        try {
-                            String[] startTimeparts = created.split("T");
-                            String onlydate = startTimeparts[0];
-                            String onlytimewtz = startTimeparts[1];
-                            String onlytime = onlytimewtz.substring(0,
-                                                                    onlytimewtz.length()
-                                                                            - 6);
-                            String onlytz = onlytimewtz.substring(onlytimewtz.length()
-                                    - 6);
-                            String tz = onlytz.replace(":", "");
-
-                            createDate = ApicService.format.parse(onlydate + "T" + onlytime
-                                    + tz);
-                        } catch (Throwable e) {
-                            LOG.warn("ACI: Failed to parse created attribute", e);
-                            createDate = null;
-                        }
-                    }
-                    
-                    Date today = new Date();
-                    if (createDate == null || createDate.after(today))
-                        createDate = today;
-
-                    final InMemoryEvent event = ConvertToEvent.toEventBuilder(nodeCache, clusterName, createDate, attributes, apicHost);
-
-                    if (event != null) {
+            for (FaultRecord record : parse(jsonMessage))
+                sendEvent(clusterName, apicHost, record);
+        } catch (Throwable e) {
+            LOG.error("ACI: Failure sending message of {} chars: {}", jsonMessage.length(), abbreviate(jsonMessage), e);
+            LOG.debug("ACI: Failed message: {}", jsonMessage);
+        }
+    }
+
+    private static String abbreviate(String message) {
+        if (message.length() <= MAX_LOGGED_MESSAGE)
+            return message;
+        return message.substring(0, MAX_LOGGED_MESSAGE) + "...";
+    }
+
+    /**
+     * Split a websocket message into the managed objects it carries, in
+     * message order.
+     *
+     * @param jsonMessage
+     *            the message as received
+     * @return the record of each managed object
+     * @throws ParseException
+     *             if the message is not valid JSON
+     */
+    public List<FaultRecord> parse(String jsonMessage) throws ParseException {
+        List<FaultRecord> records = new ArrayList<>(1);
+        ACIRestClient.decodeFaults(jsonMessage, records::add);
+        return records;
+    }
+
+    /**
+     * Hand over the managed objects of a websocket message while it is
+     * still being read, in message order, along with the subscriptions they
+     * were pushed for.
+     *
+     * @param message
+     *            the message stream, left open
+     * @param consumer
+     *            receives each record as soon as it is decoded
+     * @return the number of records
+     * @throws IOException
+     *             if the message could not be read
+     * @throws ParseException
+     *             if the message is not valid JSON
+     */
+    public int parse(Reader message, SubscriptionRecordConsumer consumer) throws IOException, ParseException {
+        return ACIRestClient.decodeNotification(message, consumer);
+    }
+
+    /**
+     * Convert a single managed object into an event and forward it.
+     *
+     * @param clusterName
+     *            the cluster the object was received from
+     * @param apicHost
+     *            the APIC the object was received from
+     * @param record
+     *            the object
+     */
+    public void sendEvent(String clusterName, String apicHost, FaultRecord record) {
+        if (dedupCache != null && dedupCache.isDuplicate(clusterName, record)) {
+            LOG.trace("ACI: Skipping duplicate record: {}", record);
+            return;
+        }
+
+        if (flapDamper != null && !flapDamper.admit(record, System.currentTimeMillis())) {
+            LOG.trace("ACI: Holding back flapping record: {}", record);
+            return;
+        }
+
+        forward(clusterName, apicHost, record);
+    }
+
+    /**
+     * Report faults suppressed for flapping and release the ones that
+     * calmed down. To be called about once a second.
+     *
+     * @param clusterName
+     *            the cluster the faults were received from
+     * @param apicHost
+     *            the APIC the faults were received from
+     */
+    public void tick(String clusterName, String apicHost) {
+        if (flapDamper == null)
+            return;
+
+        flapDamper.tick(System.currentTimeMillis(), new FlapDamper.Listener() {
+            @Override
+            public void onFlapping(FaultRecord last, int transitions) {
+                try {
+                    InMemoryEvent event = ConvertToEvent.toFlappingEvent(dnResolver, clusterName, last, apicHost, transitions);
+                    if (event != null)
                         eventForwarder.sendAsync(event);
-                    }
+                } catch (java.text.ParseException e) {
+                    LOG.warn("ACI: Skipping flapping summary of invalid record: " + last.toJSONString(), e);
                 }
             }
-        } catch (Throwable e) {
-            LOG.error("ACI: Failure sending message:\n" + jsonMessage + "\n", e);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("ACI: Excpetion stack: ", e);
+
+            @Override
+            public void onStable(FaultRecord last) {
+                forward(clusterName, apicHost, last);
             }
+        });
+    }
+
+    /**
+     * Convert an object pushed by any subscription other than the fault one
+     * into an event and forward it. Only records with an id are
+     * deduplicated, and none are flap damped.
+     *
+     * @param clusterName
+     *            the cluster the object was received from
+     * @param apicHost
+     *            the APIC the object was received from
+     * @param record
+     *            the object
+     */
+    public void sendRecord(String clusterName, String apicHost, FaultRecord record) {
+        // Records pushed by both sessions of a handover carry the same id
+        if (record.getId() != null && dedupCache != null && dedupCache.isDuplicate(clusterName, record)) {
+            LOG.trace("ACI: Skipping duplicate {}: {}", record.getMoClass(), record);
+            return;
         }
+
+        try {
+            final InMemoryEvent event = ConvertToEvent.toRecordEvent(dnResolver, clusterName, createDate(record), record, apicHost);
+
+            if (event != null) {
+                eventForwarder.sendAsync(event);
+            }
+        } catch (java.text.ParseException e) {
+            LOG.warn("ACI: Skipping {} with invalid attributes: {}", record.getMoClass(), record.toJSONString(), e);
+        }
+    }
+
+    private void forward(String clusterName, String apicHost, FaultRecord record) {
+        try {
+            final InMemoryEvent event = ConvertToEvent.toEventBuilder(dnResolver, clusterName, createDate(record), record, apicHost);
+
+            if (event != null) {
+                eventForwarder.sendAsync(event);
+            }
+        } catch (java.text.ParseException e) {
+            LOG.warn("ACI: Skipping record with invalid attributes: " + record.toJSONString(), e);
+        }
+    }
+
+    private Date createDate(FaultRecord record) {
+        Date createDate = null;
+        String created = record.getCreated();
+        if (created != null) {
+            try {
+                long createdMillis = ApicTimestampCodec.parse(created);
+                // Created is on the APIC's clock, events are on ours
+                ApicClockEstimator clock = this.clock;
+                createDate = new Date(clock != null ? clock.toLocalMillis(createdMillis) : createdMillis);
+            } catch (Throwable e) {
+                LOG.warn("ACI: Failed to parse created attribute", e);
+                createDate = null;
+            }
+        }
+        
+        Date today = new Date();
+        if (createDate == null || createDate.after(today))
+            createDate = today;
+        return createDate;
     }
     
 }
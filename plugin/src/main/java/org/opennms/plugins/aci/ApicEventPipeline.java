@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.opennms.plugins.aci.client.FaultRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands fault records received over the websocket to a fixed set of worker
+ * threads.
+ *
+ * Records are partitioned by the hash of their affected DN, and every
+ * partition is worked off by a single thread from a bounded queue, so records
+ * of the same object are always processed in the order they were received
+ * while different objects are spread over all workers. What happens when a
+ * partition's queue is full is decided by the {@link OverflowPolicy}.
+ *
+ * @author metispro
+ */
+public class ApicEventPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApicEventPipeline.class);
+
+    /**
+     * Behaviour when the queue of a partition is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for room, pushing back on the websocket reader. Nothing is lost. */
+        BLOCK,
+        /** Discard the oldest queued record of the partition. */
+        DROP_OLDEST,
+        /** Discard the record being submitted. */
+        DROP_NEWEST
+    }
+
+    public static final int DEFAULT_PARTITIONS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+
+    private static final long POLL_MILLIS = 500;
+
+    /** Log every n-th dropped record, the first one included. */
+    private static final long DROP_LOG_INTERVAL = 1000;
+
+    private final String name;
+    private final Consumer<FaultRecord> handler;
+    private final OverflowPolicy overflowPolicy;
+    private final int queueCapacity;
+    private final Partition[] partitions;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean running = false;
+
+    public ApicEventPipeline(String name, Consumer<FaultRecord> handler) {
+        this(name, DEFAULT_PARTITIONS, DEFAULT_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY, handler);
+    }
+
+    public ApicEventPipeline(String name, int partitions, int queueCapacity, OverflowPolicy overflowPolicy,
+                             Consumer<FaultRecord> handler) {
+        if (partitions < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("partitions and queueCapacity must be at least 1");
+        this.name = name;
+        this.handler = handler;
+        this.overflowPolicy = overflowPolicy;
+        this.queueCapacity = queueCapacity;
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++)
+            this.partitions[i] = new Partition(i);
+    }
+
+    /**
+     * Start the worker threads.
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        for (Partition partition : partitions)
+            partition.start();
+    }
+
+    /**
+     * Queue a record for processing.
+     *
+     * @param record
+     *            the record
+     * @return false if the record was dropped
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in
+     *             {@link OverflowPolicy#BLOCK} mode
+     */
+    public boolean submit(FaultRecord record) throws InterruptedException {
+        if (!running) {
+            drop();
+            return false;
+        }
+        submitted.incrementAndGet();
+        BlockingQueue<FaultRecord> queue = partitionFor(record).queue;
+        if (queue.offer(record))
+            return true;
+
+        switch (overflowPolicy) {
+        case BLOCK:
+            blocked.incrementAndGet();
+            while (!queue.offer(record, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!running) {
+                    drop();
+                    return false;
+                }
+            }
+            return true;
+        case DROP_OLDEST:
+            while (!queue.offer(record)) {
+                if (queue.poll() != null)
+                    drop();
+            }
+            return true;
+        case DROP_NEWEST:
+        default:
+            drop();
+            return false;
+        }
+    }
+
+    private void drop() {
+        long count = dropped.incrementAndGet();
+        if (count % DROP_LOG_INTERVAL == 1)
+            LOG.warn("ACI: Event pipeline {} is full ({}), {} record(s) dropped so far", name, overflowPolicy, count);
+    }
+
+    private Partition partitionFor(FaultRecord record) {
+        String key = record.getAffectedOrDn();
+        int hash = key == null ? 0 : key.hashCode();
+        // Spread the bits, DNs of one fabric share long prefixes
+        hash ^= (hash >>> 16);
+        return partitions[(hash & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    /**
+     * Stop accepting records, let the workers finish what is queued and stop
+     * them.
+     *
+     * @param timeoutMillis
+     *            how long to wait for the queues to drain before the workers
+     *            are interrupted
+     */
+    public void close(long timeoutMillis) {
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Partition partition : partitions) {
+            try {
+                partition.worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (partition.worker.isAlive()) {
+                LOG.warn("ACI: Event pipeline {} worker {} still busy, interrupting with {} record(s) queued",
+                         name, partition.index, partition.queue.size());
+                partition.worker.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return records accepted so far
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return records handed to the handler
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return records lost to the overflow policy or submitted after close
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return submissions that had to wait for room
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    /**
+     * @return records the handler failed on
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return records currently queued over all partitions
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Partition partition : partitions)
+            queued += partition.queue.size();
+        return queued;
+    }
+
+    /**
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return "ApicEventPipeline{" +
+                "partitions=" + partitions.length +
+                ", capacity=" + queueCapacity +
+                ", policy=" + overflowPolicy +
+                ", queued=" + getQueued() +
+                ", submitted=" + submitted +
+                ", processed=" + processed +
+                ", dropped=" + dropped +
+                ", blocked=" + blocked +
+                ", failed=" + failed +
+                '}';
+    }
+
+    private class Partition implements Runnable {
+        private final int index;
+        private final BlockingQueue<FaultRecord> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final Thread worker;
+
+        private Partition(int index) {
+            this.index = index;
+            this.worker = new Thread(this, "aci-events-" + name + "-" + index);
+            this.worker.setDaemon(true);
+        }
+
+        private void start() {
+            worker.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running || !queue.isEmpty()) {
+                    FaultRecord record = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (record == null)
+                        continue;
+                    try {
+                        handler.accept(record);
+                        processed.incrementAndGet();
+                    } catch (Throwable e) {
+                        failed.incrementAndGet();
+                        LOG.error("ACI: Failed to process record on {}: {}", worker.getName(), record, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.debug("ACI: Event pipeline worker {} interrupted", worker.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Small pool of daemon threads running the periodic work of all APIC
+ * clusters: connecting, refreshing subscriptions, flap damping and the
+ * health checks of the service. Nothing here sleeps between rounds.
+ *
+ * @author metispro
+ */
+public class ApicScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApicScheduler.class);
+
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * A task rescheduled with a fresh random delay after every run.
+     */
+    public final class JitteredTask implements Runnable {
+
+        private final String name;
+        private final Runnable task;
+        private final LongSupplier periodMillis;
+        private final double jitter;
+
+        private volatile ScheduledFuture<?> next;
+        private volatile boolean cancelled = false;
+
+        private JitteredTask(String name, Runnable task, LongSupplier periodMillis, double jitter) {
+            this.name = name;
+            this.task = task;
+            this.periodMillis = periodMillis;
+            this.jitter = jitter;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+            try {
+                task.run();
+            } catch (Throwable e) {
+                LOG.warn("ACI: Scheduled task {} failed", name, e);
+            }
+            schedule(nextDelay(periodMillis.getAsLong()));
+        }
+
+        private long nextDelay(long period) {
+            long spread = (long) (period * jitter);
+            return spread <= 0 ? period : period - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+        }
+
+        private synchronized void schedule(long delayMillis) {
+            if (cancelled || executor.isShutdown())
+                return;
+            next = executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stop running the task, a run in progress is completed.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (next != null)
+                next.cancel(false);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public ApicScheduler() {
+        this(DEFAULT_THREADS);
+    }
+
+    public ApicScheduler(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "aci-scheduler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Run a task once, as soon as a thread is free.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Run a task at a fixed rate.
+     *
+     * @param initialDelayMillis
+     *            delay of the first run
+     * @param periodMillis
+     *            time between the starts of two runs
+     * @return the future cancelling the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        return executor.scheduleAtFixedRate(task, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task periodically, each delay drawn at random around the period.
+     * The first run happens at a random point within the first period, so
+     * tasks of many clusters scheduled together spread out.
+     *
+     * @param name
+     *            the name used in logs
+     * @param periodMillis
+     *            supplies the mean time between runs, asked again after each
+     *            run
+     * @param jitter
+     *            fraction of the period a delay may deviate by, e.g. 0.1
+     * @return the handle cancelling the task
+     */
+    public JitteredTask scheduleWithJitter(String name, Runnable task, LongSupplier periodMillis, double jitter) {
+        JitteredTask jittered = new JitteredTask(name, task, periodMillis, jitter);
+        long period = periodMillis.getAsLong();
+        jittered.schedule(period <= 1 ? period : ThreadLocalRandom.current().nextLong(1, period));
+        return jittered;
+    }
+
+    /**
+     * Stop all tasks, waiting briefly for running ones.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+                LOG.warn("ACI: Scheduler did not stop within 5 seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ApicScheduler{" +
+                "threads=" + executor.getPoolSize() +
+                ", active=" + executor.getActiveCount() +
+                ", scheduled=" + executor.getQueue().size() +
+                ", completed=" + executor.getCompletedTaskCount() +
+                '}';
+    }
+}
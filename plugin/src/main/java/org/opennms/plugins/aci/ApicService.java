@@ -28,12 +28,14 @@
 
 package org.opennms.plugins.aci;
 
-import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Map;
 
 import org.opennms.integration.api.v1.dao.NodeDao;
 import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.events.EventSubscriptionService;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
+import org.opennms.plugins.aci.client.ApicCheckpointStore;
 import org.opennms.plugins.aci.config.SouthCluster;
 import org.opennms.plugins.aci.dao.southbound.SouthboundConfigDao;
 import org.slf4j.Logger;
@@ -46,8 +48,6 @@ public class ApicService {
     
     private static final Logger LOG = LoggerFactory.getLogger(ApicService.class);
 
-    static final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-    
     public static final String DN_SEP = "/";
     
     public static final String FS_SEP = "~";
@@ -61,11 +61,13 @@ public class ApicService {
     public final static String APIC_CONFIG_POLL_DURATION_KEY = "pollDuration";
     public final static String APIC_CONFIG_EVENT_FORWARDER = "EventForwarder";
     public final static String APIC_CONFIG_EVENT_DAO = "EventDao";
-    public final static String APIC_CONFIG_NODE_CACHE = "NodeCache";
+    public final static String APIC_CONFIG_DN_RESOLVER = "DnResolver";
     public final static String APIC_CONFIG_CLUSTER_MAP = "ClusterMap";
     public final static String APIC_CONFIG_LOCAL_ADDR = "localAddr";
-    
-    public final static String APIC_CLUSTER_MAP_LAST_PROCESS_TIME = "lastProcessTime";
+    public final static String APIC_CONFIG_CLIENT_REGISTRY = "ClientRegistry";
+    public final static String APIC_CONFIG_CHECKPOINT_STORE = "CheckpointStore";
+    public final static String APIC_CONFIG_BATCHING_FORWARDERS = "BatchingForwarders";
+    public final static String APIC_CONFIG_DEDUP_CACHE = "DedupCache";
     
     private EventForwarder eventForwarder;
     
@@ -75,17 +77,29 @@ public class ApicService {
     
     private static ApicServiceManager apicServiceManager;
 
-    public ApicService(SouthboundConfigDao southboundConfigDao, EventForwarder eventForwarder, NodeDao nodeDao) {
+    private static ACIRestClientRegistry clientRegistry;
+
+    private final ApicCheckpointStore checkpointStore;
+
+    private final EventSubscriptionService eventSubscriptionService;
+
+    public ApicService(SouthboundConfigDao southboundConfigDao, EventForwarder eventForwarder, NodeDao nodeDao,
+                       ACIRestClientRegistry clientRegistry, ApicCheckpointStore checkpointStore,
+                       EventSubscriptionService eventSubscriptionService) {
         this.southboundConfigDao = southboundConfigDao;
         this.eventForwarder = eventForwarder;
         this.nodeDao = nodeDao;
+        this.checkpointStore = checkpointStore;
+        this.eventSubscriptionService = eventSubscriptionService;
+        ApicService.clientRegistry = clientRegistry;
     }
 
     public void init() {
         LOG.info("ACI: Initializaing ApicService ...");
 
         List<SouthCluster> clusters = this.southboundConfigDao.getSouthboundClusters();
-        apicServiceManager = new ApicServiceManager(eventForwarder, nodeDao, clusters);
+        apicServiceManager = new ApicServiceManager(eventForwarder, nodeDao, clusters, clientRegistry, checkpointStore,
+                                                     eventSubscriptionService);
         apicServiceManager.start();
         
         LOG.info("ACI: Finished initializing ApicService");
@@ -97,27 +111,6 @@ public class ApicService {
 
         if (apicServiceManager != null)
             apicServiceManager.shutdown();
-        
-        long waitStart = System.currentTimeMillis();
-        while(apicServiceManager.isAlive() &&
-              (System.currentTimeMillis() - waitStart) < 120000) {
-            LOG.info("ACI: Gracefully shutting down ...");
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            
-            if ((System.currentTimeMillis() - waitStart) >= 30000) {
-                //If still running after 30 seconds, forcefully stop
-                LOG.warn("ACI: Forcefully stopping ApicServiceManager");
-                apicServiceManager.destroy();
-                apicServiceManager.interrupt();
-            }
-        }
-
-        if (apicServiceManager.isAlive() && !apicServiceManager.isShutdown())
-            LOG.warn("ACI: Failed to stop ApicServiceManager thread!");
 
         LOG.info("ACI: Service stopped");
     }
@@ -148,6 +141,13 @@ public class ApicService {
         this.nodeDao = nodeDao;
     }
 
+    /**
+     * @return the registry of shared APIC clients
+     */
+    public static ACIRestClientRegistry getClientRegistry() {
+        return clientRegistry;
+    }
+
     /**
      * @return the apicServiceManager
      */
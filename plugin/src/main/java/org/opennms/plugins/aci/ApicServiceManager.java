@@ -28,14 +28,29 @@
 
 package org.opennms.plugins.aci;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opennms.integration.api.v1.dao.NodeDao;
 import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.events.EventSubscriptionService;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
+import org.opennms.plugins.aci.client.ApicCheckpointStore;
 import org.opennms.plugins.aci.config.SouthCluster;
 import org.opennms.plugins.aci.config.SouthElement;
 import org.quartz.JobBuilder;
@@ -53,11 +68,20 @@ import org.slf4j.LoggerFactory;
  * @author metispro
  *
  */
-public class ApicServiceManager extends Thread {
+public class ApicServiceManager {
     
     private static final Logger LOG = LoggerFactory.getLogger(ApicServiceManager.class);
     
-    private static final int restartDuration = 14400000; // 6 hours in millis
+    private static final long BATCHER_DRAIN_MILLIS = 10000;
+
+    /** Time between health checks of the websocket clusters */
+    private static final long CHECK_MILLIS = 5000;
+
+    /** Time a new session gets to connect, subscribe and backfill before it is given up */
+    private static final long CONNECT_TIMEOUT_MILLIS = 120000;
+
+    /** Sessions connecting or backfilling at the same time, the rest wait their turn */
+    private static final int CONNECT_THREADS = 4;
     
     private final EventForwarder eventForwarder;
     
@@ -65,76 +89,167 @@ public class ApicServiceManager extends Thread {
     
     private final List<SouthCluster> clusters;
 
+    private final ACIRestClientRegistry clientRegistry;
+
+    private final ApicCheckpointStore checkpointStore;
+
+    private final EventSubscriptionService eventSubscriptionService;
+
     private Scheduler scheduler = null;
+
+    /** Refreshes and checks the websocket clusters, shared by all of them; short tasks only */
+    private final ApicScheduler taskScheduler = new ApicScheduler();
+
+    /**
+     * Initializes the service, connects, backfills and tears down the
+     * websocket clusters; all of it blocks on the APICs or drains queues
+     */
+    private final ExecutorService connectExecutor = newConnectExecutor();
+
+    private ScheduledFuture<?> checkTask;
     
     private Map<String, Map<String, Object>> clusterMap;
     
     public static Map<String, ApicClusterManager> clusterManagers;
+
+    /** New sessions taking over from the cluster managers, by cluster name */
+    private final Map<String, ApicClusterManager> successors = new ConcurrentHashMap<>();
+
+    /** Managers handed over or given up, shut down on the connect executor */
+    private final Set<ApicClusterManager> retiring = ConcurrentHashMap.newKeySet();
+
+    /** Last processed fault per cluster, outlives the cluster managers */
+    private final Map<String, ApicWatermark> watermarks = new ConcurrentHashMap<>();
+
+    /** Forwarded faults of all clusters, outlives the cluster managers */
+    private final FaultDedupCache dedupCache = new FaultDedupCache();
+
+    /** Flap damping per cluster, outlives the cluster managers */
+    private final Map<String, FlapDamper> flapDampers = new ConcurrentHashMap<>();
+
+    /** Half-life and suppress limit each damper was built with, by cluster name */
+    private final Map<String, List<Integer>> flapSettings = new ConcurrentHashMap<>();
+
+    /** Event batching per cluster, outlives the cluster managers */
+    private final Map<String, BatchingEventForwarder> batchingForwarders = new ConcurrentHashMap<>();
+
+    /** Node lookups of all clusters, outlive the cluster managers */
+    private volatile NodeCache nodeCache;
+
+    /** Maps fault DNs to nodes of the shared cache */
+    private volatile ApicDnResolver dnResolver;
     
     private String localAddr;
     
-    private boolean shutdown = false;
+    private volatile boolean shutdown = false;
     
-    public ApicServiceManager(EventForwarder eventForwarder, NodeDao nodeDao, List<SouthCluster> clusters) {
-        super();
+    public ApicServiceManager(EventForwarder eventForwarder, NodeDao nodeDao, List<SouthCluster> clusters,
+                              ACIRestClientRegistry clientRegistry, ApicCheckpointStore checkpointStore,
+                              EventSubscriptionService eventSubscriptionService) {
         this.eventForwarder = eventForwarder;
         this.nodeDao = nodeDao;
         this.clusters = clusters;
+        this.clientRegistry = clientRegistry;
+        this.checkpointStore = checkpointStore;
+        this.eventSubscriptionService = eventSubscriptionService;
     }
 
-    /* (non-Javadoc)
-     * @see java.lang.Runnable#run()
+    /**
+     * Initialize the service on the connect executor, then check the
+     * websocket clusters periodically on the shared scheduler.
      */
-    @Override
-    public void run() {
+    public void start() {
         if (clusters == null || clusters.size() < 1) {
             LOG.warn("No Southbound Clusters configured.");
             return;
         }
 
-        long start = System.currentTimeMillis();
-        
-        //Initialize service
-        init();
+        connectExecutor.execute(() -> {
+            synchronized (this) {
+                if (shutdown)
+                    return;
 
-        boolean restarted = false;
-        while (!shutdown) {
-            
-            for (SouthCluster southCluster : clusters) {
-                if (southCluster.getPollDurationMinutes() == 0) {
-                    if (System.currentTimeMillis() - start >= restartDuration) {
-                        restarted = true;
-                        try {
-                            LOG.info("ACI: Restarting Cluster Mangaer for APIC: " + southCluster.getClusterName());
-                            this.restartClusterManager(southCluster.getClusterName());
-                        } catch (ApicClusterNotFoundException e) {
-                            LOG.info("ACI: No Cluster Mangaer found for APIC: " + southCluster.getClusterName());
-                        }
-                    } else {
-                        // Websocket, check thread
-                        this.checkClusterManager(southCluster);
-                    }
+                //Initialize service
+                init();
 
-                }
+                checkTask = taskScheduler.scheduleAtFixedRate(this::checkClusters, CHECK_MILLIS, CHECK_MILLIS);
             }
-            
-            if (restarted) {
-                start = System.currentTimeMillis();
-                restarted = false;
-            }
-            
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        });
+    }
+
+    private void checkClusters() {
+        if (shutdown)
+            return;
+
+        for (SouthCluster southCluster : clusters) {
+            if (southCluster.getPollDurationMinutes() != 0)
+                continue;
+
+            String clusterName = southCluster.getClusterName();
+            ApicClusterManager successor = successors.get(clusterName);
+            if (successor != null) {
+                this.completeHandover(clusterName, successor);
+                continue;
             }
+
+            // Websocket, check manager
+            ApicClusterManager current = clusterManagers.get(clusterName);
+            String reason = current != null ? current.getHandoverReason() : null;
+            if (reason != null)
+                this.beginHandover(southCluster, reason);
+            else
+                this.checkClusterManager(southCluster);
         }
-        
-        //Destroy Service
-        destroy();
+    }
 
+    /**
+     * Open and subscribe a new session next to the running one. It buffers
+     * live records while backfilling from the shared watermark, which also
+     * drops what both sessions deliver.
+     */
+    private void beginHandover(SouthCluster southCluster, String reason) {
+        LOG.info("ACI: Handing {} over to a new session: {}", southCluster.getClusterName(), reason);
+        try {
+            ApicClusterManager successor = newClusterManager(southCluster);
+            successors.put(southCluster.getClusterName(), successor);
+            successor.start();
+        } catch (Exception e) {
+            LOG.error("ACI: Failed to open new session for cluster: " + southCluster.getClusterName(), e);
+        }
+    }
+
+    /**
+     * Cut over to the new session once it is live, then close the old one.
+     * A new session failing to come up is dropped, the old one stays.
+     */
+    private void completeHandover(String clusterName, ApicClusterManager successor) {
+        if (successor.isLive()) {
+            successors.remove(clusterName);
+            final ApicClusterManager previous = clusterManagers.put(clusterName, successor);
+            LOG.info("ACI: Handed {} over to a new session after {} ms", clusterName,
+                     System.currentTimeMillis() - successor.getStartedAt());
+            // Draining the old pipelines may take a while, keep it off the scheduler
+            if (previous != null)
+                retire(previous);
+        } else if (!successor.isAlive()
+                || System.currentTimeMillis() - successor.getStartedAt() > CONNECT_TIMEOUT_MILLIS) {
+            successors.remove(clusterName);
+            LOG.warn("ACI: New session of {} did not come up, keeping the current one", clusterName);
+            retire(successor);
+        }
     }
     
+    private void retire(ApicClusterManager clusterManager) {
+        retiring.add(clusterManager);
+        connectExecutor.execute(() -> {
+            try {
+                clusterManager.shutdown();
+            } finally {
+                retiring.remove(clusterManager);
+            }
+        });
+    }
+
     /**
      * Helper method for gracefully stopping a Apic Cluster Manager for given cluster name.
      * @param clusterName
@@ -151,6 +266,9 @@ public class ApicServiceManager extends Thread {
         }
         
         LOG.info("ACI: Stopping clusterManager: {}", clusterName);
+        ApicClusterManager successor = successors.remove(clusterName);
+        if (successor != null)
+            successor.shutdown();
         clusterManagerThread.shutdown();
     }
     
@@ -186,21 +304,26 @@ public class ApicServiceManager extends Thread {
     
     /**
      * Helper method for restarting an APIC cluster manager for given cluster name.
+     * A live websocket is handed over to a new session without a gap.
      * @param clusterName
      * @throws ApicClusterNotFoundException
      */
     public void restartClusterManager(String clusterName) throws ApicClusterNotFoundException {
         if (clusterName == null)
             return;
+
+        ApicClusterManager current = clusterManagers.get(clusterName);
+        if (current != null && current.isLive()) {
+            for (SouthCluster southCluster : clusters) {
+                if (clusterName.equals(southCluster.getClusterName())) {
+                    if (!successors.containsKey(clusterName))
+                        this.beginHandover(southCluster, "restart requested");
+                    return;
+                }
+            }
+        }
        
         this.stopClusterManager(clusterName);
-        //Sleep for 5 seconds to give everything time to shutdown
-        try {
-            Thread.sleep(5000);
-        } catch (InterruptedException e) {
-            // DOn't care
-        }
-        
         //Check and start
         this.startClusterManager(clusterName);
     }
@@ -214,24 +337,22 @@ public class ApicServiceManager extends Thread {
         if (clusterManagerThread != null && clusterManagerThread.isShutdown())
             return;
         
-        if (clusterManagerThread == null || 
-                !clusterManagerThread.isAlive() || !clusterManagerThread.isRunning()) {
+        // A live manager that lost its websocket closes itself, one still connecting gets some time
+        if (clusterManagerThread == null || !clusterManagerThread.isAlive()
+                || (!clusterManagerThread.isRunning()
+                    && System.currentTimeMillis() - clusterManagerThread.getStartedAt() > CONNECT_TIMEOUT_MILLIS)) {
             if (clusterManagerThread != null && !clusterManagerThread.isShutdown()) {
                 LOG.info("ACI: APIC cluster thread {} is dead ... restarting", southCluster.getClusterName());
                 //Let's try cleaning up
-                clusterManagerThread.interrupt();
+                clusterManagerThread.close();
             } else {
                 LOG.info("ACI: Starting APIC cluster thread: {}", southCluster.getClusterName());
             }
-            NodeCache nodeCache = new NodeCache();
-            nodeCache.setNodeDao(nodeDao);
-            nodeCache.init();
-            ApicEventForwader apicEventForwarder = new ApicEventForwader(eventForwarder, nodeCache);
             try {
-                ApicClusterManager apicClusterManager = new ApicClusterManager(apicEventForwarder, southCluster);
-                //Create and start thread
-                apicClusterManager.start();
+                ApicClusterManager apicClusterManager = newClusterManager(southCluster);
                 clusterManagers.put(southCluster.getClusterName(), apicClusterManager);
+                //Connects on the shared scheduler
+                apicClusterManager.start();
             } catch (Exception e) {
                 LOG.error("Error starting ApicClusterManager for cluster: " + southCluster.getClusterName(), e);
                 e.printStackTrace();
@@ -244,6 +365,31 @@ public class ApicServiceManager extends Thread {
         }
     }
     
+    /**
+     * Create the manager of a websocket cluster. Managers of the same
+     * cluster share its watermark, dedup cache, flap damper and batching.
+     */
+    private ApicClusterManager newClusterManager(SouthCluster southCluster) throws Exception {
+        ApicEventForwader apicEventForwarder = new ApicEventForwader(batchingForwarderFor(southCluster.getClusterName()),
+                dnResolverFor(southCluster.getClusterName()), dedupCache,
+                flapDamperFor(southCluster));
+        return new ApicClusterManager(apicEventForwarder, southCluster, clientRegistry,
+                watermarks.computeIfAbsent(southCluster.getClusterName(), k -> new ApicWatermark(checkpointStore, k)),
+                taskScheduler, connectExecutor);
+    }
+
+    private static ExecutorService newConnectExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "aci-connect-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private void init() {
         LOG.debug("ACI: Initializing ApicServiceManager ...");
         try {
@@ -252,7 +398,16 @@ public class ApicServiceManager extends Thread {
             localAddr = "localhost";
         }
         clusterMap = new HashMap<String, Map<String, Object>>();
-        clusterManagers = new HashMap<String, ApicClusterManager>();
+        clusterManagers = new ConcurrentHashMap<String, ApicClusterManager>();
+
+        if (nodeCache == null) {
+            nodeCache = new NodeCache();
+            nodeCache.setNodeDao(nodeDao);
+            nodeCache.setEventSubscriptionService(eventSubscriptionService);
+            nodeCache.init();
+            nodeCache.loadSnapshot(nodeCacheSnapshot());
+            dnResolver = new ApicDnResolver(nodeCache);
+        }
         
         if (scheduler != null) {
             try {
@@ -293,16 +448,12 @@ public class ApicServiceManager extends Thread {
                 }
             }
         }
-        //Let's wait and allow all threads to finish starting up.
-        try {
-            Thread.sleep(clusterManagers.size() * 1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
     }
     
-    public void destroy() {
+    public synchronized void destroy() {
         LOG.debug("ACI: Destroying ApicServiceManager ...");
+        if (checkTask != null)
+            checkTask.cancel(false);
         try {
             if (scheduler != null)
                 scheduler.shutdown(true);
@@ -310,16 +461,110 @@ public class ApicServiceManager extends Thread {
             LOG.debug("ACI: Error shutting down scheduler", e);
         }
 
-        for (String key : clusterManagers.keySet()) {
-            LOG.debug("ACI: Stopping clusterManager: {}", key);
-            clusterManagers.get(key).stop();
-            clusterManagers.remove(key);
+        for (String key : successors.keySet()) {
+            ApicClusterManager successor = successors.remove(key);
+            if (successor != null)
+                successor.shutdown();
+        }
+
+        if (clusterManagers != null) {
+            for (String key : clusterManagers.keySet()) {
+                LOG.debug("ACI: Stopping clusterManager: {}", key);
+                ApicClusterManager clusterManager = clusterManagers.remove(key);
+                if (clusterManager != null)
+                    clusterManager.shutdown();
+            }
+        }
+        taskScheduler.close();
+        connectExecutor.shutdownNow();
+        // Shut down what was still waiting for the connect executor
+        for (ApicClusterManager clusterManager : retiring)
+            clusterManager.shutdown();
+        retiring.clear();
+
+        for (BatchingEventForwarder batchingForwarder : batchingForwarders.values())
+            batchingForwarder.close(BATCHER_DRAIN_MILLIS);
+        batchingForwarders.clear();
+
+        NodeCache cache = nodeCache;
+        nodeCache = null;
+        if (cache != null) {
+            cache.destroy();
+            try {
+                cache.saveSnapshot(nodeCacheSnapshot());
+            } catch (IOException e) {
+                LOG.warn("ACI: Failed to save node cache snapshot", e);
+            }
         }
 
         LOG.info("ACI: Service stopped");
 
     }
 
+    private ApicDnResolver dnResolverFor(String clusterName) {
+        try {
+            // The requisition of a cluster uses its name as foreign source
+            nodeCache.warmUp(clusterName);
+        } catch (Exception e) {
+            LOG.warn("ACI: Failed to preload nodes of {}", clusterName, e);
+        }
+        return dnResolver;
+    }
+
+    private Path nodeCacheSnapshot() {
+        Path directory = checkpointStore != null ? checkpointStore.getDirectory()
+                : Paths.get(System.getProperty("opennms.home", "."), "data", "aci");
+        return directory.resolve(NodeCache.SNAPSHOT_FILE);
+    }
+
+    /**
+     * The cluster's damper, rebuilt when its settings changed since it was
+     * created. Managers still holding the old one keep using it until they
+     * are handed over.
+     */
+    private synchronized FlapDamper flapDamperFor(SouthCluster southCluster) {
+        String clusterName = southCluster.getClusterName();
+        List<Integer> settings = Arrays.asList(southCluster.getFlapHalfLifeSeconds(),
+                                               southCluster.getFlapSuppressLimit());
+        List<Integer> previous = flapSettings.put(clusterName, settings);
+        if (previous != null && !previous.equals(settings)) {
+            LOG.info("ACI: Flap damping settings of {} changed to {}, starting over", clusterName, settings);
+            flapDampers.remove(clusterName);
+        }
+        return flapDampers.computeIfAbsent(clusterName, k -> newFlapDamper(southCluster));
+    }
+
+    private static FlapDamper newFlapDamper(SouthCluster southCluster) {
+        Integer halfLifeSeconds = southCluster.getFlapHalfLifeSeconds();
+        Integer suppressLimit = southCluster.getFlapSuppressLimit();
+        if (halfLifeSeconds != null && halfLifeSeconds < 0) {
+            LOG.warn("ACI: Invalid flap half-life {}s for cluster {}, using the default",
+                     halfLifeSeconds, southCluster.getClusterName());
+            halfLifeSeconds = null;
+        }
+        // A limit not above one transition's penalty would suppress every fault at once
+        if (suppressLimit != null && suppressLimit <= FlapDamper.DEFAULT_PENALTY) {
+            LOG.warn("ACI: Invalid flap suppress limit {} for cluster {}, it must be above {}, using the default",
+                     suppressLimit, southCluster.getClusterName(), (int) FlapDamper.DEFAULT_PENALTY);
+            suppressLimit = null;
+        }
+        if (halfLifeSeconds == null && suppressLimit == null)
+            return new FlapDamper();
+        if (halfLifeSeconds != null && halfLifeSeconds == 0)
+            return null;
+
+        double suppress = suppressLimit != null ? suppressLimit : FlapDamper.DEFAULT_SUPPRESS_LIMIT;
+        long halfLifeMillis = halfLifeSeconds != null ? halfLifeSeconds * 1000L : FlapDamper.DEFAULT_HALF_LIFE_MILLIS;
+        return new FlapDamper(FlapDamper.DEFAULT_PENALTY, suppress,
+                              Math.min(FlapDamper.DEFAULT_REUSE_LIMIT, suppress / 2),
+                              Math.max(FlapDamper.DEFAULT_MAX_PENALTY, suppress * 4),
+                              halfLifeMillis, FlapDamper.DEFAULT_SUMMARY_INTERVAL_MILLIS);
+    }
+
+    private BatchingEventForwarder batchingForwarderFor(String clusterName) {
+        return batchingForwarders.computeIfAbsent(clusterName, k -> new BatchingEventForwarder(k, eventForwarder));
+    }
+
     public void createAndScheduleJob(String location, String apicUrl, String username, String password, int pollDuration) {
         String jobIdentity = ApicClusterJob.class.getSimpleName() + "-" + location;
         LOG.info("Creating job: " + jobIdentity);
@@ -334,13 +579,12 @@ public class ApicServiceManager extends Thread {
                     .storeDurably()
                     .build();
         
-        NodeCache nodeCache = new NodeCache();
-        nodeCache.setNodeDao(nodeDao);
-        nodeCache.init();
+        ApicDnResolver dnResolver = dnResolverFor(location);
         
         Map<String, Object> clusterJobMap = new HashMap<String, Object>();
         
         clusterMap.put(job.getKey().toString(), clusterJobMap);
+        batchingForwarderFor(location);
 
         // Trigger the job to run on the next round minute
         String triggerIdentity = ApicService.class.getSimpleName() + "-Trigger-" + location;
@@ -355,8 +599,13 @@ public class ApicServiceManager extends Thread {
         try {
             scheduler = new StdSchedulerFactory().getScheduler();
             scheduler.getContext().put(ApicService.APIC_CONFIG_EVENT_FORWARDER, eventForwarder);
-            scheduler.getContext().put(ApicService.APIC_CONFIG_NODE_CACHE, nodeCache);
+            // Shared by all clusters, so every job puts the same instance
+            scheduler.getContext().put(ApicService.APIC_CONFIG_DN_RESOLVER, dnResolver);
             scheduler.getContext().put(ApicService.APIC_CONFIG_CLUSTER_MAP, clusterMap);
+            scheduler.getContext().put(ApicService.APIC_CONFIG_CLIENT_REGISTRY, clientRegistry);
+            scheduler.getContext().put(ApicService.APIC_CONFIG_CHECKPOINT_STORE, checkpointStore);
+            scheduler.getContext().put(ApicService.APIC_CONFIG_BATCHING_FORWARDERS, batchingForwarders);
+            scheduler.getContext().put(ApicService.APIC_CONFIG_DEDUP_CACHE, dedupCache);
             scheduler.start();
             
             if (!scheduler.checkExists(job.getKey()))
@@ -375,6 +624,27 @@ public class ApicServiceManager extends Thread {
         return eventForwarder;
     }
 
+    /**
+     * @return the registry of shared APIC clients
+     */
+    public ACIRestClientRegistry getClientRegistry() {
+        return clientRegistry;
+    }
+
+    /**
+     * @return the cache of recently forwarded faults
+     */
+    public FaultDedupCache getDedupCache() {
+        return dedupCache;
+    }
+
+    /**
+     * @return the store of processed fault checkpoints
+     */
+    public ApicCheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
     /**
      * @return the nodeDao
      */
@@ -390,10 +660,11 @@ public class ApicServiceManager extends Thread {
     }
 
     /**
-     * Initiate shutdown of service.
+     * Shut the service down, stopping all clusters.
      */
     public void shutdown() {
         this.shutdown = true;
+        destroy();
     }
 
 }
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ApicMemberSelector;
+import org.opennms.plugins.aci.client.FaultRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One class subscription carried by the websocket of an APIC cluster.
+ * Notifications are routed to it by subscription id, and it hands the
+ * records on to its own pipeline. It also keeps track of its refreshes,
+ * because the APIC drops a subscription that is not refreshed within
+ * {@link #TIMEOUT_SECONDS}.
+ *
+ * @author metispro
+ */
+public class ApicSubscription {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApicSubscription.class);
+
+    public static final String AUDIT_RECORD = "aaaModLR";
+    public static final String HEALTH_INST = "healthInst";
+    public static final String TOP_SYSTEM = "topSystem";
+    public static final String FABRIC_NODE = "fabricNode";
+
+    /** Time the APIC keeps a subscription without a refresh */
+    public static final long TIMEOUT_SECONDS = 90;
+
+    /** Immutable records, subscribed from a created time instead of in full */
+    private static final Set<String> RECORD_CLASSES = new HashSet<>(Arrays.asList(
+            FaultRecord.FAULT_RECORD, FaultRecord.EVENT_RECORD, AUDIT_RECORD));
+
+    /**
+     * Receives the records of a subscription.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(FaultRecord record) throws InterruptedException;
+    }
+
+    private final String moClass;
+    private final ApicEventPipeline pipeline;
+    private final Sink sink;
+
+    private volatile String subscriptionId;
+    private volatile long subscribedAt = -1;
+    private volatile long lastRefresh = -1;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private volatile int missedRefreshes = 0;
+
+    /**
+     * @param moClass
+     *            the class subscribed to
+     * @param pipeline
+     *            the pipeline the records are submitted to
+     */
+    public ApicSubscription(String moClass, ApicEventPipeline pipeline) {
+        this(moClass, pipeline, pipeline::submit);
+    }
+
+    /**
+     * @param moClass
+     *            the class subscribed to
+     * @param pipeline
+     *            the pipeline processing the records, started and closed
+     *            along with the subscription
+     * @param sink
+     *            the entry point of the records, ending up in the pipeline
+     */
+    public ApicSubscription(String moClass, ApicEventPipeline pipeline, Sink sink) {
+        this.moClass = moClass;
+        this.pipeline = pipeline;
+        this.sink = sink;
+    }
+
+    /**
+     * @return whether objects of the class are records with a created time
+     */
+    public static boolean isRecordClass(String moClass) {
+        return RECORD_CLASSES.contains(moClass);
+    }
+
+    /**
+     * @param since
+     *            formatted APIC time the records must be created after,
+     *            ignored for classes that are not records
+     * @return the query registering the subscription
+     */
+    public String getQuery(String since) {
+        StringBuilder query = new StringBuilder("/api/node/class/").append(moClass).append(".json?");
+        if (isRecordClass(moClass) && since != null)
+            query.append("query-target-filter=gt(").append(moClass).append(".created, \"").append(since).append("\")&");
+        return query.append("subscription=yes").toString();
+    }
+
+    /**
+     * Register the subscription on the APIC holding the websocket.
+     *
+     * @param client
+     *            the client whose token opened the websocket
+     * @param member
+     *            the APIC holding the websocket
+     * @param since
+     *            formatted APIC time of the first record to push
+     * @return the subscription id
+     * @throws Exception
+     *             if the APIC refused the subscription
+     */
+    public String subscribe(ACIRestClient client, ApicMemberSelector.Member member, String since) throws Exception {
+        String query = getQuery(since);
+        LOG.debug("ACI: Subscribing to query: {}", query);
+        JSONObject result = client.runQueryNoAuth(query, member);
+        String id = result == null ? null : (String) result.get("subscriptionId");
+        if (id == null)
+            throw new IllegalStateException("APIC " + member + " did not subscribe to " + moClass + ": " + result);
+
+        long now = System.currentTimeMillis();
+        this.subscriptionId = id;
+        this.subscribedAt = now;
+        this.lastRefresh = now;
+        this.missedRefreshes = 0;
+        return id;
+    }
+
+    /**
+     * Refresh the subscription, if subscribed.
+     *
+     * @param client
+     *            the client whose token opened the websocket
+     * @param member
+     *            the APIC holding the websocket
+     * @return false if the refresh failed
+     */
+    public boolean refresh(ACIRestClient client, ApicMemberSelector.Member member) {
+        final String id = this.subscriptionId;
+        if (id == null)
+            return true;
+        long now = System.currentTimeMillis();
+
+        LOG.debug("ACI: Refresh subscription of {} with id: {}", moClass, id);
+        try {
+            client.runQueryNoAuth("/api/subscriptionRefresh.json?id=" + id, member);
+            lastRefresh = now;
+            refreshes.incrementAndGet();
+            missedRefreshes = 0;
+            return true;
+        } catch (Exception e) {
+            refreshFailures.incrementAndGet();
+            missedRefreshes++;
+            LOG.warn("ACI: Failed to refresh subscription of {} with id: {}", moClass, id, e);
+            return false;
+        }
+    }
+
+    /**
+     * Hand over a record pushed for this subscription.
+     */
+    public void onRecord(FaultRecord record) throws InterruptedException {
+        received.incrementAndGet();
+        sink.accept(record);
+    }
+
+    /**
+     * Forget the subscription id, the websocket carrying it is gone.
+     */
+    public void reset() {
+        this.subscriptionId = null;
+    }
+
+    public void start() {
+        pipeline.start();
+    }
+
+    public void close(long timeoutMillis) {
+        pipeline.close(timeoutMillis);
+    }
+
+    /**
+     * @return the subscribed class
+     */
+    public String getMoClass() {
+        return moClass;
+    }
+
+    /**
+     * @return the id assigned by the APIC, null while not subscribed
+     */
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    /**
+     * @return the pipeline processing the records
+     */
+    public ApicEventPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return number of records pushed for the subscription
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return number of successful refreshes
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return number of refreshes failed in a row, 0 after a successful one
+     */
+    public int getMissedRefreshes() {
+        return missedRefreshes;
+    }
+
+    /**
+     * @return number of failed refreshes
+     */
+    public long getRefreshFailureCount() {
+        return refreshFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        long now = System.currentTimeMillis();
+        return "ApicSubscription{" +
+                "class=" + moClass +
+                ", id=" + subscriptionId +
+                ", age=" + (subscribedAt < 0 ? "-" : (now - subscribedAt) / 1000 + "s") +
+                ", lastRefresh=" + (lastRefresh < 0 ? "-" : (now - lastRefresh) / 1000 + "s ago") +
+                ", refreshes=" + refreshes +
+                ", refreshFailures=" + refreshFailures +
+                ", received=" + received +
+                ", pipeline=" + pipeline +
+                '}';
+    }
+}
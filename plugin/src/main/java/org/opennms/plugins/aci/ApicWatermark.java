@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import org.opennms.plugins.aci.client.ApicCheckpointStore;
+import org.opennms.plugins.aci.client.ApicTimestampCodec;
+import org.opennms.plugins.aci.client.FaultRecord;
+
+/**
+ * High-water mark of the fault records processed for one cluster.
+ *
+ * Tracks the newest <code>created</code> timestamp and the id of the record
+ * carrying it, so a reconnecting websocket can backfill everything it missed,
+ * and remembers the ids of the most recent records so the overlap between the
+ * backfill and the live stream is only processed once. With a
+ * {@link ApicCheckpointStore} the watermark starts from the last stored
+ * checkpoint and every advance is written back to it.
+ *
+ * Records are deduplicated when they are {@link #accept(FaultRecord) accepted}
+ * but only move the watermark once they were {@link #processed(FaultRecord)
+ * processed}. While accepted records are still in flight the watermark stays
+ * at the oldest of them, so a restart never skips a record that was queued
+ * but not yet forwarded.
+ *
+ * @author metispro
+ */
+public class ApicWatermark {
+
+    public static final int DEFAULT_RECENT_IDS = 16384;
+
+    private static final String APIC_CLASS = "faultRecord";
+
+    private final Map<String, Boolean> recentIds;
+
+    private final ApicCheckpointStore checkpointStore;
+
+    private final String cluster;
+
+    /** Created millis of the accepted records not processed yet, by id */
+    private final Map<String, Long> inFlightIds = new HashMap<>();
+
+    /** Number of in-flight records per created millis */
+    private final TreeMap<Long, Integer> inFlight = new TreeMap<>();
+
+    /** Newest record processed so far */
+    private long processedMillis = -1;
+
+    private String processedCreated;
+
+    private String processedId;
+
+    /** The watermark: the newest processed record, held back by the ones in flight */
+    private long createdMillis = -1;
+
+    private String created;
+
+    private String lastId;
+
+    private long duplicates;
+
+    public ApicWatermark() {
+        this(null, null, DEFAULT_RECENT_IDS);
+    }
+
+    /**
+     * @param checkpointStore
+     *            where the watermark is persisted
+     * @param cluster
+     *            name of the cluster
+     */
+    public ApicWatermark(ApicCheckpointStore checkpointStore, String cluster) {
+        this(checkpointStore, cluster, DEFAULT_RECENT_IDS);
+    }
+
+    public ApicWatermark(ApicCheckpointStore checkpointStore, String cluster, final int recentIdCapacity) {
+        this.checkpointStore = checkpointStore;
+        this.cluster = cluster;
+        this.recentIds = new LinkedHashMap<String, Boolean>(Math.min(recentIdCapacity, 1024), 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > recentIdCapacity;
+            }
+        };
+
+        if (checkpointStore != null) {
+            ApicCheckpointStore.Checkpoint checkpoint = checkpointStore.get(cluster, APIC_CLASS);
+            if (checkpoint != null) {
+                this.processedMillis = parseCreated(checkpoint.getCreated());
+                this.processedCreated = checkpoint.getCreated();
+                this.processedId = checkpoint.getId();
+                this.createdMillis = processedMillis;
+                this.created = processedCreated;
+                this.lastId = processedId;
+            }
+        }
+    }
+
+    /**
+     * Record a fault record about to be processed. The watermark is not
+     * moved until the record was handed on, see {@link #processed(FaultRecord)}.
+     *
+     * @param record
+     *            the record
+     * @return false if the record was seen recently and must be skipped
+     */
+    public synchronized boolean accept(FaultRecord record) {
+        String id = idOf(record);
+        if (id != null && recentIds.put(id, Boolean.TRUE) != null) {
+            duplicates++;
+            return false;
+        }
+
+        long millis = parseCreated(record.getCreated());
+        if (id != null && millis >= 0 && inFlightIds.put(id, millis) == null)
+            inFlight.merge(millis, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Record that an accepted record was forwarded, or failed for good, and
+     * advance the watermark as far as the records still in flight allow.
+     *
+     * @param record
+     *            the record
+     */
+    public synchronized void processed(FaultRecord record) {
+        String id = idOf(record);
+        release(id);
+
+        String recordCreated = record.getCreated();
+        long millis = parseCreated(recordCreated);
+        if (millis >= 0 && millis >= processedMillis) {
+            processedMillis = millis;
+            processedCreated = recordCreated;
+            processedId = id;
+        }
+        advance();
+    }
+
+    /**
+     * Record that an accepted record was dropped before it was processed. It
+     * is forgotten, so it is accepted again should the APIC send it again.
+     *
+     * @param record
+     *            the record
+     */
+    public synchronized void rejected(FaultRecord record) {
+        String id = idOf(record);
+        if (id != null)
+            recentIds.remove(id);
+        release(id);
+        advance();
+    }
+
+    private void release(String id) {
+        Long millis = id != null ? inFlightIds.remove(id) : null;
+        if (millis != null)
+            inFlight.computeIfPresent(millis, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private void advance() {
+        long millis = processedMillis;
+        String newCreated = processedCreated;
+        String newId = processedId;
+        if (!inFlight.isEmpty() && inFlight.firstKey() <= millis) {
+            // Backfilling from here picks up the oldest record still in flight
+            millis = inFlight.firstKey();
+            newCreated = ApicTimestampCodec.format(millis);
+            newId = null;
+        }
+        if (millis < 0 || millis == createdMillis && Objects.equals(newId, lastId))
+            return;
+
+        createdMillis = millis;
+        created = newCreated;
+        lastId = newId;
+        if (checkpointStore != null)
+            checkpointStore.put(cluster, APIC_CLASS, created, lastId);
+    }
+
+    private static String idOf(FaultRecord record) {
+        String id = record.getId();
+        return id != null ? id : record.getDn();
+    }
+
+    /**
+     * @return true once a record with a valid timestamp was processed
+     */
+    public synchronized boolean isSet() {
+        return createdMillis >= 0;
+    }
+
+    /**
+     * Timestamp to query the APIC from when backfilling.
+     *
+     * @param overlapMillis
+     *            how far to reach back before the watermark, records sharing
+     *            the watermark's timestamp must not be missed
+     * @return the query time in APIC format
+     */
+    public synchronized String getQueryTime(long overlapMillis) {
+        return ApicTimestampCodec.format(createdMillis - overlapMillis);
+    }
+
+    /**
+     * @return the newest created timestamp in epoch millis, -1 if not set
+     */
+    public synchronized long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * @return the newest created timestamp as reported by the APIC
+     */
+    public synchronized String getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the id of the record carrying the newest timestamp, null while
+     *         the watermark is held back by a record in flight
+     */
+    public synchronized String getLastId() {
+        return lastId;
+    }
+
+    /**
+     * @return records skipped as already processed
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * Parse an APIC timestamp, e.g. <code>2019-03-05T12:34:56.789+00:00</code>.
+     *
+     * @param created
+     *            the timestamp
+     * @return epoch millis, -1 if missing or invalid
+     */
+    public static long parseCreated(String created) {
+        return ApicTimestampCodec.parse(created, -1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ApicWatermark{" +
+                "created=" + created +
+                ", lastId=" + lastId +
+                ", recentIds=" + recentIds.size() +
+                ", inFlight=" + inFlightIds.size() +
+                ", duplicates=" + duplicates +
+                '}';
+    }
+}
@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the events of one cluster and hands them to the OpenNMS
+ * {@link EventForwarder} in batches.
+ *
+ * Events are queued and delivered by a single flusher thread once
+ * {@link #getMaxBatchSize()} events are pending or the oldest pending event
+ * has waited {@link #getLingerMillis()}. The queue is bounded: when the
+ * forwarder falls behind, {@link #sendAsync(InMemoryEvent)} blocks until
+ * there is room again, which pushes back on whoever produces the events.
+ * {@link #flush()} and {@link #sendSync(InMemoryEvent)} queue behind the
+ * pending events and wait for the flusher, so the forwarder only ever sees
+ * one thread and events keep their order.
+ *
+ * @author metispro
+ */
+public class BatchingEventForwarder implements EventForwarder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingEventForwarder.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    public static final long DEFAULT_LINGER_MILLIS = 50;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private static final long POLL_MILLIS = 500;
+
+    private final String name;
+    private final EventForwarder delegate;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread flusher;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushLatencyNanos = new AtomicLong();
+    private final AtomicLong maxFlushLatencyNanos = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public BatchingEventForwarder(String name, EventForwarder delegate) {
+        this(name, delegate, DEFAULT_MAX_BATCH_SIZE, DEFAULT_LINGER_MILLIS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public BatchingEventForwarder(String name, EventForwarder delegate, int maxBatchSize, long lingerMillis,
+                                  int queueCapacity) {
+        if (maxBatchSize < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("maxBatchSize and queueCapacity must be at least 1");
+        this.name = name;
+        this.delegate = delegate;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.flusher = new Thread(this::run, "aci-event-batcher-" + name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queue an event for the next batch, waiting for room while the queue is
+     * full.
+     */
+    @Override
+    public void sendAsync(InMemoryEvent event) {
+        if (!enqueue(new Pending(event, false, null)))
+            // The flusher is gone, don't lose the event
+            delegate.sendAsync(event);
+    }
+
+    /**
+     * Send an event right away, behind everything already queued, and wait
+     * until the flusher has handed it over.
+     */
+    @Override
+    public void sendSync(InMemoryEvent event) {
+        Pending pending = new Pending(event, true, new CountDownLatch(1));
+        if (enqueue(pending)) {
+            await(pending);
+        } else {
+            drain();
+            delegate.sendSync(event);
+        }
+    }
+
+    /**
+     * Wait until everything queued so far has been delivered by the flusher.
+     */
+    public void flush() {
+        Pending marker = new Pending(null, false, new CountDownLatch(1));
+        if (enqueue(marker))
+            await(marker);
+        else
+            drain();
+    }
+
+    /**
+     * @return false if the event could not be queued because the flusher
+     *         stopped or the caller was interrupted
+     */
+    private boolean enqueue(Pending pending) {
+        if (queue.offer(pending))
+            return true;
+
+        blocked.incrementAndGet();
+        try {
+            while (!queue.offer(pending, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!running)
+                    return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void await(Pending pending) {
+        try {
+            while (!pending.done.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!flusher.isAlive()) {
+                    // Stopped before getting to it, deliver what is left here
+                    drain();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deliver everything queued on the calling thread, once the flusher is
+     * gone.
+     */
+    private void drain() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        while (queue.drainTo(batch, maxBatchSize) > 0) {
+            deliver(batch);
+            batch.clear();
+        }
+    }
+
+    private void run() {
+        final List<Pending> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                Pending first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                // Someone waiting on the batch, don't linger
+                boolean waited = first.done != null;
+                final long deadline = first.enqueued + lingerNanos;
+                while (!waited && batch.size() < maxBatchSize) {
+                    int size = batch.size();
+                    queue.drainTo(batch, maxBatchSize - size);
+                    for (int i = size; i < batch.size() && !waited; i++)
+                        waited = batch.get(i).done != null;
+                    long remaining = deadline - System.nanoTime();
+                    if (waited || batch.size() >= maxBatchSize || remaining <= 0 || !running)
+                        break;
+                    // Wake up in time to notice close() during a long linger
+                    Pending next = queue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS)),
+                                              TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        continue;
+                    batch.add(next);
+                    waited = next.done != null;
+                }
+
+                deliver(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("ACI: Event batcher {} interrupted", name);
+        }
+    }
+
+    private void deliver(List<Pending> batch) {
+        // The forwarder only takes single events, hand them over back to back
+        int count = 0;
+        for (Pending pending : batch) {
+            if (pending.event != null) {
+                count++;
+                try {
+                    if (pending.sync)
+                        delegate.sendSync(pending.event);
+                    else
+                        delegate.sendAsync(pending.event);
+                } catch (Throwable e) {
+                    failed.incrementAndGet();
+                    LOG.error("ACI: Failed to forward event {}", pending.event.getUei(), e);
+                }
+            }
+        }
+
+        if (count > 0) {
+            long latency = System.nanoTime() - batch.get(0).enqueued;
+            events.addAndGet(count);
+            batches.incrementAndGet();
+            maxBatch.accumulateAndGet(count, Math::max);
+            flushLatencyNanos.addAndGet(latency);
+            maxFlushLatencyNanos.accumulateAndGet(latency, Math::max);
+        }
+
+        // Release the waiters once the batch is accounted for
+        for (Pending pending : batch) {
+            if (pending.done != null)
+                pending.done.countDown();
+        }
+    }
+
+    /**
+     * Stop the flusher once the queue is drained.
+     *
+     * @param timeoutMillis
+     *            how long to wait for the queue to drain before the flusher
+     *            is interrupted
+     */
+    public void close(long timeoutMillis) {
+        running = false;
+        try {
+            flusher.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (flusher.isAlive()) {
+            LOG.warn("ACI: Event batcher {} still busy, interrupting with {} event(s) queued", name, queue.size());
+            flusher.interrupt();
+        }
+    }
+
+    /**
+     * @return the largest number of events delivered in one batch
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return how long the first event of a batch waits for more to arrive
+     */
+    public long getLingerMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lingerNanos);
+    }
+
+    /**
+     * @return events delivered so far
+     */
+    public long getEventCount() {
+        return events.get();
+    }
+
+    /**
+     * @return batches delivered so far
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return the average number of events per batch
+     */
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) events.get() / count;
+    }
+
+    /**
+     * @return the largest batch delivered so far
+     */
+    public long getLargestBatch() {
+        return maxBatch.get();
+    }
+
+    /**
+     * @return the average time from queuing the first event of a batch until
+     *         the batch was delivered, in millis
+     */
+    public double getAverageFlushLatencyMillis() {
+        long count = batches.get();
+        return count == 0 ? 0 : flushLatencyNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * @return the longest flush latency so far, in millis
+     */
+    public double getMaxFlushLatencyMillis() {
+        return maxFlushLatencyNanos.get() / 1e6;
+    }
+
+    /**
+     * @return events that had to wait for room in the queue
+     */
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return events the forwarder failed on
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return events waiting for the next batch
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchingEventForwarder{queued=%d, events=%d, batches=%d, avgBatch=%.1f, maxBatch=%d, "
+                                     + "avgLatencyMs=%.1f, maxLatencyMs=%.1f, blocked=%d, failed=%d}",
+                             getQueued(), getEventCount(), getBatchCount(), getAverageBatchSize(), getLargestBatch(),
+                             getAverageFlushLatencyMillis(), getMaxFlushLatencyMillis(), getBlockedCount(),
+                             getFailedCount());
+    }
+
+    private static final class Pending {
+        /** Null for a flush marker */
+        private final InMemoryEvent event;
+        private final boolean sync;
+        /** Counted down once delivered, null if nobody waits for it */
+        private final CountDownLatch done;
+        private final long enqueued = System.nanoTime();
+
+        private Pending(InMemoryEvent event, boolean sync, CountDownLatch done) {
+            this.event = event;
+            this.sync = sync;
+            this.done = done;
+        }
+    }
+}
@@ -33,11 +33,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.json.simple.JSONObject;
-import org.opennms.integration.api.v1.model.EventParameter;
 import org.opennms.integration.api.v1.model.InMemoryEvent;
 import org.opennms.integration.api.v1.model.Severity;
+import org.opennms.integration.api.v1.model.immutables.ImmutableEventParameter;
 import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+import org.opennms.plugins.aci.client.FaultRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,6 +51,8 @@ public class ConvertToEvent {
 
 	private static final String ACI_UEI_PART = "uei.opennms.org/cisco/aci/";
 
+	public static final String ACI_FLAPPING_UEI = ACI_UEI_PART + "flapping";
+
 	public static int MAX_SYSLOG_DROP_THRESHOLD_MIN = 5;
 
 	public static int MAX_SYSLOG_INGEST_THRESHOLD_MIN = 43200;
@@ -105,70 +107,67 @@ public class ConvertToEvent {
 		SEVERITY_MAP.put("cleared", Severity.CLEARED);
 	}
 
-	public static final InMemoryEvent toEventBuilder(NodeCache nodeCache, String location, Date createDate,
-													 JSONObject attributes, String apicHost) throws ParseException {
+	public static final InMemoryEvent toEventBuilder(ApicDnResolver dnResolver, String location, Date createDate,
+													 FaultRecord record, String apicHost) throws ParseException {
 
-		if (attributes == null || attributes.size() == 0)
+		if (record == null || record.isEmpty())
 			return null;
 
 		ImmutableInMemoryEvent.Builder bldr = ImmutableInMemoryEvent.newBuilder();
 
-		Long nodeId = (long) 0;
-		LOG.trace("ACI: Building Event for " + location + " message: " + attributes.toJSONString());
+		LOG.trace("ACI: Building Event for {} message: {}", location, record);
 		// First, let's add all Fault attributes as parameters.
-		for (Object obj : attributes.keySet()) {
-			EventParameter param = new EventParameter() {
-				@Override
-				public String getName() {
-					return (String) obj;
-				}
-
-				@Override
-				public String getValue() {
-					return (String) attributes.get(obj);
-				}
-			};
-			bldr.addParameter(param);
-		}
-		String dn = (String) attributes.get("affected");
-		if (dn == null)
-			dn = (String) attributes.get("dn");
-		String[] dnParts = dn.split(ApicService.DN_SEP);
-
-		if (dnParts[0].equals("topology") && dnParts.length >= 3) {
-			// Device Fault
-			String key = new StringBuffer().append(location).append(ApicService.FS_SEP).append(dnParts[0]).append(dnParts[1]).append(dnParts[2]).toString();
-			nodeId = nodeCache.getNodeId(key);
-			if (nodeId != null)
-				bldr.setNodeId(nodeId.intValue());
-		}
-
-		// If we still do not have a nodeId, default to apichost
-		if (nodeId == null || nodeId.longValue() == 0) {
-			nodeId = nodeCache.getNodeId(apicHost);
-			if (nodeId != null)
-				bldr.setNodeId(nodeId.intValue());
-		}
-		if ("cleared".equals(attributes.get("severity")))
-			bldr.setUei(ACI_UEI_PART + attributes.get("severity"));
+		record.forEach((name, value) -> bldr.addParameter(ImmutableEventParameter.newInstance(name, value)));
+		String dn = record.getAffectedOrDn();
+
+		// Device faults belong to their switch, anything else to the apichost
+		Long nodeId = dnResolver.resolve(location, dn, apicHost);
+		if (nodeId != null)
+			bldr.setNodeId(nodeId.intValue());
+		if ("cleared".equals(record.getSeverity()))
+			bldr.setUei(ACI_UEI_PART + record.getSeverity());
 		else
-			bldr.setUei(ACI_UEI_PART + attributes.get("code"));
-		bldr.setSeverity(SEVERITY_MAP.get(attributes.get("severity")));
+			bldr.setUei(ACI_UEI_PART + record.getCode());
+		bldr.setSeverity(SEVERITY_MAP.get(record.getSeverity()));
 		bldr.setSource(ApicService.class.getSimpleName());
 
-		EventParameter apicHostsParam = new EventParameter() {
-			@Override
-			public String getName() {
-				return "apicHost";
-			}
-
-			@Override
-			public String getValue() {
-				return apicHost;
-			}
-		};
-		bldr.addParameter(apicHostsParam);
+		bldr.addParameter(ImmutableEventParameter.newInstance("apicHost", apicHost));
 		return bldr.build();
 	}
 
+	/**
+	 * Build the event of an object pushed by a subscription other than the
+	 * fault one. Records carrying a code, like eventRecord and aaaModLR, get
+	 * the UEI of their code as faults do; changed objects without one, like
+	 * healthInst or fabricNode, get the UEI of their class.
+	 */
+	public static final InMemoryEvent toRecordEvent(ApicDnResolver dnResolver, String location, Date createDate,
+													FaultRecord record, String apicHost) throws ParseException {
+		InMemoryEvent event = toEventBuilder(dnResolver, location, createDate, record, apicHost);
+		if (event == null || record.getCode() != null)
+			return event;
+
+		return ImmutableInMemoryEvent.newBuilderFrom(event)
+				.setUei(ACI_UEI_PART + record.getMoClass())
+				.setSeverity(Severity.NORMAL)
+				.build();
+	}
+
+	/**
+	 * Build the summary event of a fault suppressed for flapping, tied to
+	 * the same node as the fault's own events.
+	 */
+	public static final InMemoryEvent toFlappingEvent(ApicDnResolver dnResolver, String location, FaultRecord record,
+													  String apicHost, int transitions) throws ParseException {
+		InMemoryEvent event = toEventBuilder(dnResolver, location, new Date(), record, apicHost);
+		if (event == null)
+			return null;
+
+		return ImmutableInMemoryEvent.newBuilderFrom(event)
+				.setUei(ACI_FLAPPING_UEI)
+				.setSeverity(Severity.WARNING)
+				.addParameter(ImmutableEventParameter.newInstance("transitions", Integer.toString(transitions)))
+				.build();
+	}
+
 }
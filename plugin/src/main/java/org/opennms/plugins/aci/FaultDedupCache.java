@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.plugins.aci.client.FaultRecord;
+
+/**
+ * Remembers recently forwarded fault records so replays and repeated
+ * transitions are not turned into events twice.
+ *
+ * Records are identified by a 64-bit hash of their cluster, affected DN (or
+ * dn), code, lifecycle, severity and id. The hashes are kept in two
+ * primitive open-addressing tables, the current and the previous generation.
+ * New keys go into the current generation; once it is full or older than the
+ * TTL the previous generation is dropped and the current one takes its place.
+ * A key is therefore remembered for at least the TTL unless more than
+ * <code>maxEntries / 2</code> newer keys arrive first, at a cost of about
+ * 16 bytes per entry.
+ *
+ * @author metispro
+ */
+public class FaultDedupCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000000;
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** Marks a free slot, no real key hashes to it */
+    private static final long EMPTY = 0L;
+
+    private final long ttlMillis;
+    private final int generationCapacity;
+
+    private Generation current;
+    private Generation previous;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long rotations = 0;
+
+    public FaultDedupCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxEntries
+     *            the most keys remembered over both generations
+     * @param ttlMillis
+     *            how long a key is remembered at least
+     */
+    public FaultDedupCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 2 || ttlMillis < 1)
+            throw new IllegalArgumentException("maxEntries must be at least 2 and ttlMillis positive");
+        this.ttlMillis = ttlMillis;
+        this.generationCapacity = maxEntries / 2;
+        // Keep the tables at most half full so probe sequences stay short
+        int slots = Integer.highestOneBit(Math.max(2, generationCapacity * 2 - 1)) << 1;
+        this.current = new Generation(slots);
+        this.previous = new Generation(slots);
+    }
+
+    /**
+     * Check a fault record against the cache and remember it.
+     *
+     * @param cluster
+     *            the cluster the record was received from
+     * @param record
+     *            the record
+     * @return true if the same record was seen within the TTL
+     */
+    public boolean isDuplicate(String cluster, FaultRecord record) {
+        return isDuplicate(keyOf(cluster, record), System.currentTimeMillis());
+    }
+
+    /**
+     * Check a key against the cache and remember it.
+     *
+     * @param key
+     *            the key, see {@link #keyOf(String, FaultRecord)}
+     * @param nowMillis
+     *            the current time
+     * @return true if the key was seen within the TTL
+     */
+    public synchronized boolean isDuplicate(long key, long nowMillis) {
+        if (key == EMPTY)
+            key = 1L;
+
+        rotateIfNeeded(nowMillis);
+        if (current.contains(key) || previous.contains(key)) {
+            hits++;
+            return true;
+        }
+        current.add(key);
+        misses++;
+        return false;
+    }
+
+    private void rotateIfNeeded(long nowMillis) {
+        if (current.size == 0) {
+            current.started = nowMillis;
+            return;
+        }
+        long age = nowMillis - current.started;
+        if (current.size < generationCapacity && age < ttlMillis)
+            return;
+
+        Generation recycled = previous;
+        recycled.clear();
+        previous = current;
+        current = recycled;
+        current.started = nowMillis;
+        rotations++;
+
+        // Nothing arrived for a whole generation, the old keys are stale too
+        if (age >= 2 * ttlMillis)
+            previous.clear();
+    }
+
+    /**
+     * Build the cache key of a fault record.
+     *
+     * @param cluster
+     *            the cluster the record was received from
+     * @param record
+     *            the record
+     * @return a 64-bit hash of the identifying attributes
+     */
+    public static long keyOf(String cluster, FaultRecord record) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, cluster);
+        hash = hash(hash, record.getAffectedOrDn());
+        hash = hash(hash, record.getCode());
+        hash = hash(hash, record.getLc());
+        hash = hash(hash, record.getSeverity());
+        hash = hash(hash, record.getId());
+        return mix(hash);
+    }
+
+    /** FNV-1a over the chars of the value, with a separator so fields can't run into each other */
+    private static long hash(long hash, String text) {
+        if (text != null) {
+            for (int i = 0; i < text.length(); i++) {
+                hash ^= text.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        hash ^= 0x1f;
+        hash *= 0x100000001b3L;
+        return hash;
+    }
+
+    /** Finalizer of MurmurHash3, spreads the bits over the whole word */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return keys currently remembered
+     */
+    public synchronized int size() {
+        return current.size + previous.size;
+    }
+
+    /**
+     * @return records found to be duplicates
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return records seen for the first time
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return number of generation rotations
+     */
+    public synchronized long getRotationCount() {
+        return rotations;
+    }
+
+    /**
+     * @return how long a key is remembered at least
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FaultDedupCache{" +
+                "size=" + size() +
+                ", max=" + (generationCapacity * 2) +
+                ", duplicates=" + hits +
+                ", unique=" + misses +
+                ", rotations=" + rotations +
+                '}';
+    }
+
+    private static final class Generation {
+        private final long[] slots;
+        private final int mask;
+        private int size;
+        private long started;
+
+        private Generation(int capacity) {
+            this.slots = new long[capacity];
+            this.mask = capacity - 1;
+        }
+
+        private boolean contains(long key) {
+            for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+                long slot = slots[i];
+                if (slot == key)
+                    return true;
+                if (slot == EMPTY)
+                    return false;
+            }
+        }
+
+        private void add(long key) {
+            int i = (int) key & mask;
+            while (slots[i] != EMPTY) {
+                if (slots[i] == key)
+                    return;
+                i = (i + 1) & mask;
+            }
+            slots[i] = key;
+            size++;
+        }
+
+        private void clear() {
+            if (size > 0)
+                Arrays.fill(slots, EMPTY);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.plugins.aci.client.FaultRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Suppresses faults that keep toggling between raised and cleared, the way
+ * BGP dampens flapping routes.
+ *
+ * Every fault, identified by its affected DN and code, carries a penalty that
+ * grows by {@link #getPenalty()} with every raise/clear transition and halves
+ * every {@link #getHalfLifeMillis()}. Once the penalty reaches the suppress
+ * limit the fault's records are held back, and {@link #tick(long, Listener)}
+ * reports a summary of the transitions seen every summary interval instead.
+ * When the penalty has decayed below the reuse limit the fault is released
+ * and its last state is reported so OpenNMS ends up with the final state.
+ * Records arriving while that report is under way are still held back and
+ * reported after it, so a stale state never overtakes a newer one.
+ *
+ * @author metispro
+ */
+public class FlapDamper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FlapDamper.class);
+
+    public static final double DEFAULT_PENALTY = 1000;
+    public static final double DEFAULT_SUPPRESS_LIMIT = 3000;
+    public static final double DEFAULT_REUSE_LIMIT = 750;
+    public static final double DEFAULT_MAX_PENALTY = 12000;
+    public static final long DEFAULT_HALF_LIFE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final long DEFAULT_SUMMARY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Below this the state carries no information and is dropped */
+    private static final double FORGET_PENALTY = 1;
+
+    /**
+     * Receives what {@link FlapDamper#tick(long, Listener)} decided.
+     */
+    public interface Listener {
+        /**
+         * A suppressed fault is still flapping.
+         *
+         * @param last
+         *            the last record of the fault
+         * @param transitions
+         *            transitions since the previous summary
+         */
+        void onFlapping(FaultRecord last, int transitions);
+
+        /**
+         * A suppressed fault calmed down.
+         *
+         * @param last
+         *            the last record of the fault, its current state
+         */
+        void onStable(FaultRecord last);
+    }
+
+    private final double penalty;
+    private final double suppressLimit;
+    private final double reuseLimit;
+    private final double maxPenalty;
+    private final long halfLifeMillis;
+    private final long summaryIntervalMillis;
+
+    private final Map<String, State> states = new HashMap<>();
+
+    private long suppressedRecords = 0;
+    private long summaries = 0;
+
+    public FlapDamper() {
+        this(DEFAULT_PENALTY, DEFAULT_SUPPRESS_LIMIT, DEFAULT_REUSE_LIMIT, DEFAULT_MAX_PENALTY,
+             DEFAULT_HALF_LIFE_MILLIS, DEFAULT_SUMMARY_INTERVAL_MILLIS);
+    }
+
+    public FlapDamper(double penalty, double suppressLimit, double reuseLimit, double maxPenalty,
+                      long halfLifeMillis, long summaryIntervalMillis) {
+        if (reuseLimit >= suppressLimit || suppressLimit > maxPenalty || halfLifeMillis < 1)
+            throw new IllegalArgumentException("Need reuseLimit < suppressLimit <= maxPenalty and a positive half-life");
+        this.penalty = penalty;
+        this.suppressLimit = suppressLimit;
+        this.reuseLimit = reuseLimit;
+        this.maxPenalty = maxPenalty;
+        this.halfLifeMillis = halfLifeMillis;
+        this.summaryIntervalMillis = summaryIntervalMillis;
+    }
+
+    /**
+     * Decide whether a record is forwarded right away.
+     *
+     * @param record
+     *            the record
+     * @param nowMillis
+     *            the current time
+     * @return false if the record's fault is flapping and the record is held
+     *         back
+     */
+    public synchronized boolean admit(FaultRecord record, long nowMillis) {
+        String code = record.getCode();
+        String dn = record.getAffectedOrDn();
+        if (code == null || dn == null)
+            return true;
+
+        final boolean cleared = "cleared".equals(record.getSeverity());
+        final String key = dn + "|" + code;
+        State state = states.get(key);
+        if (state == null) {
+            state = new State(cleared, nowMillis);
+            states.put(key, state);
+        }
+        decay(state, nowMillis);
+        state.last = record;
+
+        if (cleared != state.cleared) {
+            state.cleared = cleared;
+            state.penalty = Math.min(maxPenalty, state.penalty + penalty);
+            state.transitions++;
+        }
+
+        if (!state.suppressed && state.penalty >= suppressLimit) {
+            LOG.info("ACI: Fault {} is flapping, suppressing its events", key);
+            state.suppressed = true;
+            // Report right away, further summaries follow every interval
+            state.lastSummary = nowMillis - summaryIntervalMillis;
+        }
+
+        if (state.suppressed) {
+            suppressedRecords++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Report summaries of flapping faults and release the ones that calmed
+     * down. To be called regularly, e.g. every second.
+     *
+     * @param nowMillis
+     *            the current time
+     * @param listener
+     *            receives the summaries and final states, called without
+     *            holding the damper's lock
+     */
+    public void tick(long nowMillis, Listener listener) {
+        List<Runnable> actions = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, State>> it = states.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, State> entry = it.next();
+                final State state = entry.getValue();
+                decay(state, nowMillis);
+
+                if (state.releasing) {
+                    continue;
+                } else if (state.suppressed) {
+                    final FaultRecord last = state.last;
+                    if (state.penalty < reuseLimit) {
+                        LOG.info("ACI: Fault {} is stable again", entry.getKey());
+                        state.releasing = true;
+                        final String key = entry.getKey();
+                        actions.add(() -> release(key, state, listener));
+                    } else if (nowMillis - state.lastSummary >= summaryIntervalMillis && state.transitions > 0) {
+                        final int transitions = state.transitions;
+                        state.transitions = 0;
+                        state.lastSummary = nowMillis;
+                        summaries++;
+                        actions.add(() -> listener.onFlapping(last, transitions));
+                    }
+                } else if (state.penalty < FORGET_PENALTY) {
+                    it.remove();
+                }
+            }
+        }
+
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (Throwable e) {
+                LOG.error("ACI: Failed to report flapping fault", e);
+            }
+        }
+    }
+
+    /**
+     * Report the final state of a fault that calmed down. The fault stays
+     * suppressed until then; if a newer record was held back meanwhile it is
+     * reported as well.
+     */
+    private void release(String key, State state, Listener listener) {
+        FaultRecord last;
+        synchronized (this) {
+            last = state.last;
+        }
+        while (last != null) {
+            try {
+                listener.onStable(last);
+            } catch (Throwable e) {
+                LOG.error("ACI: Failed to report stable fault {}", key, e);
+            }
+            synchronized (this) {
+                if (state.last == last || state.penalty >= suppressLimit) {
+                    // Done, or flapping again and released on the next calm
+                    state.releasing = false;
+                    if (state.penalty < suppressLimit) {
+                        state.suppressed = false;
+                        state.transitions = 0;
+                    }
+                    last = null;
+                } else {
+                    LOG.debug("ACI: Fault {} changed while being released, reporting its newer state", key);
+                    last = state.last;
+                }
+            }
+        }
+    }
+
+    private void decay(State state, long nowMillis) {
+        long elapsed = nowMillis - state.updated;
+        if (elapsed > 0) {
+            state.penalty *= Math.pow(0.5, (double) elapsed / halfLifeMillis);
+            state.updated = nowMillis;
+        }
+    }
+
+    /**
+     * @return faults currently suppressed
+     */
+    public synchronized int getSuppressedCount() {
+        int suppressed = 0;
+        for (State state : states.values()) {
+            if (state.suppressed)
+                suppressed++;
+        }
+        return suppressed;
+    }
+
+    /**
+     * @return records held back so far
+     */
+    public synchronized long getSuppressedRecordCount() {
+        return suppressedRecords;
+    }
+
+    /**
+     * @return flapping summaries reported so far
+     */
+    public synchronized long getSummaryCount() {
+        return summaries;
+    }
+
+    /**
+     * @return penalty added per transition
+     */
+    public double getPenalty() {
+        return penalty;
+    }
+
+    /**
+     * @return time for a penalty to decay to half
+     */
+    public long getHalfLifeMillis() {
+        return halfLifeMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FlapDamper{" +
+                "tracked=" + states.size() +
+                ", suppressed=" + getSuppressedCount() +
+                ", heldBack=" + suppressedRecords +
+                ", summaries=" + summaries +
+                '}';
+    }
+
+    private static final class State {
+        private boolean cleared;
+        private double penalty;
+        private long updated;
+        private boolean suppressed;
+        /** The final state is being reported, admit still holds records back */
+        private boolean releasing;
+        private int transitions;
+        private long lastSummary;
+        private FaultRecord last;
+
+        private State(boolean cleared, long nowMillis) {
+            this.cleared = cleared;
+            this.updated = nowMillis;
+        }
+    }
+}
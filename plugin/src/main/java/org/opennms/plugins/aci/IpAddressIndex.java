@@ -0,0 +1,449 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.integration.api.v1.dao.NodeDao;
+import org.opennms.integration.api.v1.model.IpInterface;
+import org.opennms.integration.api.v1.model.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps the IP addresses of all nodes to their node id without going to the
+ * {@link NodeDao} per lookup.
+ *
+ * The index is built from one pass over the node table into primitive
+ * open-addressing tables, IPv4 addresses keyed by their 32-bit value and IPv6
+ * addresses by their two 64-bit halves, and swapped in atomically. Changes
+ * made with {@link #put(InetAddress, int)} and {@link #remove(InetAddress)}
+ * are kept in a small overlay until the next rebuild picks them up. The index
+ * rebuilds itself in the background once it is older than the refresh
+ * interval, or sooner when lookups miss.
+ *
+ * An event driven index relies on node events to keep it current. It is
+ * built once in the background, misses and age never trigger a rebuild and
+ * lookups made before the first build only see the overlay.
+ *
+ * @author metispro
+ */
+public class IpAddressIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IpAddressIndex.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** A miss may mean a new node, but don't rebuild more often than this for it */
+    private static final long MISS_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Overlay value of a removed address */
+    private static final int REMOVED = 0;
+
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "aci-ip-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final NodeDao nodeDao;
+    private final long refreshIntervalMillis;
+    private final boolean eventDriven;
+    private final Map<InetAddress, Update> overlay = new ConcurrentHashMap<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicLong updateSeq = new AtomicLong();
+    private final AtomicLong lastRefresh = new AtomicLong();
+
+    private volatile Snapshot snapshot = null;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    public IpAddressIndex(NodeDao nodeDao) {
+        this(nodeDao, DEFAULT_REFRESH_INTERVAL_MILLIS);
+    }
+
+    public IpAddressIndex(NodeDao nodeDao, long refreshIntervalMillis) {
+        this(nodeDao, refreshIntervalMillis, false);
+    }
+
+    /**
+     * @param nodeDao
+     *            the node table
+     * @param refreshIntervalMillis
+     *            age after which a polled index rebuilds, unused when event
+     *            driven
+     * @param eventDriven
+     *            true if node events feed {@link #put(InetAddress, int)} and
+     *            {@link #removeNode(int)}
+     */
+    public IpAddressIndex(NodeDao nodeDao, long refreshIntervalMillis, boolean eventDriven) {
+        this.nodeDao = nodeDao;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.eventDriven = eventDriven;
+    }
+
+    /**
+     * Find the node owning an address. A polled index builds itself on first
+     * use, an event driven one starts a background build and answers from the
+     * overlay until it is done.
+     *
+     * @param address
+     *            the address
+     * @return the node id, null if no node has the address
+     */
+    public Integer lookup(InetAddress address) {
+        lookups.incrementAndGet();
+        Snapshot current = snapshot;
+        if (eventDriven) {
+            if (current == null && System.currentTimeMillis() - lastRefresh.get() >= MISS_REFRESH_INTERVAL_MILLIS)
+                refreshAsync();
+            Update update = overlay.get(address);
+            int nodeId = update != null ? update.nodeId : current != null ? current.get(address) : REMOVED;
+            if (nodeId == REMOVED) {
+                misses.incrementAndGet();
+                return null;
+            }
+            return nodeId;
+        }
+
+        if (current == null) {
+            rebuild();
+            current = snapshot;
+        }
+
+        Update update = overlay.get(address);
+        int nodeId = update != null ? update.nodeId : current.get(address);
+
+        long age = System.currentTimeMillis() - current.built;
+        if (nodeId == REMOVED) {
+            misses.incrementAndGet();
+            if (age >= MISS_REFRESH_INTERVAL_MILLIS)
+                refreshAsync();
+            return null;
+        }
+        if (age >= refreshIntervalMillis)
+            refreshAsync();
+        return nodeId;
+    }
+
+    /**
+     * Add or move an address.
+     */
+    public void put(InetAddress address, int nodeId) {
+        overlay.put(address, new Update(nodeId, updateSeq.incrementAndGet()));
+    }
+
+    /**
+     * Forget an address.
+     */
+    public void remove(InetAddress address) {
+        overlay.put(address, new Update(REMOVED, updateSeq.incrementAndGet()));
+    }
+
+    /**
+     * Forget all addresses of a node.
+     *
+     * @param nodeId
+     *            the node
+     * @return the addresses the node had
+     */
+    public List<InetAddress> removeNode(int nodeId) {
+        List<InetAddress> addresses = new ArrayList<>();
+        Snapshot current = snapshot;
+        if (current != null)
+            current.addressesOf(nodeId, addresses);
+        for (Map.Entry<InetAddress, Update> entry : overlay.entrySet()) {
+            if (entry.getValue().nodeId == nodeId && !addresses.contains(entry.getKey()))
+                addresses.add(entry.getKey());
+        }
+        for (InetAddress address : addresses)
+            remove(address);
+        return addresses;
+    }
+
+    /**
+     * Rebuild the index in the background unless a rebuild is running.
+     */
+    public void refreshAsync() {
+        if (refreshing.compareAndSet(false, true)) {
+            lastRefresh.set(System.currentTimeMillis());
+            try {
+                refresher.execute(() -> {
+                    try {
+                        build();
+                    } catch (Throwable e) {
+                        LOG.warn("ACI: Failed to rebuild IP address index", e);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed, keep serving the last snapshot
+                refreshing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Stop the background rebuilds. Lookups keep using the last snapshot.
+     */
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Rebuild the index on the calling thread.
+     */
+    public synchronized void rebuild() {
+        build();
+    }
+
+    private synchronized void build() {
+        final long start = System.currentTimeMillis();
+        final long seq = updateSeq.get();
+        List<Node> nodes = nodeDao.getNodes();
+        Snapshot built = Snapshot.of(nodes, start);
+        snapshot = built;
+        // Drop the overlay entries the new snapshot already reflects
+        overlay.values().removeIf(u -> u.seq <= seq);
+        rebuilds.incrementAndGet();
+        LOG.debug("ACI: Indexed {} address(es) of {} node(s) in {}ms", built.size, nodes.size(),
+                  System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return true once the first snapshot is built
+     */
+    public boolean isReady() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return addresses in the current snapshot
+     */
+    public int size() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.size;
+    }
+
+    /**
+     * @return lookups so far
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return lookups that found no node
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return rebuilds so far
+     */
+    public long getRebuildCount() {
+        return rebuilds.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IpAddressIndex{" +
+                "size=" + size() +
+                ", overlay=" + overlay.size() +
+                ", lookups=" + lookups +
+                ", misses=" + misses +
+                ", rebuilds=" + rebuilds +
+                '}';
+    }
+
+    private static final class Update {
+        private final int nodeId;
+        private final long seq;
+
+        private Update(int nodeId, long seq) {
+            this.nodeId = nodeId;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Immutable open-addressing tables, a node id of 0 marks a free slot.
+     */
+    private static final class Snapshot {
+        private final int[] v4Keys;
+        private final int[] v4Nodes;
+        private final long[] v6High;
+        private final long[] v6Low;
+        private final int[] v6Nodes;
+        private final long built;
+        private int size;
+
+        private Snapshot(int v4Count, int v6Count, long built) {
+            this.v4Keys = new int[slots(v4Count)];
+            this.v4Nodes = new int[v4Keys.length];
+            this.v6High = new long[slots(v6Count)];
+            this.v6Low = new long[v6High.length];
+            this.v6Nodes = new int[v6High.length];
+            this.built = built;
+        }
+
+        /** Power of two, at most half full */
+        private static int slots(int count) {
+            return Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+        }
+
+        private static Snapshot of(List<Node> nodes, long built) {
+            int v4 = 0;
+            int v6 = 0;
+            for (Node node : nodes) {
+                if (node.getIpInterfaces() == null)
+                    continue;
+                for (IpInterface ipInterface : node.getIpInterfaces()) {
+                    if (ipInterface == null || ipInterface.getIpAddress() == null)
+                        continue;
+                    if (ipInterface.getIpAddress() instanceof Inet4Address)
+                        v4++;
+                    else
+                        v6++;
+                }
+            }
+
+            Snapshot snapshot = new Snapshot(v4, v6, built);
+            for (Node node : nodes) {
+                if (node.getId() == null || node.getIpInterfaces() == null)
+                    continue;
+                for (IpInterface ipInterface : node.getIpInterfaces()) {
+                    if (ipInterface != null && ipInterface.getIpAddress() != null)
+                        snapshot.add(ipInterface.getIpAddress(), node.getId());
+                }
+            }
+            return snapshot;
+        }
+
+        /** The first node seen with an address keeps it */
+        private void add(InetAddress address, int nodeId) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length == 4) {
+                int key = ByteBuffer.wrap(bytes).getInt();
+                int mask = v4Keys.length - 1;
+                int i = hash(key) & mask;
+                while (v4Nodes[i] != 0) {
+                    if (v4Keys[i] == key)
+                        return;
+                    i = (i + 1) & mask;
+                }
+                v4Keys[i] = key;
+                v4Nodes[i] = nodeId;
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long high = buffer.getLong();
+                long low = buffer.getLong();
+                int mask = v6High.length - 1;
+                int i = hash(high, low) & mask;
+                while (v6Nodes[i] != 0) {
+                    if (v6High[i] == high && v6Low[i] == low)
+                        return;
+                    i = (i + 1) & mask;
+                }
+                v6High[i] = high;
+                v6Low[i] = low;
+                v6Nodes[i] = nodeId;
+            }
+            size++;
+        }
+
+        private int get(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length == 4) {
+                int key = ByteBuffer.wrap(bytes).getInt();
+                int mask = v4Keys.length - 1;
+                for (int i = hash(key) & mask; v4Nodes[i] != 0; i = (i + 1) & mask) {
+                    if (v4Keys[i] == key)
+                        return v4Nodes[i];
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long high = buffer.getLong();
+                long low = buffer.getLong();
+                int mask = v6High.length - 1;
+                for (int i = hash(high, low) & mask; v6Nodes[i] != 0; i = (i + 1) & mask) {
+                    if (v6High[i] == high && v6Low[i] == low)
+                        return v6Nodes[i];
+                }
+            }
+            return REMOVED;
+        }
+
+        private void addressesOf(int nodeId, List<InetAddress> addresses) {
+            try {
+                for (int i = 0; i < v4Nodes.length; i++) {
+                    if (v4Nodes[i] == nodeId)
+                        addresses.add(InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(v4Keys[i]).array()));
+                }
+                for (int i = 0; i < v6Nodes.length; i++) {
+                    if (v6Nodes[i] == nodeId)
+                        addresses.add(InetAddress.getByAddress(
+                                ByteBuffer.allocate(16).putLong(v6High[i]).putLong(v6Low[i]).array()));
+                }
+            } catch (UnknownHostException e) {
+                // Not thrown for 4 or 16 bytes
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int hash(long high, long low) {
+            long h = (high * 0x9E3779B97F4A7C15L) ^ low;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -27,39 +27,128 @@
  *******************************************************************************/
 package org.opennms.plugins.aci;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opennms.integration.api.v1.dao.NodeDao;
+import org.opennms.integration.api.v1.events.EventListener;
+import org.opennms.integration.api.v1.events.EventSubscriptionService;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
 import org.opennms.integration.api.v1.model.IpInterface;
 import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.aci.client.ApicCheckpointStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
 /**
+ * Resolves the node of a fault, by foreign source and foreign id
+ * (<code>foreignSource~foreignId</code>) or by IP address.
+ *
+ * Resolved keys are cached as a packed node and interface id. Keys that
+ * don't resolve are remembered in a separate cache with a shorter TTL, so
+ * repeated faults of an unknown object don't go back to the DAO every time.
+ * All nodes of a foreign source can be loaded in one pass with
+ * {@link #preload(String)}; the foreign source is preloaded again in the
+ * background once its entries start to expire.
+ *
+ * With an {@link EventSubscriptionService} the cache listens for node and
+ * interface changes and updates exactly the keys of the affected nodes, so
+ * entries can be kept much longer.
+ *
+ * One cache serves all clusters, partitioned by foreign source (the cluster
+ * name). Its foreign source entries can be saved to a snapshot with
+ * {@link #saveSnapshot(Path)} and restored on the next start, so faults
+ * resolve right away while {@link #warmUp(String)} refreshes them in the
+ * background.
+ *
  * @author metispro
  *
  */
-public class NodeCache {
+public class NodeCache implements EventListener {
     private static final Logger LOG = LoggerFactory.getLogger(NodeCache.class);
     
     private long MAX_SIZE = 10000;
     private long MAX_TTL  = 3; // Minutes
+    private long NEGATIVE_TTL_SECONDS = 30;
+    private long EVENT_DRIVEN_TTL = 720; // Minutes, when kept current by events
+
+    public static final String NODE_ADDED_UEI = "uei.opennms.org/nodes/nodeAdded";
+    public static final String NODE_UPDATED_UEI = "uei.opennms.org/nodes/nodeUpdated";
+    public static final String NODE_DELETED_UEI = "uei.opennms.org/nodes/nodeDeleted";
+    public static final String INTERFACE_REPARENTED_UEI = "uei.opennms.org/nodes/interfaceReparented";
+
+    private static final List<String> UEIS = Arrays.asList(NODE_ADDED_UEI, NODE_UPDATED_UEI, NODE_DELETED_UEI,
+                                                          INTERFACE_REPARENTED_UEI);
+
+    /** Cached value of a key without a node */
+    private static final long NOT_FOUND = -1L;
+
+    public static final String SNAPSHOT_FILE = "node-cache.bin";
+    private static final int SNAPSHOT_MAGIC = 0x41434e43; // "ACNC"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final ExecutorService preloader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "aci-node-preload");
+        t.setDaemon(true);
+        return t;
+    });
 
     private volatile NodeDao nodeDao;
 
-    private LoadingCache<String, String> cache = null;
+    private EventSubscriptionService eventSubscriptionService;
+
+    /** Cached keys per node id, to invalidate exactly those on changes */
+    private final Map<Integer, Set<String>> keysByNode = new ConcurrentHashMap<>();
+
+    private LoadingCache<String, Long> cache = null;
+
+    private Cache<String, Boolean> negativeCache = null;
+
+    private IpAddressIndex ipIndex = null;
+
+    private final Map<String, Long> preloaded = new ConcurrentHashMap<>();
+    private final Map<String, AtomicBoolean> preloading = new ConcurrentHashMap<>();
+    /** Foreign sources restored from a snapshot and not preloaded since */
+    private final Set<String> restored = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong daoLookups = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
     
     public NodeCache() {}
     
     @SuppressWarnings("unchecked")
     public void init() {
-        LOG.info("initializing node data cache (TTL="+MAX_TTL+"m, MAX_SIZE="+MAX_SIZE+")");
+        if (eventSubscriptionService != null)
+            MAX_TTL = EVENT_DRIVEN_TTL;
+        LOG.info("initializing node data cache (TTL="+MAX_TTL+"m, negative TTL="+NEGATIVE_TTL_SECONDS+"s, MAX_SIZE="+MAX_SIZE+")");
          @SuppressWarnings("rawtypes")
         CacheBuilder cacheBuilder =  CacheBuilder.newBuilder();
          if(MAX_TTL>0) {
@@ -68,88 +157,381 @@ public class NodeCache {
          if(MAX_SIZE>0) {
              cacheBuilder.maximumSize(MAX_SIZE);
          }
+         // Node events keep the address index current, build it up front
+         ipIndex = new IpAddressIndex(nodeDao, IpAddressIndex.DEFAULT_REFRESH_INTERVAL_MILLIS,
+                                      eventSubscriptionService != null);
+         if (eventSubscriptionService != null)
+             ipIndex.refreshAsync();
 
-         cache=cacheBuilder.build(new CacheLoader<String, String>() {
+         cache=cacheBuilder.build(new CacheLoader<String, Long>() {
              @Override
-             public String load(String key) throws Exception {
+             public Long load(String key) throws Exception {
                  return lookupNodeKey(key);
              }
          }
 );
+         negativeCache = CacheBuilder.newBuilder()
+                 .expireAfterWrite(NEGATIVE_TTL_SECONDS, TimeUnit.SECONDS)
+                 .maximumSize(MAX_SIZE)
+                 .build();
+
+         if (eventSubscriptionService != null)
+             eventSubscriptionService.addEventListener(this, UEIS);
+    }
+
+    /**
+     * Stop listening for node changes and stop the background preloader and
+     * address index rebuilds.
+     */
+    public void destroy() {
+        if (eventSubscriptionService != null)
+            eventSubscriptionService.removeEventListener(this, UEIS);
+        preloader.shutdownNow();
+        if (ipIndex != null)
+            ipIndex.close();
+    }
+
+    @Override
+    public String getName() {
+        return "ACI-NodeCache";
+    }
+
+    @Override
+    public int getNumThreads() {
+        return 1;
+    }
+
+    @Override
+    public void onEvent(InMemoryEvent event) {
+        try {
+            switch (event.getUei()) {
+            case NODE_ADDED_UEI:
+            case NODE_UPDATED_UEI:
+                if (event.getNodeId() != null) {
+                    invalidateNode(event.getNodeId());
+                    addNode(nodeDao.getNodeById(event.getNodeId()));
+                }
+                break;
+            case NODE_DELETED_UEI:
+                if (event.getNodeId() != null)
+                    invalidateNode(event.getNodeId());
+                break;
+            case INTERFACE_REPARENTED_UEI:
+                InetAddress address = event.getInterface();
+                Integer oldNodeId = parseNodeId(event, "oldNodeID");
+                Integer newNodeId = parseNodeId(event, "newNodeID");
+                if (address != null && newNodeId != null) {
+                    ipIndex.put(address, newNodeId);
+                    invalidateKey(address.getHostAddress());
+                }
+                if (oldNodeId != null)
+                    invalidateNode(oldNodeId);
+                break;
+            default:
+                break;
+            }
+        } catch (Throwable e) {
+            LOG.warn("ACI: Failed to apply {} to the node cache", event.getUei(), e);
+        }
+    }
+
+    private static Integer parseNodeId(InMemoryEvent event, String name) {
+        return event.getParameterValue(name).map(v -> {
+            try {
+                return Integer.valueOf(v);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }).orElse(null);
+    }
+
+    /** Drop every cached key of a node and its addresses from the index */
+    private void invalidateNode(int nodeId) {
+        Set<String> keys = keysByNode.remove(nodeId);
+        if (keys != null) {
+            for (String key : keys)
+                invalidateKey(key);
+        }
+        for (InetAddress address : ipIndex.removeNode(nodeId))
+            invalidateKey(address.getHostAddress());
+    }
+
+    private void invalidateKey(String key) {
+        cache.invalidate(key);
+        negativeCache.invalidate(key);
+        invalidations.incrementAndGet();
+    }
+
+    /** Make a new or updated node resolvable right away */
+    private void addNode(Node node) {
+        if (node == null || node.getId() == null)
+            return;
+        if (node.getForeignSource() != null && node.getForeignId() != null)
+            put(node.getForeignSource() + ApicService.FS_SEP + node.getForeignId(), node.getId());
+        if (node.getIpInterfaces() != null) {
+            for (IpInterface ipInterface : node.getIpInterfaces()) {
+                if (ipInterface != null && ipInterface.getIpAddress() != null) {
+                    ipIndex.put(ipInterface.getIpAddress(), node.getId());
+                    negativeCache.invalidate(ipInterface.getIpAddress().getHostAddress());
+                }
+            }
+        }
+    }
+
+    private void put(String key, int nodeId) {
+        cache.put(key, pack(nodeId, 0));
+        negativeCache.invalidate(key);
+        track(key, nodeId);
+    }
+
+    private void track(String key, int nodeId) {
+        keysByNode.computeIfAbsent(nodeId, k -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    /**
+     * Load the nodes of a foreign source into the cache in one pass. Cached
+     * keys of the foreign source whose node no longer exists, e.g. restored
+     * from a snapshot or missed while no events were received, are dropped.
+     *
+     * @param foreignSource
+     *            the foreign source, the cluster name for ACI requisitions
+     * @return the number of nodes loaded
+     */
+    public int preload(String foreignSource) {
+        long start = System.currentTimeMillis();
+        List<Node> nodes = nodeDao.getNodesInForeignSource(foreignSource);
+        daoLookups.incrementAndGet();
+        final String prefix = foreignSource + ApicService.FS_SEP;
+        Set<String> loaded = new HashSet<>();
+        for (Node node : nodes) {
+            if (node.getId() == null || node.getForeignId() == null)
+                continue;
+            String key = prefix + node.getForeignId();
+            put(key, node.getId());
+            loaded.add(key);
+        }
+        int stale = 0;
+        for (String key : new ArrayList<>(cache.asMap().keySet())) {
+            if (key.startsWith(prefix) && !loaded.contains(key)) {
+                invalidateKey(key);
+                stale++;
+            }
+        }
+        if (stale > 0)
+            LOG.debug("ACI: Dropped {} cached key(s) of {} without a node", stale, foreignSource);
+        int count = loaded.size();
+        preloaded.put(foreignSource, start);
+        restored.remove(foreignSource);
+        LOG.debug("ACI: Preloaded {} node(s) of {} in {}ms", count, foreignSource, System.currentTimeMillis() - start);
+        return count;
+    }
+
+    /**
+     * Make sure the nodes of a foreign source are loaded. Foreign sources
+     * restored from a snapshot are refreshed in the background, others are
+     * loaded right away.
+     *
+     * @param foreignSource
+     *            the foreign source, the cluster name for ACI requisitions
+     */
+    public void warmUp(String foreignSource) {
+        if (preloaded.containsKey(foreignSource))
+            return;
+        if (restored.contains(foreignSource))
+            preloadAsync(foreignSource);
+        else
+            preload(foreignSource);
+    }
+
+    private void preloadIfStale(String foreignSource) {
+        Long last = preloaded.get(foreignSource);
+        // Only refresh foreign sources that were preloaded, and before their entries expire
+        if (last == null || System.currentTimeMillis() - last < TimeUnit.MINUTES.toMillis(MAX_TTL) * 3 / 4)
+            return;
+        preloadAsync(foreignSource);
+    }
+
+    private void preloadAsync(String foreignSource) {
+        AtomicBoolean running = preloading.computeIfAbsent(foreignSource, k -> new AtomicBoolean());
+        if (running.compareAndSet(false, true)) {
+            try {
+                preloader.execute(() -> {
+                    try {
+                        preload(foreignSource);
+                    } catch (Throwable e) {
+                        LOG.warn("ACI: Failed to preload nodes of {}", foreignSource, e);
+                    } finally {
+                        running.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // destroyed, lookups fall back to the node DAO
+                running.set(false);
+            }
+        }
     }
     
-    private String lookupNodeKey(String key) throws Exception {
+    private long lookupNodeKey(String key) throws Exception {
         if (key == null)
-            return null;
+            return NOT_FOUND;
         
         String[] keyParts = key.split(ApicService.FS_SEP);
-        Node node = null;
         if (keyParts.length == 2) {
             String foreignSource = keyParts[0];
             String foreignId = keyParts[1];
 
             LOG.debug("ACI: Looking up node by foreignSource: {} and foreignId: {}", foreignSource, foreignId);
-            node = nodeDao.getNodeByForeignSourceAndForeignId(foreignSource, foreignId);
+            daoLookups.incrementAndGet();
+            Node node = nodeDao.getNodeByForeignSourceAndForeignId(foreignSource, foreignId);
+            return node == null || node.getId() == null ? NOT_FOUND : pack(node.getId(), 0);
         } else if (keyParts.length == 1) {
             InetAddress address = InetAddress.getByName(key);
-//            List<Node> nodes = nodeDao.findByIpAddressAndService(address, "ICMP");
-            // TODO - Temporarily changing to pull back all nodes until OIA NodeDAO supports findByIpAddressAndService
-            List<Node> nodes = nodeDao.getNodes();
-            LOG.debug("ACI: Looping through {} node(s) to find a match for address: {}", nodes.size(), address.toString());
-            if (nodes.size() > 0) {
-//                node = nodes.get(0);
-                NODELOOP: for (Node n: nodes) {
-                    for (IpInterface ipInterface : n.getIpInterfaces()) {
-                        if (ipInterface != null && ipInterface.getIpAddress().equals(address)) {
-                            node = n;
-                            break NODELOOP;
-                        }
-                    }
-                }
-            }
-        } else {
-            throw new NodeCacheInvalidKeyException("Incorrect key format key="
-                    + key);
+            LOG.debug("ACI: Looking up node by address: {}", address);
+            Integer nodeId = ipIndex.lookup(address);
+            return nodeId == null ? NOT_FOUND : pack(nodeId, 0);
         }
 
-        if (node == null)
-            throw new NodeCacheKeyNotFoundException("ACI Key not found, key="
-                    + key);
+        throw new NodeCacheInvalidKeyException("Incorrect key format key="
+                + key);
+    }
 
-        LOG.debug("Found Node for key = " + key);
+    private long resolve(String key) {
+        if (key == null)
+            return NOT_FOUND;
+        if (negativeCache.getIfPresent(key) != null) {
+            negativeHits.incrementAndGet();
+            return NOT_FOUND;
+        }
 
-        return node.getId().toString();
-    }
-    
-    public Long getNodeId(String key) {
+        int sep = key.indexOf(ApicService.FS_SEP);
+        if (sep > 0)
+            preloadIfStale(key.substring(0, sep));
+
+        long packed;
+        String reason = "no such node";
         try {
-            String nodeKey = this.cache.get(key);
-            if (nodeKey.contains(ApicService.FS_SEP)) {
-                String[] nodeKeyParts = nodeKey.split(ApicService.FS_SEP);
-                return Long.parseLong(nodeKeyParts[0]);
-            } else {
-                return Long.parseLong(nodeKey);
+            packed = cache.get(key);
+        } catch (ExecutionException | RuntimeException e) {
+            reason = (e.getCause() != null ? e.getCause() : e).toString();
+            packed = NOT_FOUND;
+        }
+
+        if (packed == NOT_FOUND) {
+            // Keep misses only as long as the negative TTL
+            cache.invalidate(key);
+            // An address miss before the index is built says nothing yet
+            if (sep > 0 || ipIndex.isReady())
+                negativeCache.put(key, Boolean.TRUE);
+            LOG.debug("ACI: No node found for {}: {}", key, reason);
+        } else {
+            track(key, (int) (packed >>> 32));
+        }
+        return packed;
+    }
+
+    /**
+     * Write the resolved foreign source keys, sorted by key. Address keys are
+     * left out, the {@link IpAddressIndex} rebuilds those from the DAO.
+     *
+     * @param file
+     *            the snapshot, replaced atomically
+     * @return the number of entries written
+     * @throws IOException
+     *             if the snapshot could not be written
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        Map<String, Long> entries = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : cache.asMap().entrySet()) {
+            if (entry.getValue() != NOT_FOUND && entry.getKey().indexOf(ApicService.FS_SEP) > 0)
+                entries.put(entry.getKey(), entry.getValue());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * entries.size() + 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
             }
-        } catch (Throwable e) {
-            LOG.warn("ACI: Received {} for {}", e.getClass().getSimpleName(), key);
-            LOG.warn("ACI: Exception: ", e);
         }
+        ApicCheckpointStore.writeAtomically(file, bytes.toByteArray());
+        LOG.info("ACI: Saved {} node cache entries to {}", entries.size(), file);
+        return entries.size();
+    }
+
+    /**
+     * Restore the entries of a snapshot written by {@link #saveSnapshot(Path)}.
+     * A missing or unreadable snapshot leaves the cache empty.
+     *
+     * @param file
+     *            the snapshot
+     * @return the number of entries restored
+     */
+    public int loadSnapshot(Path file) {
+        if (!Files.isRegularFile(file))
+            return 0;
+
+        int count = 0;
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != SNAPSHOT_VERSION) {
+                LOG.warn("ACI: Ignoring node cache snapshot {} of an unknown format", file);
+                return 0;
+            }
+            int size = data.readInt();
+            for (; count < size; count++) {
+                String key = data.readUTF();
+                long packed = data.readLong();
+                cache.put(key, packed);
+                track(key, (int) (packed >>> 32));
+                int sep = key.indexOf(ApicService.FS_SEP);
+                if (sep > 0)
+                    restored.add(key.substring(0, sep));
+            }
+        } catch (IOException e) {
+            LOG.warn("ACI: Failed to read node cache snapshot {}, restored {} entries", file, count, e);
+            return count;
+        }
+        LOG.info("ACI: Restored {} node cache entries from {}", count, file);
+        return count;
+    }
 
-        return null;
+    private static long pack(int nodeId, int interfaceId) {
+        return ((long) nodeId << 32) | (interfaceId & 0xffffffffL);
+    }
+    
+    public Long getNodeId(String key) {
+        long packed = resolve(key);
+        return packed == NOT_FOUND ? null : Long.valueOf(packed >>> 32);
     }
     
     public String getInterfaceId(String key) {
-        try {
-            String nodeKey = this.cache.get(key);
-            String[] nodeKeyParts = nodeKey.split(ApicService.FS_SEP);
-            if (nodeKeyParts.length == 2)
-                return nodeKeyParts[1];
-        } catch (Throwable e) {
-            LOG.warn("ACI: Received {} for {}", e.getClass().getSimpleName(), key);
-            LOG.warn("ACI: Exception: ", e);
-        }
-        
-        return null;
+        long packed = resolve(key);
+        int interfaceId = (int) packed;
+        return packed == NOT_FOUND || interfaceId == 0 ? null : Integer.toString(interfaceId);
+    }
+
+    /**
+     * @return the index resolving address keys
+     */
+    public IpAddressIndex getIpIndex() {
+        return ipIndex;
+    }
+
+    /**
+     * @return DAO calls made so far
+     */
+    public long getDaoLookupCount() {
+        return daoLookups.get();
+    }
+
+    /**
+     * @return lookups answered from the negative cache
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.get();
     }
 
     public NodeDao getNodeDao() {
@@ -159,5 +541,31 @@ public class NodeCache {
     public void setNodeDao(NodeDao nodeDao) {
         this.nodeDao = nodeDao;
     }
+
+    public EventSubscriptionService getEventSubscriptionService() {
+        return eventSubscriptionService;
+    }
+
+    /**
+     * @param eventSubscriptionService
+     *            keeps the cache current with node events, to be set before
+     *            {@link #init()}
+     */
+    public void setEventSubscriptionService(EventSubscriptionService eventSubscriptionService) {
+        this.eventSubscriptionService = eventSubscriptionService;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeCache{" +
+                "size=" + (cache == null ? 0 : cache.size()) +
+                ", negative=" + (negativeCache == null ? 0 : negativeCache.size()) +
+                ", negativeHits=" + negativeHits +
+                ", daoLookups=" + daoLookups +
+                ", invalidations=" + invalidations +
+                ", preloaded=" + preloaded.keySet() +
+                ", " + ipIndex +
+                '}';
+    }
     
 }
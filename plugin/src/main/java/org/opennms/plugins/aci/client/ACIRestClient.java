@@ -28,50 +28,59 @@
 
 package org.opennms.plugins.aci.client;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Paths;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPatch;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.conn.ssl.TrustStrategy;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.impl.cookie.BasicClientCookie;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -88,70 +97,60 @@ public class ACIRestClient {
     private static final Logger LOG = LoggerFactory.getLogger(ACIRestClient.class);
 
     /**
-     * An intermediary class for Rest requests that use HTTP GET
+     * Number of requests allowed in flight against the APIC unless configured
+     * otherwise.
      */
-    private class RestHttpGet extends HttpGet {
-        public RestHttpGet(final String path,
-                final Map<String, String> parameters) throws IOException {
-            super(buildUri(path, parameters));
-        }
-        public RestHttpGet(final String path) throws IOException {
-            super(buildUri(path));
-        }
-    }
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 8;
 
     /**
-     * An intermediary class for rest requests that use HTTP POST.
+     * Objects per page for paged class queries.
      */
-    private class RestHttpPost extends HttpPost {
-        public RestHttpPost(final String path) throws IOException {
-            super(buildUri(path, null));
-        }
-    }
+    public static final int DEFAULT_PAGE_SIZE = 10000;
 
     /**
-     * An intermediary class for rest requests that use HTTP PATCH.
+     * Parser of each decoding thread, reused along with its 16k read buffer
+     * across messages and pages.
      */
-    private class RestHttpPatch extends HttpPatch {
-        public RestHttpPatch(final String path) throws IOException {
-            super(buildUri(path, null));
-        }
-    }
+    private static final ThreadLocal<JSONParser> PARSER = new ThreadLocal<>();
 
     /**
-     * An intermediary class for rest requests that use HTTP PUT.
+     * Pages of a paged class query fetched concurrently.
      */
-    private class RestHttpPut extends HttpPut {
-        public RestHttpPut(final String path) throws IOException {
-            super(buildUri(path, null));
-        }
-    }
+    public static final int DEFAULT_PAGE_PARALLELISM = 4;
 
-    /**
-     * An intermediary class for rest requests that use HTTP DELETE.
-     */
-    private class RestHttpDelete extends HttpDelete {
-        public RestHttpDelete(final String path) throws IOException {
-            super(buildUri(path, null));
-        }
-    }
+    private static final String HEALTH_QUERY = "rsp-subtree-include=health,no-scoped";
+    private static final String FAULTS_QUERY = "rsp-subtree-include=faults,no-scoped&query-target=subtree";
+    private static final String STATS_QUERY = "rsp-subtree-include=stats,no-scoped";
+
+    // Short, so an unreachable APIC is failed over to quickly
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(120);
+    // The request timeout only covers the response headers, this bounds the socket reads of a streamed body
+    private static final Duration BODY_TIMEOUT = Duration.ofMinutes(5);
+    // Until the first sample, the local clock stands in for the APIC's between time queries
+    private static final long TIME_QUERY_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
 
     private static final String HTTPS_SCHEME = "https";
     private static final int DEFAULT_PORT = 443;
-    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-    private final SimpleDateFormat dateOnlyFormat = new SimpleDateFormat("yyyy-MM-dd");
-    private final int port;
     private final String authHeader;
     private final String cluster;
-    private final String host;
+    private final ApicMemberSelector members;
     private final String username;
     private final String password;
-    private final DefaultHttpClient httpClient;
-    private final HttpContext httpContext;
+    private final HttpClient httpClient;
     private final String restUrlPrefix;
-    private final BasicCookieStore cookieStore;
-
-    private String token;
+    private final ApicTokenManager tokenManager;
+
+    /** Refreshes the token of a client created without a shared pool */
+    private final ScheduledExecutorService ownedTokenExecutor;
+    private final InFlightLimiter limiter;
+    private final ApicClockEstimator clock = new ApicClockEstimator();
+    // No time query before this, after one failed
+    private volatile long nextTimeQuery = 0;
+    private volatile int pageSize = DEFAULT_PAGE_SIZE;
+    private volatile int pageParallelism = DEFAULT_PAGE_PARALLELISM;
+    private volatile boolean hedgeReads = false;
+    private volatile ApicCheckpointStore checkpointStore;
 
     /**
      * Singleton method for creating new ACIRestClient object and logging into
@@ -171,34 +170,32 @@ public class ACIRestClient {
     public static ACIRestClient newAciRest(final String cluster,
             final String url, final String username, final String password)
             throws Exception {
-        String[] urls = url.split(",");
-        for (String singleUrl : urls) {
-
-            URI uri = new URI(singleUrl);
-            if (!HTTPS_SCHEME.equals(uri.getScheme())) {
-                throw new ACIRestException("Unsupported scheme "
-                        + uri.getScheme() + ".Please use only "
-                        + HTTPS_SCHEME);
-            }
-            int port = uri.getPort();
-            if (port < 0) {
-                port = DEFAULT_PORT;
-            }
-            ACIRestClient aciRest = new ACIRestClient(cluster, uri.getHost(),
-                                                      username, password,
-                                                      null, null, port);
-            try {
-                JSONObject loginResult = aciRest.login();
-                LOG.info("ACI: Connected to " + singleUrl);
-                LOG.trace(loginResult.toJSONString());
-                return aciRest;
-            } catch (Throwable e) {
-                LOG.warn("Failed to connect to " + uri.toASCIIString(), e);
-            }
-        }
-        // If we made it here, then failed to login
-        throw new ACIRestException("Could not login to Rest API server. Please check login credentials.");
+        return newAciRest(cluster, url, username, password, null, null, null);
+    }
 
+    /**
+     * Create a client whose token is refreshed on a pool shared with other
+     * clients.
+     *
+     * @param cluster
+     *            Name of APIC Cluster
+     * @param url
+     *            Comma delimited list of APIC URLs
+     * @param username
+     *            APIC user login ID.
+     * @param password
+     *            APIC user login password.
+     * @param tokenExecutor
+     *            refreshes the token, owned by the caller; null for a
+     *            thread of the client's own
+     * @return the ACIRestClient instance.
+     * @throws Exception
+     */
+    public static ACIRestClient newAciRest(final String cluster,
+            final String url, final String username, final String password,
+            final ScheduledExecutorService tokenExecutor)
+            throws Exception {
+        return newAciRest(cluster, url, username, password, null, null, tokenExecutor);
     }
 
     /**
@@ -224,10 +221,20 @@ public class ACIRestClient {
             final String url, final String username, final String password,
             final String trustStorePath, final String trustStorePassword)
             throws Exception {
-        String[] urls = url.split(",");
-        for (String singleUrl : urls) {
+        return newAciRest(cluster, url, username, password, trustStorePath, trustStorePassword, null);
+    }
+
+    private static ACIRestClient newAciRest(final String cluster,
+            final String url, final String username, final String password,
+            final String trustStorePath, final String trustStorePassword,
+            final ScheduledExecutorService tokenExecutor)
+            throws Exception {
+        List<ApicMemberSelector.Member> members = new ArrayList<>();
+        for (String singleUrl : url.split(",")) {
+            if (singleUrl.trim().isEmpty())
+                continue;
 
-            URI uri = new URI(singleUrl);
+            URI uri = new URI(singleUrl.trim());
             if (!HTTPS_SCHEME.equals(uri.getScheme())) {
                 throw new ACIRestException("Unsupported scheme "
                         + uri.getScheme() + ".Please use only "
@@ -237,19 +244,24 @@ public class ACIRestClient {
             if (port < 0) {
                 port = DEFAULT_PORT;
             }
-            ACIRestClient aciRest = new ACIRestClient(cluster, uri.getHost(),
-                                                      username, password,
-                                                      trustStorePath,
-                                                      trustStorePassword,
-                                                      port);
-            try {
-                JSONObject loginResult = aciRest.login();
-                LOG.info("ACI: Connected to {}", singleUrl);
-                LOG.trace(loginResult.toJSONString());
-                return aciRest;
-            } catch (Throwable e) {
-                LOG.warn("ACI: Failed to connect to: {}", uri.toASCIIString(), e);
-            }
+            members.add(new ApicMemberSelector.Member(uri.getHost(), port));
+        }
+        if (members.isEmpty())
+            throw new ACIRestException("No APIC URL configured for cluster " + cluster);
+
+        // One client for the whole cluster, requests are routed to the best member
+        ACIRestClient aciRest = new ACIRestClient(cluster, members,
+                                                  username, password,
+                                                  trustStorePath,
+                                                  trustStorePassword,
+                                                  tokenExecutor);
+        try {
+            JSONObject loginResult = aciRest.login();
+            LOG.trace(loginResult.toJSONString());
+            return aciRest;
+        } catch (Throwable e) {
+            LOG.warn("ACI: Failed to connect to any APIC of cluster {}: {}", cluster, url, e);
+            aciRest.close();
         }
         // If we made it here, then failed to login
         throw new ACIRestException("Could not login to Rest API server. Please check login credentials.");
@@ -260,8 +272,8 @@ public class ACIRestClient {
      *
      * @param cluster
      *            Name of APIC Cluster
-     * @param host
-     *            OCI server host name.
+     * @param members
+     *            the APICs of the cluster.
      * @param username
      *            OCI user name.
      * @param password
@@ -270,39 +282,41 @@ public class ACIRestClient {
      *            OCI trust store path.
      * @param trustStorePassword
      *            OCI trust store password.
-     * @param port
-     *            OCI server port.
+     * @param tokenExecutor
+     *            refreshes the token, null for a thread of the client's own
      * @throws Exception
      */
-    private ACIRestClient(final String cluster, final String host,
+    private ACIRestClient(final String cluster, final List<ApicMemberSelector.Member> members,
             final String username, final String password,
             final String trustStorePath, final String trustStorePassword,
-            final int port) throws Exception {
+            final ScheduledExecutorService tokenExecutor) throws Exception {
+        SSLContext sslContext;
         if (trustStorePath != null) {
             initializeTrustStore(trustStorePath, trustStorePassword);
-            this.httpClient = new DefaultHttpClient();
+            sslContext = SSLContext.getDefault();
         } else {
-
-            TrustStrategy acceptingTrustStrategy = (cert, authType) -> true;
-            SSLSocketFactory sf = new SSLSocketFactory(acceptingTrustStrategy,
-                                                       SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-            SchemeRegistry registry = new SchemeRegistry();
-            registry.register(new Scheme("https", port, sf));
-            ClientConnectionManager ccm = new PoolingClientConnectionManager(registry);
-            this.httpClient = new DefaultHttpClient(ccm);
-
+            // APICs commonly run with self-signed certificates and are
+            // addressed by IP, so accept any certificate and host name.
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] { new TrustAllManager() }, new SecureRandom());
         }
+        // HTTP/1.1 connections are pooled per APIC by the client; the
+        // in-flight limiter bounds how many of them can be open at once.
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .sslContext(sslContext)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+        this.limiter = new InFlightLimiter(DEFAULT_MAX_IN_FLIGHT_REQUESTS);
         this.username = username;
         this.password = password;
         this.authHeader = "Basic " + Base64.encodeBase64String((username + ':'
                 + password).getBytes("UTF-8"));
         this.cluster = cluster;
-        this.host = host;
-        this.port = port;
-        this.httpContext = new BasicHttpContext();
-        this.cookieStore = new BasicCookieStore();
-        this.httpContext.setAttribute(ClientContext.COOKIE_STORE, this.cookieStore);
+        this.members = new ApicMemberSelector(members);
         this.restUrlPrefix = "/api/";
+        this.ownedTokenExecutor = tokenExecutor == null ? ApicTokenManager.newRefreshExecutor(1) : null;
+        this.tokenManager = new ApicTokenManager(this, tokenExecutor != null ? tokenExecutor : ownedTokenExecutor);
         LOG.trace(this.toString());
     }
 
@@ -335,15 +349,31 @@ public class ACIRestClient {
      * @throws Exception
      *             on failure to login.
      */
-    private JSONObject login() throws Exception {
-        // RestHttpPost restPost = new RestHttpPost( "login" );
-        RestHttpPost restPost = new RestHttpPost("aaaLogin.json");
-        restPost.addHeader("Authorization", authHeader);
-        restPost.setEntity(new StringEntity("{\"aaaUser\": {\"attributes\": {\"name\": \""
-                + username + "\", \"pwd\": \"" + password + "\"}}}"));
-        final HttpResponse httpResponse = httpClient.execute(restPost, httpContext);
-        final HttpEntity httpEntity = httpResponse.getEntity();
-        final String data = EntityUtils.toString(httpEntity);
+    JSONObject login() throws Exception {
+        Exception failure = null;
+        for (ApicMemberSelector.Member member : members.candidates()) {
+            try {
+                JSONObject result = login(member);
+                LOG.info("ACI: Connected to https://{}:{}", member.getHost(), member.getPort());
+                return result;
+            } catch (ACIRestException e) {
+                // Rejected credentials are not going to work on another member either
+                throw e;
+            } catch (Exception e) {
+                LOG.warn("ACI: Failed to connect to: https://{}:{}", member.getHost(), member.getPort(), e);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private JSONObject login(ApicMemberSelector.Member member) throws Exception {
+        HttpRequest restPost = newRequest("aaaLogin.json", member)
+                .header("Authorization", authHeader)
+                .POST(BodyPublishers.ofString("{\"aaaUser\": {\"attributes\": {\"name\": \""
+                        + username + "\", \"pwd\": \"" + password + "\"}}}"))
+                .build();
+        final String data = exchange(member, restPost).body();
         LOG.debug("ACI: data: {}", data);
         final JSONParser parser = new JSONParser();
         JSONObject result = (JSONObject) parser.parse(data);
@@ -354,16 +384,65 @@ public class ACIRestClient {
             throw new ACIRestException("Failed to Login, reason: \n"
                     + ((JSONObject) r2).toJSONString());
         }
-        JSONObject aaaLogin = (JSONObject) r2.get("aaaLogin");
-        JSONObject attributes = (JSONObject) aaaLogin.get("attributes");
-        token = (String) attributes.get("token");
-
-        Cookie cookie = new BasicClientCookie("APIC-cookie", token);
-        this.cookieStore.addCookie(cookie);
+        updateToken((JSONObject) r2.get("aaaLogin"));
 
         return result;
     }
 
+    /**
+     * Blocking exchange for the session calls, feeding the member statistics.
+     */
+    private HttpResponse<String> exchange(ApicMemberSelector.Member member, HttpRequest request) throws Exception {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = httpClient.send(request, BodyHandlers.ofString());
+            if (isServerError(response))
+                members.onFailure(member, "HTTP " + response.statusCode());
+            else
+                members.onSuccess(member, System.nanoTime() - start);
+            return response;
+        } catch (IOException e) {
+            members.onFailure(member, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Extend the current APIC session via aaaRefresh.
+     *
+     * @throws Exception
+     *             if the APIC did not hand back a refreshed token.
+     */
+    void refreshToken() throws Exception {
+        ApicMemberSelector.Member member = members.select();
+        HttpRequest restGet = withToken(newRequest("aaaRefresh.json", member), getToken()).GET().build();
+        final String authData = exchange(member, restGet).body();
+        JSONObject result = (JSONObject) new JSONParser().parse(authData);
+
+        JSONArray imdata = (JSONArray) result.get("imdata");
+        JSONObject r2 = imdata == null || imdata.isEmpty() ? null : (JSONObject) imdata.get(0);
+        if (r2 == null || !r2.containsKey("aaaLogin")) {
+            throw new ACIRestException("Failed to refresh token, reason: \n" + authData);
+        }
+        updateToken((JSONObject) r2.get("aaaLogin"));
+    }
+
+    private void updateToken(JSONObject aaaLogin) {
+        JSONObject attributes = (JSONObject) aaaLogin.get("attributes");
+        String newToken = (String) attributes.get("token");
+        long timeout = -1;
+        Object refreshTimeout = attributes.get("refreshTimeoutSeconds");
+        if (refreshTimeout != null) {
+            try {
+                timeout = Long.parseLong(refreshTimeout.toString());
+            } catch (NumberFormatException e) {
+                LOG.debug("ACI: Ignoring invalid refreshTimeoutSeconds: {}", refreshTimeout);
+            }
+        }
+
+        tokenManager.onToken(newToken, timeout);
+    }
+
     /**
      * Parse the parameters from the URL path.
      *
@@ -383,7 +462,7 @@ public class ACIRestClient {
         path = pathQuery[0];
         String query = pathQuery[1];
         URIBuilder uriBuilder = new URIBuilder();
-        uriBuilder.setScheme(HTTPS_SCHEME).setHost(host).setPort(port).setPath(path).setQuery(query);
+        uriBuilder.setScheme(HTTPS_SCHEME).setHost(getHost()).setPort(getPort()).setPath(path).setQuery(query);
         for (NameValuePair pair : uriBuilder.getQueryParams()) {
             if (params.containsKey(pair.getName())) {
                 throw new ACIRestException("Could not parse query from URL. Duplicate query parameter found: "
@@ -404,57 +483,44 @@ public class ACIRestClient {
     public List<JSONArray> getHealth(String... classes) throws Exception {
         List<JSONArray> results = new ArrayList<JSONArray>();
         for (String apicClass : classes) {
-            String queryUrl = "node/class/" + apicClass + ".json";
-            JSONObject result = (JSONObject) this.get(queryUrl);
-            JSONArray imdata = (JSONArray) result.get("imdata");
+            // Health and faults of a fabricNode hang off its topSystem
+            final boolean onSystem = apicClass.equals("fabricNode");
+            final String targetClass = onSystem ? "topSystem" : apicClass;
+
+            // One class level query each for health and faults, joined back
+            // to the objects below instead of two queries per object
+            CompletableFuture<List<Map.Entry<String, JSONObject>>> health = collectAsync(
+                    "node/class/" + targetClass + ".json?" + HEALTH_QUERY);
+            CompletableFuture<List<Map.Entry<String, JSONObject>>> faults = collectAsync(
+                    "node/class/" + targetClass + ".json?" + FAULTS_QUERY);
+
+            JSONArray imdata = await(getClassInfoAsync(true, apicClass));
+            List<String> dns = new ArrayList<>();
             for (Object object : imdata) {
                 JSONObject objectData = (JSONObject) object;
                 if (objectData.get("error") != null) {
-                    printError(imdata, apicClass, this.host);
+                    printError(imdata, apicClass, getHost());
                 } else {
                     for (Object object2 : objectData.keySet()) {
                         String key = (String) object2;
                         JSONObject attributes = (JSONObject) ((JSONObject) objectData.get(key)).get("attributes");
                         String dn = (String) attributes.get("dn");
-
-                        // Health Details
-                        String hqueryUrl = null;
-                        if (apicClass.equals("fabricNode")) {
-                            hqueryUrl = "mo/" + dn
-                                    + "/sys.json?rsp-subtree-include=health,no-scoped";
-                        } else {
-                            hqueryUrl = "mo/" + dn
-                                    + ".json?rsp-subtree-include=health,no-scoped";
-                        }
-
-                        JSONObject healthrt = (JSONObject) this.get(hqueryUrl);
-                        JSONArray healthdata = (JSONArray) healthrt.get("imdata");
-                        results.add(healthdata);
-                        printObjectProperties(healthdata, apicClass, this.host);
-                        // printObjectProperties( healthdata, "healthInst",
-                        // this.host );
-
-                        // Fault Details
-                        String fqueryUrl = null;
-                        if (apicClass.equals("fabricNode")) {
-                            fqueryUrl = "mo/" + dn
-                                    + "/sys.json?rsp-subtree-include=faults,no-scoped&query-target=subtree";
-                        } else {
-                            fqueryUrl = "mo/" + dn
-                                    + ".json?rsp-subtree-include=faults,no-scoped&query-target=subtree";
-                        }
-
-                        JSONObject faultrt = (JSONObject) this.get(fqueryUrl);
-                        JSONArray faultdata = (JSONArray) faultrt.get("imdata");
-                        results.add(faultdata);
-                        // printObjectProperties( faultdata, "faultDelegate",
-                        // this.host );
-                        printObjectProperties(faultdata, apicClass, this.host);
-
+                        dns.add(onSystem ? dn + "/sys" : dn);
                     }
                 }
             }
 
+            Map<String, JSONArray> healthByDn = joinToObjects(health, targetClass, HEALTH_QUERY, dns);
+            Map<String, JSONArray> faultsByDn = joinToObjects(faults, targetClass, FAULTS_QUERY, dns);
+            for (String dn : dns) {
+                JSONArray healthdata = healthByDn.getOrDefault(dn, new JSONArray());
+                results.add(healthdata);
+                printObjectProperties(healthdata, apicClass, getHost());
+
+                JSONArray faultdata = faultsByDn.getOrDefault(dn, new JSONArray());
+                results.add(faultdata);
+                printObjectProperties(faultdata, apicClass, getHost());
+            }
         }
 
         return results;
@@ -472,24 +538,22 @@ public class ACIRestClient {
         List<JSONArray> results = new ArrayList<JSONArray>();
         for (String apicClass : classes) {
             if (!apicClass.equals("fvCEp")) {
-                String queryUrl = "node/class/" + apicClass + ".json";
-                JSONObject result = (JSONObject) this.get(queryUrl);
-                JSONArray imdata = (JSONArray) result.get("imdata");
-                for (Object object : imdata) {
-                    JSONObject objectData = (JSONObject) object;
-                    for (Object object2 : objectData.keySet()) {
-                        String key = (String) object2;
-                        JSONObject attributes = (JSONObject) ((JSONObject) objectData.get(key)).get("attributes");
-                        String dn = (String) attributes.get("dn");
+                CompletableFuture<List<Map.Entry<String, JSONObject>>> stats = collectAsync(
+                        "node/class/" + apicClass + ".json?" + STATS_QUERY);
+
+                List<String> dns = new ArrayList<>();
+                this.getClassInfo(apicClass, (moClass, attributes) -> {
+                    if ("error".equals(moClass))
+                        LOG.warn("ACI: Query for {} on {} failed: {}", apicClass, getHost(), attributes.toJSONString());
+                    else
+                        dns.add((String) attributes.get("dn"));
+                });
 
-                        // Health Details
-                        String moqueryUrl = "mo/" + dn
-                                + ".json?rsp-subtree-include=stats,no-scoped";
-                        JSONObject moret = (JSONObject) this.get(moqueryUrl);
-                        JSONArray modata = (JSONArray) moret.get("imdata");
-                        results.add(modata);
-                        printObjectProperties(modata, apicClass, this.host);
-                    }
+                Map<String, JSONArray> statsByDn = joinToObjects(stats, apicClass, STATS_QUERY, dns);
+                for (String dn : dns) {
+                    JSONArray modata = statsByDn.getOrDefault(dn, new JSONArray());
+                    results.add(modata);
+                    printObjectProperties(modata, apicClass, getHost());
                 }
 
             } else {
@@ -518,7 +582,7 @@ public class ACIRestClient {
                             }
 
                         }
-                        attributes.put("apic_host", this.host);
+                        attributes.put("apic_host", getHost());
                         attributes.put("component", apicClass);
                         LOG.debug(attributes.toJSONString());
                     }
@@ -529,19 +593,108 @@ public class ACIRestClient {
         return results;
     }
 
+    /**
+     * Group the result of a batched subtree query by the object each entry
+     * belongs to. If the APIC rejected the batched query, fall back to one
+     * query per object, still bounded by the in-flight limit.
+     *
+     * @param batch
+     *            the pending class level query
+     * @param apicClass
+     *            the queried class, for logging
+     * @param query
+     *            the query options used for the batch, reused per object
+     * @param dns
+     *            the objects to join the result to
+     * @return the entries belonging to each of the given objects
+     * @throws Exception
+     */
+    private Map<String, JSONArray> joinToObjects(CompletableFuture<List<Map.Entry<String, JSONObject>>> batch,
+                                                 String apicClass, String query, List<String> dns) throws Exception {
+        List<Map.Entry<String, JSONObject>> objects = null;
+        try {
+            objects = await(batch);
+        } catch (Exception e) {
+            LOG.debug("ACI: Batched query failed", e);
+        }
+        if (objects == null || objects.stream().anyMatch(entry -> "error".equals(entry.getKey()))) {
+            LOG.debug("ACI: Batched {} query for {} not usable on {}, querying {} objects individually",
+                      query, apicClass, getHost(), dns.size());
+            Map<String, CompletableFuture<Object>> pending = new LinkedHashMap<>();
+            for (String dn : dns)
+                pending.put(dn, this.getAsync("mo/" + dn + ".json?" + query));
+            Map<String, JSONArray> byDn = new HashMap<>();
+            for (Map.Entry<String, CompletableFuture<Object>> entry : pending.entrySet())
+                byDn.put(entry.getKey(), (JSONArray) ((JSONObject) await(entry.getValue())).get("imdata"));
+            return byDn;
+        }
+
+        Set<String> parents = new HashSet<>(dns);
+        Map<String, JSONArray> byDn = new HashMap<>();
+        for (Map.Entry<String, JSONObject> entry : objects) {
+            String parent = parentDn((String) entry.getValue().get("dn"));
+            while (parent != null && !parents.contains(parent))
+                parent = parentDn(parent);
+            if (parent != null)
+                addEntry(byDn.computeIfAbsent(parent, dn -> new JSONArray()), entry.getKey(), entry.getValue());
+        }
+        return byDn;
+    }
+
+    /**
+     * @return the dn of the parent object, or null for a top level dn. Slashes
+     *         inside bracketed rn values (e.g. phys-[eth1/1]) are skipped.
+     */
+    private static String parentDn(String dn) {
+        if (dn == null)
+            return null;
+        int depth = 0;
+        for (int i = dn.length() - 1; i > 0; i--) {
+            char c = dn.charAt(i);
+            if (c == ']')
+                depth++;
+            else if (c == '[')
+                depth--;
+            else if (c == '/' && depth == 0)
+                return dn.substring(0, i);
+        }
+        return null;
+    }
+
     public JSONArray getCurrentFaults(String scaleStart) throws Exception {
+        JSONArray imdata = new JSONArray();
+        this.getCurrentFaults(scaleStart, record -> addEntry(imdata, record.getMoClass(), record.toJSONObject()));
+        return imdata;
+    }
 
-        return this.getBigDataRange("faultRecord", scaleStart);
+    /**
+     * Stream all faultRecords created after the given time.
+     *
+     * @param scaleStart
+     *            APIC timestamp to start from (exclusive)
+     * @param consumer
+     *            receives each faultRecord as it is decoded
+     * @return the number of faultRecords reported by the APIC
+     * @throws Exception
+     */
+    public int getCurrentFaults(String scaleStart, FaultRecordConsumer consumer) throws Exception {
+        return this.getBigDataRange("faultRecord", scaleStart, consumer);
     }
 
     public JSONArray getManagedObject(String dn) throws Exception {
+        return await(getManagedObjectAsync(dn));
+    }
+
+    public CompletableFuture<JSONArray> getManagedObjectAsync(String dn) {
         String queryUrl = "mo/" + dn + ".json";
 
-        JSONObject result = (JSONObject) this.get(queryUrl);
-        int totalCount = Integer.parseInt((String) result.get("totalCount"));
-        LOG.debug("Found " + totalCount + " " + dn + " record(s)");
-        printObjectProperties((JSONArray) result.get("imdata"), dn, this.host);
-        return (JSONArray) result.get("imdata");
+        return this.getAsync(queryUrl).thenApply(r -> {
+            JSONObject result = (JSONObject) r;
+            int totalCount = Integer.parseInt((String) result.get("totalCount"));
+            LOG.debug("Found " + totalCount + " " + dn + " record(s)");
+            printObjectProperties((JSONArray) result.get("imdata"), dn, getHost());
+            return (JSONArray) result.get("imdata");
+        });
     }
 
     public JSONArray getManagedObjectSubtree(String dn, String subClass) throws Exception {
@@ -550,7 +703,7 @@ public class ACIRestClient {
         JSONObject result = (JSONObject) this.get(queryUrl);
         int totalCount = Integer.parseInt((String) result.get("totalCount"));
         LOG.debug("Found " + totalCount + " " + dn + " record(s)");
-        printObjectProperties((JSONArray) result.get("imdata"), dn, this.host);
+        printObjectProperties((JSONArray) result.get("imdata"), dn, getHost());
         return (JSONArray) result.get("imdata");
     }
 
@@ -589,14 +742,7 @@ public class ACIRestClient {
                 t.start();
                 classThreads.add(t);
             } else {
-                String queryUrl = "node/class/" + apicClass + ".json";
-                JSONObject result = (JSONObject) this.get(queryUrl);
-                int totalCount = Integer.parseInt((String) result.get("totalCount"));
-                if (!noPrint)
-                    printObjectProperties((JSONArray) result.get("imdata"), apicClass, this.host);
-                LOG.debug("Found " + totalCount + " " + apicClass
-                        + " record(s)");
-                return (JSONArray) result.get("imdata");
+                return await(getClassInfoAsync(noPrint, apicClass));
             }
         }
 
@@ -608,199 +754,105 @@ public class ACIRestClient {
         return null;
     }
 
-    private void getBigDataResult(String apicClass) {
-        String cwd = Paths.get(".").toAbsolutePath().normalize().toString();
-        String fileName = cluster + "_" + apicClass
-                + "_LastTransactionTime.txt";
-        String filePath = Paths.get(cwd, fileName).toAbsolutePath().normalize().toString();
-        BufferedReader reader = null;
-        LOG.debug(filePath);
-
-        try {
-            File file = new File(filePath);
-            String currentTime = this.getCurrentTime();
-
-            if (file.isFile()) {
-                // Found previous run, start from that point
-                reader = new BufferedReader(new FileReader(file));
-                String scaleStart = reader.readLine();
-                this.batchBigData(filePath, apicClass, scaleStart);
-            } else {
-                // No previous run, process all data
-                this.processAllBigData(filePath, apicClass, currentTime);
-            }
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+    /**
+     * Get general information for all the managed objects of a class without
+     * blocking.
+     *
+     * @param noPrint
+     *            skip debug printing of the returned objects
+     * @param apicClass
+     *            the APIC class to query
+     * @return a future completing with the imdata of the class query
+     */
+    public CompletableFuture<JSONArray> getClassInfoAsync(boolean noPrint, String apicClass) {
+        final JSONArray imdata = new JSONArray();
+        final ImdataConsumer collector = collectInto(imdata);
+        return this.getClassInfoAsync(apicClass, (moClass, attributes) -> {
+            if (!noPrint)
+                printObjectProperties(attributes, apicClass, getHost());
+            collector.accept(moClass, attributes);
+        }).thenApply(totalCount -> imdata);
     }
 
-    private void processAllBigData(String filePath, String apicClass,
-            String scaleEnd) throws Exception {
-        final java.util.Calendar cal = GregorianCalendar.getInstance();
+    /**
+     * Stream all the managed objects of a class.
+     *
+     * @param apicClass
+     *            the APIC class to query
+     * @param consumer
+     *            receives each managed object as it is decoded
+     * @return the number of objects reported by the APIC
+     * @throws Exception
+     */
+    public int getClassInfo(String apicClass, ImdataConsumer consumer) throws Exception {
+        return await(getClassInfoAsync(apicClass, consumer));
+    }
 
-        String queryUrl = "node/class/" + apicClass
-                + ".json?rsp-subtree-include=count&query-target-filter=lt("
-                + apicClass + ".created,\"" + scaleEnd + "\")";
-        JSONObject result = (JSONObject) this.get(queryUrl);
-        JSONArray imdata = (JSONArray) result.get("imdata");
+    /**
+     * Asynchronous variant of {@link #getClassInfo(String, ImdataConsumer)}.
+     *
+     * @param apicClass
+     *            the APIC class to query
+     * @param consumer
+     *            receives each managed object as it is decoded
+     * @return a future completing with the number of objects reported by the
+     *         APIC
+     */
+    public CompletableFuture<Integer> getClassInfoAsync(String apicClass, ImdataConsumer consumer) {
+        String queryUrl = "node/class/" + apicClass + ".json";
+        return this.streamAsync(queryUrl, consumer).thenApply(totalCount -> {
+            LOG.debug("Found " + totalCount + " " + apicClass
+                    + " record(s)");
+            return totalCount;
+        });
+    }
 
+    private void getBigDataResult(String apicClass) {
+        try {
+            ApicCheckpointStore.Checkpoint checkpoint = checkpointStore == null ? null
+                    : checkpointStore.get(cluster, apicClass);
+            // Never null, unlike a failed node/mo/info query
+            String currentTime = ApicTimestampCodec.format(apicNow());
+            String filter;
 
-        int count = 0;
-        for (Object object : imdata) {
-            JSONObject data = (JSONObject) object;
-            if (data.get("error") != null) {
-                printError(imdata, apicClass, this.host);
+            if (checkpoint != null) {
+                // Found previous run, start from that point
+                filter = "and(ge(" + apicClass + ".created,\"" + checkpoint.getCreated() + "\"),lt("
+                        + apicClass + ".created,\"" + currentTime + "\"))";
             } else {
-                for (Object object2 : data.keySet()) {
-                    String key = (String) object2;
-                    JSONObject attributes = (JSONObject) ((JSONObject) data.get(key)).get("attributes");
-                    count = Integer.parseInt((String) attributes.get("count"));
-                }
+                // No previous run, process all data
+                filter = "lt(" + apicClass + ".created,\"" + currentTime + "\")";
             }
-        }
-
-        if (count < 99000) {
-            queryUrl = "node/class/" + apicClass
-                    + ".json?query-target-filter=lt(" + apicClass
-                    + ".created,\"" + scaleEnd + "\")";
 
+            String queryUrl = "node/class/" + apicClass + ".json?query-target-filter=" + filter;
             int totalCount = this.queryAndPrint(apicClass, queryUrl);
-            this.updateFile(filePath, scaleEnd);
+            if (checkpointStore != null) {
+                checkpointStore.put(cluster, apicClass, currentTime, null);
+                checkpointStore.flush();
+            }
             LOG.debug("Finished processing " + totalCount + " "
                     + apicClass + " entrie(s)");
-        } else {
-            // Since we have more than 99000 results, we have to paginate over
-            // last 60 days
-            String[] timeparts = scaleEnd.split("T");
-            String onlydate = timeparts[0];
-            String onlytimewtz = timeparts[1];
-            String onlytime = onlytimewtz.substring(1, onlytimewtz.length()
-                    - 6);
-            String onlytz = onlytimewtz.substring(onlytimewtz.length() - 6);
-            String tz = onlytz.replace(":", "");
-
-            cal.setTimeInMillis(format.parse(onlydate + "T" + onlytime
-                    + tz).getTime());
-            cal.add(GregorianCalendar.MINUTE, -5); // default to 5 minutes
-            String previous = dateOnlyFormat.format(cal.getTime());
-            String scaleStart = previous + "T" + onlytime + onlytz;
-            this.batchBigData(filePath, apicClass, scaleStart);
-        }
-    }
-
-    private void batchBigData(String filePath, String apicClass,
-            String startTime) throws Exception {
-        final java.util.Calendar currentCal = GregorianCalendar.getInstance();
-        final java.util.Calendar startCal = GregorianCalendar.getInstance();
-        String currentTime = this.getCurrentTime();
-        String[] currentTimeparts = currentTime.split("T");
-        String currentdate = currentTimeparts[0];
-
-        int entryCount = 0;
-
-        String[] startTimeparts = startTime.split("T");
-        String onlydate = startTimeparts[0];
-        String onlytimewtz = startTimeparts[1];
-        String onlytime = onlytimewtz.substring(0, onlytimewtz.length() - 6);
-        String onlytz = onlytimewtz.substring(onlytimewtz.length() - 6);
-        String tz = onlytz.replace(":", "");
-
-        startCal.setTimeInMillis(format.parse(onlydate + "T" + onlytime
-                + tz).getTime());
-
-        if (currentCal.before(startCal))
-            throw new ACIRestException(filePath
-                    + ": contains date in future: " + startTime);
-
-        int days = (int) ((currentCal.getTimeInMillis()
-                - startCal.getTimeInMillis()) / (1000 * 60 * 60 * 24));
-        if ((startCal.get(GregorianCalendar.DATE) == currentCal.get(GregorianCalendar.DATE))
-                || (days <= 1)) {
-            // Same date or within 24 hours just get all data
-            int totalCount = this.processBigDataRange(apicClass, startTime, currentTime);
-            entryCount += totalCount;
-            this.updateFile(filePath, currentTime);
-        } else {
-            // This means we have a range, need to determine how much in
-            // range.
-            // int loop = currentCal.get( GregorianCalendar.DATE ) -
-            // startCal.get( GregorianCalendar.DATE );
-            int loop = days;
-            int start = 0;
-
-            while (start < loop) {
-                currentCal.setTimeInMillis(format.parse(currentdate + "T"
-                        + onlytime + tz).getTime());
-                currentCal.add(GregorianCalendar.DATE, (-1 * (loop - start)));
-                String previous = dateOnlyFormat.format(currentCal.getTime());
-                String scaleStart = previous + "T" + onlytime + onlytz;
-                currentCal.add(GregorianCalendar.DATE, 1);
-                String end = dateOnlyFormat.format(currentCal.getTime());
-                String scaleEnd = end + "T" + onlytime + onlytz;
-
-                int totalCount = this.processBigDataRange(apicClass, scaleStart, scaleEnd);
-                entryCount += totalCount;
-
-                this.updateFile(filePath, scaleEnd);
-                start++;
-            }
+        } catch (Exception e) {
+            LOG.warn("ACI: Failed to retrieve " + apicClass + " from " + getHost(), e);
         }
-        LOG.debug("Finished processing " + entryCount + " "
-                + apicClass + " entrie(s)");
-
-    }
-
-    private JSONArray getBigDataRange(String apicClass, String scaleStart)
-            throws Exception {
-        String queryUrl = "node/class/" + apicClass
-                + ".json?query-target-filter=gt(" + apicClass
-                + ".created,\"" + scaleStart + "\")";
-        return this.getFaults(queryUrl);
     }
 
-    private int processBigDataRange(String apicClass, String scaleStart)
+    private int getBigDataRange(String apicClass, String scaleStart, FaultRecordConsumer consumer)
             throws Exception {
         String queryUrl = "node/class/" + apicClass
                 + ".json?query-target-filter=gt(" + apicClass
                 + ".created,\"" + scaleStart + "\")";
-
-        int totalCount = this.queryAndPrint(apicClass, queryUrl);
-        LOG.debug("Processed " + apicClass + " ( " + scaleStart
-                +  " ) with " + totalCount + " entrie(s)");
-
-        return totalCount;
-    }
-
-    private int processBigDataRange(String apicClass, String scaleStart,
-            String scaleEnd) throws Exception {
-        String queryUrl = "node/class/" + apicClass
-                + ".json?query-target-filter=and(ge(" + apicClass
-                + ".created,\"" + scaleStart + "\"),lt(" + apicClass
-                + ".created,\"" + scaleEnd + "\"))";
-
-        int totalCount = this.queryAndPrint(apicClass, queryUrl);
-        LOG.debug("Processed " + apicClass + " ( " + scaleStart
-                + " to " + scaleEnd + " ) with " + totalCount + " entrie(s)");
-
-        return totalCount;
+        return this.streamFaultsPaged(queryUrl, apicClass + ".created|asc", consumer);
     }
 
     private int queryAndPrint(String apicClass, String queryUrl)
             throws Exception {
-        int totalCount = 0;
-        JSONObject result = (JSONObject) this.get(queryUrl);
-        JSONArray imdata = (JSONArray) result.get("imdata");
-        totalCount = Integer.parseInt((String) result.get("totalCount"));
-        printObjectProperties(imdata, apicClass, this.host);
-
-        return totalCount;
+        return this.streamPaged(queryUrl, apicClass + ".created|asc", (moClass, attributes) -> {
+            if ("error".equals(moClass))
+                LOG.warn("ACI: Query for {} on {} failed: {}", apicClass, getHost(), attributes.toJSONString());
+            else
+                printObjectProperties(attributes, apicClass, getHost());
+        });
     }
 
     public JSONArray getFaults(String queryUrl)
@@ -811,71 +863,59 @@ public class ACIRestClient {
 
     public JSONObject runQuery(String queryUrl)
             throws Exception {
-         return (JSONObject) this.get(queryUrl);
+         return await(runQueryAsync(queryUrl));
      }
 
+    public CompletableFuture<JSONObject> runQueryAsync(String queryUrl) {
+        return this.getAsync(queryUrl).thenApply(JSONObject.class::cast);
+    }
+
     public JSONObject runQueryNoAuth(String queryUrl)
             throws Exception {
          return (JSONObject) this.getNoAuth(queryUrl);
      }
 
-    private synchronized void updateFile(String filePath, String timedata)
-            throws IOException {
-
-        BufferedReader reader = null;
-        PrintWriter pw = null;
-
-        File file = new File(filePath);
-
-        try {
-            // Last, store current datetimestamp to file
-            FileWriter fw = new FileWriter(file, false);
-            pw = new PrintWriter(fw);
-            pw.println(timedata);
-        } finally {
-            try {
-                if (reader != null)
-                    reader.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            try {
-                if (pw != null) {
-                    pw.flush();
-                    pw.close();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * Like {@link #runQueryNoAuth(String)}, but always sent to the given APIC,
+     * e.g. the one holding the websocket a subscription belongs to.
+     *
+     * @param queryUrl
+     *            the rest path to send the GET request to.
+     * @param member
+     *            the APIC to send the request to.
+     * @return the result of the GET request.
+     * @throws Exception
+     */
+    public JSONObject runQueryNoAuth(String queryUrl, ApicMemberSelector.Member member)
+            throws Exception {
+        return (JSONObject) await(limiter.submit(
+                () -> send(m -> withToken(newRequest(buildUri(queryUrl, m)), getToken()).GET(), member, null, false,
+                           BodyHandlers.ofString()).thenApply(ACIRestClient::parse)));
     }
 
     public String getTimeStamp(int secondsFromNow) throws ParseException {
-        String currentTime = getCurrentTime();
-        final java.util.Calendar cal = GregorianCalendar.getInstance();
-
-        String[] timeparts = currentTime.split("T");
-        String onlydate = timeparts[0];
-        String onlytimewtz = timeparts[1];
-        String onlytime = onlytimewtz.substring(0, onlytimewtz.length()
-                - 6);
-        String onlytz = onlytimewtz.substring(onlytimewtz.length() - 6);
-        String tz = onlytz.replace(":", "");
-
-        cal.setTimeInMillis(format.parse(onlydate + "T" + onlytime
-                + tz).getTime());
-        cal.add(GregorianCalendar.SECOND, secondsFromNow * -1);
-        String timestamp = this.format.format(cal.getTimeInMillis());
+        return ApicTimestampCodec.format(apicNow() - secondsFromNow * 1000L);
+    }
 
-        return timestamp;
+    /**
+     * The current time on the APIC's clock, from the estimated offset. Only
+     * asks the APIC for its time if no response has been sampled yet, and
+     * not again for 30 seconds after a failed query.
+     *
+     * @return epoch millis
+     */
+    public long apicNow() {
+        if (!clock.hasSample() && System.currentTimeMillis() >= nextTimeQuery)
+            getCurrentTime();
+        return clock.apicNow();
     }
 
-    private String getCurrentTime() {
-        // Last, store current datetimestamp to file
+    private void getCurrentTime() {
         String queryUrl = "node/mo/info.json";
-        String currentTime = null;
         try {
+            long sent = System.currentTimeMillis();
             JSONObject result = (JSONObject) this.get(queryUrl);
+            long received = System.currentTimeMillis();
             JSONArray tdata = (JSONArray) result.get("imdata");
             JSONObject objectData = (JSONObject) tdata.get(0);
             JSONObject attributes = null;
@@ -885,14 +925,17 @@ public class ACIRestClient {
                 attributes = (JSONObject) classData.get("attributes");
             }
 
-            currentTime = (String) attributes.get("currentTime");
+            String currentTime = (String) attributes.get("currentTime");
+            long apicMillis = ApicTimestampCodec.parse(currentTime, -1);
+            if (apicMillis > 0) {
+                clock.onSample(apicMillis, sent, received, 1);
+                return;
+            }
+            LOG.warn("ACI: Unexpected currentTime {} from {}, using the local clock", currentTime, getHost());
         } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            LOG.warn("ACI: Failed to query the time of {}, using the local clock", getHost(), e);
         }
-
-        return currentTime;
-
+        nextTimeQuery = System.currentTimeMillis() + TIME_QUERY_BACKOFF_MILLIS;
     }
 
     @SuppressWarnings("unchecked")
@@ -911,13 +954,19 @@ public class ACIRestClient {
                 if (attributes == null)
                     continue;
 
-                attributes.put("apic_host", apicHost);
-                attributes.put("component", apicClass);
-                LOG.trace(attributes.toJSONString());
+                printObjectProperties(attributes, apicClass, apicHost);
             }
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private void printObjectProperties(JSONObject attributes, String apicClass,
+            String apicHost) {
+        attributes.put("apic_host", apicHost);
+        attributes.put("component", apicClass);
+        LOG.trace(attributes.toJSONString());
+    }
+
     @SuppressWarnings("unchecked")
     private void printError(JSONArray data, String apicClass,
             String apicHost) {
@@ -941,15 +990,26 @@ public class ACIRestClient {
      * @throws Exception
      */
     public Object get(String path) throws Exception {
-//        RestHttpGet restGet = new RestHttpGet(path, parseQuery(path));
-        RestHttpGet restGet = new RestHttpGet(path);
-        return doExecute(restGet);
+        return await(getAsync(path));
+    }
+
+    /**
+     * Send a GET request to the rest server without blocking.
+     *
+     * @param path
+     *            the rest path to send the GET request to.
+     * @return a future completing with the parsed result of the GET request.
+     */
+    public CompletableFuture<Object> getAsync(String path) {
+        return executeAsync(member -> newRequest(buildUri(path, member)).GET(), true, true);
     }
 
     public Object getNoAuth(String path) throws Exception {
-//      RestHttpGet restGet = new RestHttpGet(path, parseQuery(path));
-      RestHttpGet restGet = new RestHttpGet(path);
-      return doExecuteNoLogin(restGet);
+        return await(getNoAuthAsync(path));
+    }
+
+    public CompletableFuture<Object> getNoAuthAsync(String path) {
+        return executeAsync(member -> withToken(newRequest(buildUri(path, member)), getToken()).GET(), false, true);
     }
 
     /**
@@ -963,9 +1023,7 @@ public class ACIRestClient {
      * @throws Exception
      */
     public Object post(String path, JSONObject payload) throws Exception {
-        RestHttpPost restPost = new RestHttpPost(path);
-        restPost.setEntity(new StringEntity(payload.toString()));
-        return doExecute(restPost);
+        return await(executeAsync(member -> newRequest(path, member).POST(BodyPublishers.ofString(payload.toString())), true, false));
     }
 
     /**
@@ -977,8 +1035,7 @@ public class ACIRestClient {
      * @throws Exception
      */
     public Object post(String path) throws Exception {
-        RestHttpPost restPost = new RestHttpPost(path);
-        return doExecute(restPost);
+        return await(executeAsync(member -> newRequest(path, member).POST(BodyPublishers.noBody()), true, false));
     }
 
     /**
@@ -992,9 +1049,7 @@ public class ACIRestClient {
      * @throws Exception
      */
     public Object patch(String path, JSONObject payload) throws Exception {
-        RestHttpPatch restPatch = new RestHttpPatch(path);
-        restPatch.setEntity(new StringEntity(payload.toString()));
-        return doExecute(restPatch);
+        return await(executeAsync(member -> newRequest(path, member).method("PATCH", BodyPublishers.ofString(payload.toString())), true, false));
     }
 
     /**
@@ -1008,9 +1063,7 @@ public class ACIRestClient {
      * @throws Exception
      */
     public Object put(String path, JSONObject payload) throws Exception {
-        RestHttpPut restPut = new RestHttpPut(path);
-        restPut.setEntity(new StringEntity(payload.toString()));
-        return doExecute(restPut);
+        return await(executeAsync(member -> newRequest(path, member).PUT(BodyPublishers.ofString(payload.toString())), true, false));
     }
 
     /**
@@ -1022,52 +1075,673 @@ public class ACIRestClient {
      * @throws Exception
      */
     public Object delete(String path) throws Exception {
-        RestHttpDelete restDelete = new RestHttpDelete(path);
-        return doExecute(restDelete);
+        return await(executeAsync(member -> newRequest(path, member).DELETE(), true, false));
     }
 
     /**
-     * Execute a Http request.
+     * Execute a Http request once the in-flight limiter allows it.
      *
      * @param request
-     *            the Http request to be executed.
-     * @return the server response object.
-     * @throws Exception
+     *            supplies the request for a given APIC, without the session
+     *            cookie.
+     * @param authenticated
+     *            whether the session token is managed for this request. If
+     *            set, the cookie is added, an expired token is refreshed first
+     *            and a rejected token triggers a re-login and one retry.
+     * @param idempotent
+     *            whether the request may be repeated on another APIC, i.e.
+     *            failed over or hedged.
+     * @return a future completing with the parsed server response.
      */
-    private Object doExecute(final HttpRequestBase request) throws Exception {
-        final JSONParser parser = new JSONParser();
-
-        RestHttpGet restGet = new RestHttpGet("aaaRefresh.json", null);
-        final HttpResponse authResponse = httpClient.execute(restGet, httpContext);
-        final HttpEntity authEntity = authResponse.getEntity();
-        final String authData = EntityUtils.toString(authEntity);
-        JSONObject result = (JSONObject) parser.parse(authData);
-
-        JSONArray imdata = (JSONArray) result.get("imdata");
-        JSONObject r2 = (JSONObject) imdata.get(0);
-        JSONObject aaaLogin = (JSONObject) r2.get("aaaLogin");
-        JSONObject attributes = (JSONObject) aaaLogin.get("attributes");
-        token = (String) attributes.get("token");
-
-        Cookie cookie = new BasicClientCookie("APIC-cookie", token);
-        this.cookieStore.addCookie(cookie);
+    private CompletableFuture<Object> executeAsync(final RequestSupplier request, final boolean authenticated,
+                                                   final boolean idempotent) {
+        return limiter.submit(() -> exchangeAsync(request, authenticated, idempotent, BodyHandlers.ofString())
+                .thenApply(ACIRestClient::parse));
+    }
 
-        final HttpResponse httpResponse = httpClient.execute(request, httpContext);
-        final HttpEntity httpEntity = httpResponse.getEntity();
-        final String data = EntityUtils.toString(httpEntity);
-        return parser.parse(data);
+    private static Object parse(HttpResponse<String> httpResponse) {
+        try {
+            return new JSONParser().parse(httpResponse.body());
+        } catch (org.json.simple.parser.ParseException e) {
+            throw new CompletionException(e);
+        }
     }
 
-    private Object doExecuteNoLogin(final HttpRequestBase request) throws Exception {
-        final JSONParser parser = new JSONParser();
+    /**
+     * Send a request, handling the session token and member selection as
+     * described for {@link #executeAsync(RequestSupplier, boolean, boolean)}.
+     * Must be called with an in-flight slot held.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> exchangeAsync(final RequestSupplier request,
+                                                                 final boolean authenticated,
+                                                                 final boolean idempotent,
+                                                                 final BodyHandler<T> bodyHandler) {
+        final String sentToken;
+        try {
+            if (authenticated) {
+                tokenManager.ensureValid();
+            }
+            sentToken = getToken();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<HttpResponse<T>> response = dispatch(request, sentToken, authenticated, idempotent, bodyHandler);
+        if (authenticated) {
+            response = response.thenCompose(r -> {
+                if (!isAuthFailure(r))
+                    return CompletableFuture.completedFuture(r);
+                LOG.debug("ACI: {} rejected token for {}, logging in again", r.uri().getHost(), r.uri());
+                discard(r);
+                return tokenManager.onAuthFailureAsync(sentToken).thenCompose(v -> dispatch(request, getToken(), true, idempotent, bodyHandler));
+            });
+        }
+        return response;
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> dispatch(RequestSupplier request, String sessionToken,
+                                                            boolean authenticated, boolean idempotent,
+                                                            BodyHandler<T> bodyHandler) {
+        ApicMemberSelector.Member primary = members.select();
+        if (!idempotent)
+            return send(request, primary, sessionToken, authenticated, bodyHandler);
+        return new Read<>(request, sessionToken, authenticated, bodyHandler, members.alternate(primary)).start(primary);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(RequestSupplier request, ApicMemberSelector.Member member,
+                                                        String sessionToken, boolean authenticated,
+                                                        BodyHandler<T> bodyHandler) {
+        final HttpRequest.Builder builder;
+        try {
+            builder = request.get(member);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (authenticated)
+            withToken(builder, sessionToken);
+
+        final long start = System.nanoTime();
+        final long sent = System.currentTimeMillis();
+        // Returned as is, so that cancelling it aborts the exchange
+        final CompletableFuture<HttpResponse<T>> exchange = httpClient.sendAsync(builder.build(), bodyHandler);
+        exchange.whenComplete((r, e) -> {
+            if (isCancellation(e))
+                // Lost a hedge, says nothing about the APIC
+                return;
+            if (e != null)
+                members.onFailure(member, e);
+            else if (isServerError(r))
+                members.onFailure(member, "HTTP " + r.statusCode());
+            else
+                members.onSuccess(member, System.nanoTime() - start);
+
+            long received = System.currentTimeMillis();
+            if (r != null && clock.wantsSample(received))
+                clock.onDateHeader(sent, received, r.headers().firstValue("Date").orElse(null));
+        });
+        return exchange;
+    }
+
+    /**
+     * The HTTP client may report an aborted exchange wrapped, depending on
+     * how far it got.
+     */
+    private static boolean isCancellation(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        return e instanceof CancellationException;
+    }
+
+    private static boolean isServerError(HttpResponse<?> httpResponse) {
+        return httpResponse.statusCode() >= 500;
+    }
+
+    /**
+     * An idempotent read against the cluster. It fails over to a second APIC
+     * as soon as the first one errors and, if {@link #isHedgeReads()} is set,
+     * also when the first one has not answered within its usual latency. The
+     * first good response wins and the other exchange is cancelled.
+     *
+     * The read runs in the limiter slot of its caller. A failover reuses that
+     * slot, the first request is done by then. A hedge needs a second slot; it
+     * is skipped when none is free and otherwise held until both exchanges
+     * have finished.
+     */
+    private class Read<T> {
+        private final RequestSupplier request;
+        private final String sessionToken;
+        private final boolean authenticated;
+        private final BodyHandler<T> bodyHandler;
+        private final ApicMemberSelector.Member secondary;
+
+        private final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        private final AtomicReferenceArray<CompletableFuture<HttpResponse<T>>> exchanges = new AtomicReferenceArray<>(2);
+        private final AtomicBoolean secondStarted;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean hedgeSlot = false;
+        private volatile HttpResponse<T> failedResponse;
+        private volatile Throwable failure;
+
+        private Read(RequestSupplier request, String sessionToken, boolean authenticated,
+                     BodyHandler<T> bodyHandler, ApicMemberSelector.Member secondary) {
+            this.request = request;
+            this.sessionToken = sessionToken;
+            this.authenticated = authenticated;
+            this.bodyHandler = bodyHandler;
+            this.secondary = secondary;
+            this.secondStarted = new AtomicBoolean(secondary == null);
+        }
+
+        private CompletableFuture<HttpResponse<T>> start(ApicMemberSelector.Member primary) {
+            launch(0, primary);
+            if (secondary != null && hedgeReads) {
+                CompletableFuture.delayedExecutor(members.getHedgeDelayMillis(primary), TimeUnit.MILLISECONDS)
+                        .execute(this::hedge);
+            }
+            return result;
+        }
+
+        private void hedge() {
+            // Keeps the read open while deciding, so the slot is released once
+            outstanding.incrementAndGet();
+            if (!result.isDone() && limiter.tryAcquire()) {
+                if (secondStarted.compareAndSet(false, true)) {
+                    hedgeSlot = true;
+                    members.countHedge();
+                    launch(1, secondary);
+                } else {
+                    limiter.release();
+                }
+            }
+            settle();
+        }
+
+        private void launch(int index, ApicMemberSelector.Member member) {
+            outstanding.incrementAndGet();
+            CompletableFuture<HttpResponse<T>> exchange = send(request, member, sessionToken, authenticated, bodyHandler);
+            exchanges.set(index, exchange);
+            exchange.whenComplete(this::onDone);
+            if (result.isDone())
+                cancelLosers();
+        }
+
+        private void onDone(HttpResponse<T> response, Throwable error) {
+            if (error == null && !isServerError(response)) {
+                if (result.complete(response)) {
+                    if (failedResponse != null)
+                        discard(failedResponse);
+                    cancelLosers();
+                } else {
+                    discard(response);
+                }
+            } else if (!isCancellation(error)) {
+                if (response != null) {
+                    if (failedResponse != null)
+                        discard(failedResponse);
+                    failedResponse = response;
+                } else {
+                    failure = error;
+                }
+                if (!result.isDone() && secondStarted.compareAndSet(false, true)) {
+                    members.countFailover();
+                    launch(1, secondary);
+                }
+            }
+            settle();
+        }
+
+        /** Cancel whatever is still on the wire, the winner is done already */
+        private void cancelLosers() {
+            for (int i = 0; i < exchanges.length(); i++) {
+                CompletableFuture<HttpResponse<T>> exchange = exchanges.get(i);
+                if (exchange != null)
+                    exchange.cancel(true);
+            }
+        }
+
+        private void settle() {
+            if (outstanding.decrementAndGet() != 0)
+                return;
+            if (hedgeSlot) {
+                hedgeSlot = false;
+                limiter.release();
+            }
+            if (!result.isDone()) {
+                if (failedResponse != null)
+                    result.complete(failedResponse);
+                else
+                    result.completeExceptionally(failure);
+            }
+        }
+    }
 
-        Cookie cookie = new BasicClientCookie("APIC-cookie", token);
-        this.cookieStore.addCookie(cookie);
+    private static void discard(HttpResponse<?> httpResponse) {
+        if (httpResponse.body() instanceof InputStream) {
+            try {
+                ((InputStream) httpResponse.body()).close();
+            } catch (IOException e) {
+                LOG.trace("ACI: Failed to close response body", e);
+            }
+        }
+    }
 
-        final HttpResponse httpResponse = httpClient.execute(request, httpContext);
-        final HttpEntity httpEntity = httpResponse.getEntity();
-        final String data = EntityUtils.toString(httpEntity);
-        return parser.parse(data);
+    /**
+     * Send a GET request and decode the imdata of the response while it is
+     * being received. Memory use does not depend on the size of the result.
+     *
+     * @param path
+     *            the rest path to send the GET request to.
+     * @param consumer
+     *            receives each managed object as soon as it is decoded.
+     * @return the totalCount of the response.
+     * @throws Exception
+     */
+    public int stream(String path, ImdataConsumer consumer) throws Exception {
+        return await(streamAsync(path, consumer));
+    }
+
+    /**
+     * Asynchronous variant of {@link #stream(String, ImdataConsumer)}. The
+     * consumer is called on an HTTP client thread and holds the in-flight
+     * slot while it runs, but its time does not count towards the body
+     * timeout.
+     *
+     * @param path
+     *            the rest path to send the GET request to.
+     * @param consumer
+     *            receives each managed object as soon as it is decoded.
+     * @return a future completing with the totalCount of the response.
+     */
+    public CompletableFuture<Integer> streamAsync(String path, ImdataConsumer consumer) {
+        return streamAsync(path, () -> new ImdataStreamHandler(consumer));
+    }
+
+    private CompletableFuture<Integer> streamAsync(String path, Supplier<ImdataStreamHandler> handler) {
+        return limiter.submit(() -> exchangeAsync(member -> newRequest(buildUri(path, member)).GET(), true, true,
+                                                  BodyHandlers.ofInputStream())
+                .thenApply(r -> decodeWithin(r.body(), handler.get(), BODY_TIMEOUT)));
+    }
+
+    /**
+     * Stream a class query page by page using the APIC page, page-size and
+     * order-by options. The first page supplies the totalCount; the remaining
+     * pages are fetched concurrently, at most {@link #getPageParallelism()}
+     * at a time, and passed to the consumer in page order on the calling
+     * thread. At most one page per fetch slot is buffered.
+     *
+     * @param path
+     *            the rest path of the query, without paging options.
+     * @param orderBy
+     *            APIC order-by clause, e.g. <code>faultRecord.created|asc</code>.
+     *            A stable order is required for pages not to overlap.
+     * @param consumer
+     *            receives each managed object in order.
+     * @return the totalCount reported by the APIC.
+     * @throws Exception
+     */
+    public int streamPaged(String path, String orderBy, ImdataConsumer consumer) throws Exception {
+        return this.streamPaged(path, orderBy, ACIRestClient::entryHandler,
+                                entry -> consumer.accept(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Like {@link #streamPaged(String, String, ImdataConsumer)}, but decodes
+     * the objects straight into {@link FaultRecord}s.
+     *
+     * @param path
+     *            the rest path of the query, without paging options.
+     * @param orderBy
+     *            APIC order-by clause, e.g. <code>faultRecord.created|asc</code>.
+     * @param consumer
+     *            receives each record in order.
+     * @return the totalCount reported by the APIC.
+     * @throws Exception
+     */
+    public int streamFaultsPaged(String path, String orderBy, FaultRecordConsumer consumer) throws Exception {
+        return this.streamPaged(path, orderBy, c -> new ImdataStreamHandler((FaultRecordConsumer) c::accept),
+                                consumer::accept);
+    }
+
+    private <R> int streamPaged(String path, String orderBy, Function<Consumer<R>, ImdataStreamHandler> handlerFor,
+                                Consumer<R> consumer) throws Exception {
+        final int size = this.pageSize;
+        final String pageUrl = path + (path.contains("?") ? "&" : "?") + "order-by=" + orderBy
+                + "&page-size=" + size + "&page=";
+
+        final List<R> first = new ArrayList<>();
+        int totalCount = await(this.streamAsync(pageUrl + 0, () -> handlerFor.apply(first::add)));
+        int pages = (int) ((totalCount + (long) size - 1) / size);
+        if (pages > 1)
+            LOG.debug("ACI: Fetching {} pages of {} for {} objects from {}", pages, size, totalCount, getHost());
+
+        // Fetch ahead within a bounded window, hand pages over in order. All
+        // pages are consumed on this thread, never on an HTTP client thread.
+        final Deque<CompletableFuture<List<R>>> window = new ArrayDeque<>();
+        int next = 1;
+        try {
+            while (next < pages && window.size() < pageParallelism) {
+                window.add(collectAsync(pageUrl + next, handlerFor));
+                next++;
+            }
+            for (R object : first)
+                consumer.accept(object);
+            first.clear();
+            for (int page = 1; page < pages; page++) {
+                while (next < pages && window.size() < pageParallelism) {
+                    window.add(collectAsync(pageUrl + next, handlerFor));
+                    next++;
+                }
+                for (R object : await(window.poll()))
+                    consumer.accept(object);
+            }
+        } finally {
+            for (CompletableFuture<?> pending : window)
+                pending.cancel(false);
+        }
+        return totalCount;
+    }
+
+    private CompletableFuture<List<Map.Entry<String, JSONObject>>> collectAsync(String queryUrl) {
+        return collectAsync(queryUrl, ACIRestClient::entryHandler);
+    }
+
+    private static ImdataStreamHandler entryHandler(Consumer<Map.Entry<String, JSONObject>> consumer) {
+        return new ImdataStreamHandler(
+                (ImdataConsumer) (moClass, attributes) -> consumer.accept(new AbstractMap.SimpleImmutableEntry<>(moClass, attributes)));
+    }
+
+    private <R> CompletableFuture<List<R>> collectAsync(String queryUrl,
+                                                        Function<Consumer<R>, ImdataStreamHandler> handlerFor) {
+        final List<R> objects = new ArrayList<>();
+        return this.streamAsync(queryUrl, () -> handlerFor.apply(objects::add))
+                .thenApply(totalCount -> objects);
+    }
+
+    /**
+     * Decode the fault records of an APIC message, e.g. a websocket
+     * notification, without building intermediate maps.
+     *
+     * @param json
+     *            the message
+     * @param consumer
+     *            receives each record in message order
+     * @return the number of decoded records
+     * @throws org.json.simple.parser.ParseException
+     *             if the message is not valid JSON
+     */
+    public static int decodeFaults(String json, FaultRecordConsumer consumer)
+            throws org.json.simple.parser.ParseException {
+        ImdataStreamHandler handler = new ImdataStreamHandler(consumer);
+        JSONParser parser = borrowParser();
+        try {
+            parser.parse(json, handler);
+        } finally {
+            PARSER.set(parser);
+        }
+        return handler.getDecoded();
+    }
+
+    /**
+     * Decode the fault records of an APIC message while it is being read,
+     * handing each one over as soon as its attributes are complete. The
+     * message is never held as a whole.
+     *
+     * @param json
+     *            the message, left open
+     * @param consumer
+     *            receives each record in message order
+     * @return the number of decoded records
+     * @throws IOException
+     *             if the message could not be read
+     * @throws org.json.simple.parser.ParseException
+     *             if the message is not valid JSON
+     */
+    public static int decodeFaults(Reader json, FaultRecordConsumer consumer)
+            throws IOException, org.json.simple.parser.ParseException {
+        return decode(json, new ImdataStreamHandler(consumer));
+    }
+
+    /**
+     * Decode a websocket notification while it is being read, handing over
+     * each managed object along with the subscriptions it was pushed for.
+     *
+     * @param json
+     *            the notification, left open
+     * @param consumer
+     *            receives each record in message order
+     * @return the number of decoded records
+     * @throws IOException
+     *             if the message could not be read
+     * @throws org.json.simple.parser.ParseException
+     *             if the message is not valid JSON
+     */
+    public static int decodeNotification(Reader json, SubscriptionRecordConsumer consumer)
+            throws IOException, org.json.simple.parser.ParseException {
+        return decode(json, new ImdataStreamHandler(consumer));
+    }
+
+    private static int decode(Reader json, ImdataStreamHandler handler)
+            throws IOException, org.json.simple.parser.ParseException {
+        JSONParser parser = borrowParser();
+        try {
+            parser.parse(json, handler);
+        } finally {
+            PARSER.set(parser);
+        }
+        return handler.getDecoded();
+    }
+
+    private static int decode(InputStream body, ImdataStreamHandler handler) {
+        JSONParser parser = borrowParser();
+        try (Reader reader = new InputStreamReader(body, StandardCharsets.UTF_8)) {
+            parser.parse(reader, handler);
+        } catch (IOException | org.json.simple.parser.ParseException e) {
+            throw new CompletionException(e);
+        } finally {
+            PARSER.set(parser);
+        }
+        return handler.getTotalCount();
+    }
+
+    /**
+     * Decode a response body, closing it once the decoder has waited longer
+     * than the timeout for the body to arrive. A stalled APIC would otherwise
+     * hold the HTTP client thread and the in-flight slot forever. Time spent
+     * in the consumer between reads does not count.
+     */
+    private static int decodeWithin(InputStream body, ImdataStreamHandler handler, Duration timeout) {
+        final BodyWatchdog watchdog = new BodyWatchdog(body, timeout);
+        try {
+            return decode(watchdog, handler);
+        } catch (CompletionException e) {
+            if (watchdog.expired)
+                throw new CompletionException(new HttpTimeoutException(
+                        "Response body not received within " + timeout.getSeconds() + "s"));
+            throw e;
+        } finally {
+            watchdog.done = true;
+        }
+    }
+
+    /**
+     * Adds up the time spent blocked in reads of a response body and closes
+     * the body once that reaches the timeout.
+     */
+    private static final class BodyWatchdog extends FilterInputStream {
+        private static final long IDLE = Long.MIN_VALUE;
+
+        private final long timeoutNanos;
+        private final AtomicLong waitedNanos = new AtomicLong();
+        private volatile long readSince = IDLE;
+        private volatile boolean expired = false;
+        private volatile boolean done = false;
+
+        private BodyWatchdog(InputStream body, Duration timeout) {
+            super(body);
+            this.timeoutNanos = timeout.toNanos();
+            arm(timeoutNanos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            readSince = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                waited();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            readSince = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                waited();
+            }
+        }
+
+        private void waited() {
+            waitedNanos.addAndGet(System.nanoTime() - readSince);
+            readSince = IDLE;
+        }
+
+        private void arm(long delayNanos) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(this::check);
+        }
+
+        private void check() {
+            if (done)
+                return;
+            long since = readSince;
+            long waited = waitedNanos.get() + (since == IDLE ? 0 : System.nanoTime() - since);
+            if (waited < timeoutNanos) {
+                arm(timeoutNanos - waited);
+                return;
+            }
+            expired = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.debug("ACI: Failed to close stalled response body", e);
+            }
+        }
+    }
+
+    /**
+     * Take the calling thread's parser. A consumer decoding another message
+     * from within a callback gets a fresh parser instead of the busy one.
+     */
+    private static JSONParser borrowParser() {
+        JSONParser parser = PARSER.get();
+        if (parser == null)
+            return new JSONParser();
+        PARSER.set(null);
+        return parser;
+    }
+
+    /**
+     * Consumer rebuilding the usual <code>{"class":{"attributes":{...}}}</code>
+     * imdata entries, for callers that still want the result as one array.
+     */
+    private static ImdataConsumer collectInto(final JSONArray imdata) {
+        return (moClass, attributes) -> addEntry(imdata, moClass, attributes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addEntry(JSONArray imdata, String moClass, JSONObject attributes) {
+        JSONObject classData = new JSONObject();
+        classData.put("attributes", attributes);
+        JSONObject objectData = new JSONObject();
+        objectData.put(moClass, classData);
+        imdata.add(objectData);
+    }
+
+    private static boolean isAuthFailure(HttpResponse<?> httpResponse) {
+        int status = httpResponse.statusCode();
+        return status == 401 || status == 403;
+    }
+
+    /**
+     * Wait for a request issued through one of the async methods and unwrap
+     * its failure, so the synchronous API keeps throwing the original
+     * exception.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    private HttpRequest.Builder newRequest(String path, ApicMemberSelector.Member member) throws IOException {
+        return newRequest(buildUri(path, null, member));
+    }
+
+    private static HttpRequest.Builder newRequest(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json");
+    }
+
+    private static HttpRequest.Builder withToken(HttpRequest.Builder builder, String sessionToken) {
+        if (sessionToken != null)
+            builder.setHeader("Cookie", "APIC-cookie=" + sessionToken);
+        return builder;
+    }
+
+    /**
+     * Stop the background token refresh. Requests still queued in the
+     * limiter are allowed to finish.
+     */
+    public void close() {
+        tokenManager.close();
+        if (ownedTokenExecutor != null)
+            ownedTokenExecutor.shutdownNow();
+    }
+
+    /**
+     * End the APIC session via aaaLogout, so it does not linger on the
+     * controller until it times out. Failures are only logged.
+     *
+     * @return a future completing once the APIC answered or the request
+     *         failed, never exceptionally
+     */
+    public CompletableFuture<Void> logout() {
+        final String sessionToken = getToken();
+        if (sessionToken == null)
+            return CompletableFuture.completedFuture(null);
+        try {
+            HttpRequest restPost = withToken(newRequest("aaaLogout.json", members.select()), sessionToken)
+                    .POST(BodyPublishers.ofString("{\"aaaUser\": {\"attributes\": {\"name\": \""
+                            + username + "\"}}}"))
+                    .build();
+            return httpClient.sendAsync(restPost, BodyHandlers.discarding()).handle((r, e) -> {
+                if (e != null)
+                    LOG.debug("ACI: aaaLogout failed for cluster {} on {}", cluster, getHost(), e);
+                else
+                    LOG.debug("ACI: Logged out of cluster {} on {}: HTTP {}", cluster, getHost(), r.statusCode());
+                return null;
+            });
+        } catch (IOException e) {
+            LOG.debug("ACI: aaaLogout failed for cluster {} on {}", cluster, getHost(), e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Builds the request lazily, once the limiter hands out a slot.
+     */
+    @FunctionalInterface
+    private interface RequestSupplier {
+        HttpRequest.Builder get(ApicMemberSelector.Member member) throws IOException;
     }
 
     /**
@@ -1077,11 +1751,13 @@ public class ACIRestClient {
      *            the URL path suffix.
      * @param parameters
      *            the parameters of the URL.
+     * @param member
+     *            the APIC to send the request to.
      * @return the constructed URI.
      * @throws IOException
      *             on failure to construct to URI.
      */
-    private URI buildUri(String path, final Map<String, String> parameters)
+    private URI buildUri(String path, final Map<String, String> parameters, final ApicMemberSelector.Member member)
             throws IOException {
         try {
             if (parameters != null && path.contains("?")) {
@@ -1090,7 +1766,7 @@ public class ACIRestClient {
             }
 
             final URIBuilder uriBuilder = new URIBuilder();
-            uriBuilder.setScheme(HTTPS_SCHEME).setHost(host).setPort(port);
+            uriBuilder.setScheme(HTTPS_SCHEME).setHost(member.getHost()).setPort(member.getPort());
             if (path.startsWith(restUrlPrefix)) {
                 uriBuilder.setPath(path);
             } else {
@@ -1108,7 +1784,7 @@ public class ACIRestClient {
         }
     }
     
-    private URI buildUri(String path) throws IOException{
+    private URI buildUri(String path, final ApicMemberSelector.Member member) throws IOException{
         try {
             String query = null;
             if (path.contains("?")) {
@@ -1118,7 +1794,7 @@ public class ACIRestClient {
             }
 
             final URIBuilder uriBuilder = new URIBuilder();
-            uriBuilder.setScheme(HTTPS_SCHEME).setHost(host).setPort(port);
+            uriBuilder.setScheme(HTTPS_SCHEME).setHost(member.getHost()).setPort(member.getPort());
             if (path.startsWith(restUrlPrefix)) {
                 uriBuilder.setPath(path);
             } else {
@@ -1145,10 +1821,10 @@ public class ACIRestClient {
     }
 
     /**
-     * @return the port
+     * @return the port of the APIC requests currently go to
      */
     public int getPort() {
-        return port;
+        return members.peek().getPort();
     }
 
     /**
@@ -1159,10 +1835,10 @@ public class ACIRestClient {
     }
 
     /**
-     * @return the host
+     * @return the APIC requests currently go to
      */
     public String getHost() {
-        return host;
+        return members.peek().getHost();
     }
 
     /**
@@ -1183,47 +1859,161 @@ public class ACIRestClient {
      * @return the token
      */
     public String getToken() {
-        return token;
+        return tokenManager.getToken();
     }
 
-    // private static class DefaultTrustManager implements X509TrustManager
-    // {
-    //
-    // @Override
-    // public void checkClientTrusted( X509Certificate[] arg0, String arg1 )
-    // throws
-    // CertificateException
-    // {
+    /**
+     * @return the limiter bounding concurrent requests against this APIC
+     */
+    public InFlightLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @param maxInFlightRequests
+     *            the number of requests allowed in flight against this APIC
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        limiter.setMaxInFlight(maxInFlightRequests);
+    }
+
+    /**
+     * @return the number of objects requested per page
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize
+     *            the number of objects requested per page
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the number of pages fetched concurrently
+     */
+    public int getPageParallelism() {
+        return pageParallelism;
+    }
+
+    /**
+     * @param pageParallelism
+     *            the number of pages fetched concurrently; further bounded by
+     *            the in-flight request limit
+     */
+    public void setPageParallelism(int pageParallelism) {
+        if (pageParallelism < 1)
+            throw new IllegalArgumentException("pageParallelism must be at least 1");
+        this.pageParallelism = pageParallelism;
+    }
+
+    /**
+     * @return the selector routing requests to the APICs of the cluster
+     */
+    public ApicMemberSelector getMembers() {
+        return members;
+    }
+
+    /**
+     * @return whether slow reads are repeated on a second APIC
+     */
+    public boolean isHedgeReads() {
+        return hedgeReads;
+    }
+
+    /**
+     * @param hedgeReads
+     *            repeat a GET on a second APIC when the first one has not
+     *            answered within the 95th percentile of its recent latencies
+     */
+    public void setHedgeReads(boolean hedgeReads) {
+        this.hedgeReads = hedgeReads;
+    }
+
+    /**
+     * @return the checkpoint store of big-data class queries, may be null
+     */
+    public ApicCheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    /**
+     * @param checkpointStore
+     *            where big-data class queries remember how far they got, without
+     *            one every query starts from scratch
+     */
+    public void setCheckpointStore(ApicCheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * @return the tokenManager
+     */
+    public ApicTokenManager getTokenManager() {
+        return tokenManager;
+    }
+
+    /**
+     * @return the offset estimate of the APIC's clock
+     */
+    public ApicClockEstimator getClock() {
+        return clock;
+    }
 
     @Override
     public String toString() {
         return "ACIRestClient{" +
-                "format=" + format +
-                ", dateOnlyFormat=" + dateOnlyFormat +
-                ", port=" + port +
-                ", authHeader='" + authHeader + '\'' +
+                "authHeader='" + authHeader + '\'' +
                 ", cluster='" + cluster + '\'' +
-                ", host='" + host + '\'' +
+                ", members=" + members +
                 ", username='" + username + '\'' +
                 ", password='" + password + '\'' +
                 ", restUrlPrefix='" + restUrlPrefix + '\'' +
-                ", token='" + token + '\'' +
+                ", tokenManager=" + tokenManager +
+                ", limiter=" + limiter +
+                ", pageSize=" + pageSize +
+                ", pageParallelism=" + pageParallelism +
                 '}';
     }
 
-    // }
-    //
-    // @Override
-    // public void checkServerTrusted( X509Certificate[] arg0, String arg1 )
-    // throws
-    // CertificateException
-    // {
-    // }
-    //
-    // @Override
-    // public X509Certificate[] getAcceptedIssuers()
-    // {
-    // return null;
-    // }
-    // }
+    /**
+     * Trust manager accepting any certificate. Being an
+     * {@link X509ExtendedTrustManager} it also skips the endpoint
+     * identification the JDK client would otherwise apply.
+     */
+    private static class TrustAllManager extends X509ExtendedTrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
 }
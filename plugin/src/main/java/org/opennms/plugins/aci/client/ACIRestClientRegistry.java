@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.plugins.aci.config.SouthCluster;
+import org.opennms.plugins.aci.dao.southbound.SouthboundConfigDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares one logged in {@link ACIRestClient}, and with it one connection pool
+ * and APIC session, per cluster and set of credentials.
+ *
+ * Clients are reference counted: every {@link #acquire(String)} must be paired
+ * with a {@link #release(ACIRestClient)}. Idle clients are kept for reuse until
+ * they have not been used for {@link #getIdleTimeoutMillis()}; idle clients are
+ * looked for every minute and on every acquire. Closed clients are logged out
+ * of their APIC. A client whose
+ * cluster configuration changed in the {@link SouthboundConfigDao} is no longer
+ * handed out and is closed once its last user releases it.
+ *
+ * @author metispro
+ */
+public class ACIRestClientRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ACIRestClientRegistry.class);
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final long EVICT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** How long close() waits for the APICs to acknowledge the logouts */
+    private static final long LOGOUT_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final String KEY_SEP = "\u0000";
+
+    private static final int TOKEN_THREADS = 4;
+
+    private final SouthboundConfigDao southboundConfigDao;
+
+    private final ApicCheckpointStore checkpointStore;
+
+    private final Map<String, Entry> clients = new HashMap<>();
+    private final Map<ACIRestClient, Entry> entries = new IdentityHashMap<>();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "aci-client-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Refreshes the tokens of all clients */
+    private final ScheduledExecutorService tokenExecutor = ApicTokenManager.newRefreshExecutor(TOKEN_THREADS);
+
+    /** Outstanding aaaLogout requests of closed clients */
+    private final List<CompletableFuture<Void>> logouts = new ArrayList<>();
+
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private long acquireCount = 0;
+    private long createCount = 0;
+    private long invalidateCount = 0;
+    private boolean closed = false;
+
+    public ACIRestClientRegistry(SouthboundConfigDao southboundConfigDao) {
+        this(southboundConfigDao, null);
+    }
+
+    /**
+     * @param southboundConfigDao
+     *            the cluster configuration
+     * @param checkpointStore
+     *            handed to every client created, may be null
+     */
+    public ACIRestClientRegistry(SouthboundConfigDao southboundConfigDao, ApicCheckpointStore checkpointStore) {
+        this.southboundConfigDao = southboundConfigDao;
+        this.checkpointStore = checkpointStore;
+        evictor.scheduleWithFixedDelay(this::evictIdle, EVICT_INTERVAL_MILLIS, EVICT_INTERVAL_MILLIS,
+                                       TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquire the shared client for a configured cluster.
+     *
+     * @param clusterName
+     *            name of the cluster in the southbound configuration
+     * @return a logged in client, to be handed back with
+     *         {@link #release(ACIRestClient)}
+     * @throws Exception
+     *             if the cluster is not configured or no APIC accepted the
+     *             login
+     */
+    public ACIRestClient acquire(String clusterName) throws Exception {
+        SouthCluster southCluster = findCluster(clusterName);
+        if (southCluster == null)
+            throw new ACIRestException("No southbound configuration found for cluster: " + clusterName);
+
+        ACIRestConfig config = new ACIRestConfig(southCluster);
+        return acquire(clusterName, config.getAciUrl(), config.getUsername(), config.getPassword());
+    }
+
+    /**
+     * Acquire the shared client for the given cluster and credentials.
+     *
+     * @param cluster
+     *            name of the APIC cluster
+     * @param url
+     *            comma delimited list of APIC URLs
+     * @param username
+     *            APIC user login ID
+     * @param password
+     *            APIC user login password
+     * @return a logged in client, to be handed back with
+     *         {@link #release(ACIRestClient)}
+     * @throws Exception
+     *             if no APIC accepted the login
+     */
+    public ACIRestClient acquire(String cluster, String url, String username, String password) throws Exception {
+        final String key = key(cluster, url, username, password);
+        synchronized (this) {
+            if (closed)
+                throw new ACIRestException("ACIRestClientRegistry is closed");
+            invalidateChanged();
+            evictIdle();
+            acquireCount++;
+            Entry entry = clients.get(key);
+            if (entry != null) {
+                entry.refs++;
+                entry.lastUsed = System.currentTimeMillis();
+                return entry.client;
+            }
+        }
+
+        // Log in outside the lock, a slow APIC must not hold up other clusters
+        ACIRestClient client = ACIRestClient.newAciRest(cluster, url, username, password, tokenExecutor);
+        client.setCheckpointStore(checkpointStore);
+
+        synchronized (this) {
+            Entry entry = clients.get(key);
+            if (entry != null || closed) {
+                // Lost the race against another caller or shut down meanwhile,
+                // end the session it opened
+                logoutAndClose(client);
+                if (entry == null)
+                    throw new ACIRestException("ACIRestClientRegistry is closed");
+            } else {
+                entry = new Entry(key, cluster, client);
+                clients.put(key, entry);
+                entries.put(client, entry);
+                createCount++;
+                LOG.debug("ACI: Created shared client for cluster {} on {}", cluster, client.getHost());
+            }
+            entry.refs++;
+            entry.lastUsed = System.currentTimeMillis();
+            return entry.client;
+        }
+    }
+
+    /**
+     * Hand back a client obtained from one of the acquire methods.
+     *
+     * @param client
+     *            the client to release, ignored if null
+     */
+    public synchronized void release(ACIRestClient client) {
+        if (client == null)
+            return;
+        Entry entry = entries.get(client);
+        if (entry == null) {
+            LOG.warn("ACI: Released client for cluster {} is not managed by this registry", client.getCluster());
+            return;
+        }
+        if (entry.refs > 0)
+            entry.refs--;
+        entry.lastUsed = System.currentTimeMillis();
+        if (entry.refs == 0 && entry.stale)
+            closeEntry(entry);
+        evictIdle();
+    }
+
+    /**
+     * Stop handing out the current clients of a cluster, e.g. after its
+     * configuration was changed. Clients in use are closed on release.
+     *
+     * @param clusterName
+     *            the cluster to invalidate
+     */
+    public synchronized void invalidate(String clusterName) {
+        for (Entry entry : new ArrayList<>(clients.values())) {
+            if (entry.cluster.equals(clusterName))
+                invalidate(entry);
+        }
+    }
+
+    /**
+     * Close all clients, whether in use or not, and give the APICs a moment
+     * to acknowledge the logouts.
+     */
+    public void close() {
+        final CompletableFuture<?>[] pending;
+        synchronized (this) {
+            closed = true;
+            evictor.shutdownNow();
+            for (Entry entry : new ArrayList<>(entries.values()))
+                closeEntry(entry);
+            clients.clear();
+            pending = logouts.toArray(new CompletableFuture<?>[0]);
+            tokenExecutor.shutdownNow();
+        }
+        try {
+            CompletableFuture.allOf(pending).get(LOGOUT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.debug("ACI: Not all APIC sessions acknowledged the logout", e);
+        }
+    }
+
+    private void invalidate(Entry entry) {
+        if (entry.stale)
+            return;
+        entry.stale = true;
+        clients.remove(entry.key);
+        invalidateCount++;
+        LOG.info("ACI: Configuration of cluster {} changed, retiring shared client for {}", entry.cluster,
+                 entry.client.getHost());
+        if (entry.refs == 0)
+            closeEntry(entry);
+    }
+
+    /**
+     * Retire clients whose cluster is configured with different URLs or
+     * credentials than the ones they were created with.
+     */
+    private void invalidateChanged() {
+        if (southboundConfigDao == null || clients.isEmpty())
+            return;
+
+        List<SouthCluster> southClusters;
+        try {
+            southClusters = southboundConfigDao.getSouthboundClusters();
+        } catch (Exception e) {
+            LOG.debug("ACI: Failed to read southbound configuration", e);
+            return;
+        }
+        if (southClusters == null)
+            return;
+
+        Map<String, String> configured = new HashMap<>();
+        for (SouthCluster southCluster : southClusters) {
+            ACIRestConfig config = new ACIRestConfig(southCluster);
+            configured.put(southCluster.getClusterName(), key(southCluster.getClusterName(), config.getAciUrl(),
+                                                              config.getUsername(), config.getPassword()));
+        }
+        for (Entry entry : new ArrayList<>(clients.values())) {
+            String key = configured.get(entry.cluster);
+            if (key != null && !key.equals(entry.key))
+                invalidate(entry);
+        }
+    }
+
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = clients.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.refs == 0 && now - entry.lastUsed > idleTimeoutMillis) {
+                it.remove();
+                LOG.debug("ACI: Closing idle shared client for cluster {}", entry.cluster);
+                closeEntry(entry);
+            }
+        }
+    }
+
+    private void closeEntry(Entry entry) {
+        entries.remove(entry.client);
+        logoutAndClose(entry.client);
+    }
+
+    private void logoutAndClose(ACIRestClient client) {
+        // Sent asynchronously, the lock is not held while the APIC answers
+        final CompletableFuture<Void> logout = client.logout();
+        logouts.add(logout);
+        logout.whenComplete((v, e) -> removeLogout(logout));
+        client.close();
+    }
+
+    private synchronized void removeLogout(CompletableFuture<Void> logout) {
+        logouts.remove(logout);
+    }
+
+    private SouthCluster findCluster(String clusterName) {
+        if (southboundConfigDao == null || clusterName == null)
+            return null;
+        for (SouthCluster southCluster : southboundConfigDao.getSouthboundClusters()) {
+            if (clusterName.equals(southCluster.getClusterName()))
+                return southCluster;
+        }
+        return null;
+    }
+
+    private static String key(String cluster, String url, String username, String password) {
+        // Both "https://a:443," and "https://a:443" are used for the same APICs
+        String normalizedUrl = url == null ? "" : url.replaceAll(",+$", "");
+        return cluster + KEY_SEP + normalizedUrl + KEY_SEP + username + KEY_SEP + password;
+    }
+
+    /**
+     * Print the state of the shared clients and their connection pools.
+     */
+    public synchronized void printStatus() {
+        System.out.println("\tShared APIC clients: " + entries.size()
+                + " (acquired: " + acquireCount
+                + ", created: " + createCount
+                + ", invalidated: " + invalidateCount + ")");
+        for (Entry entry : entries.values()) {
+            InFlightLimiter limiter = entry.client.getLimiter();
+            ApicTokenManager tokenManager = entry.client.getTokenManager();
+            System.out.println("\t--- " + entry.cluster + " @ " + entry.client.getHost()
+                    + (entry.stale ? " (retiring)" : "")
+                    + ": users: " + entry.refs
+                    + ", in flight: " + limiter.getInFlight() + "/" + limiter.getMaxInFlight()
+                    + ", queued: " + limiter.getQueued()
+                    + ", peak: " + limiter.getPeakInFlight()
+                    + ", completed: " + limiter.getCompleted()
+                    + ", re-logins: " + tokenManager.getReloginCount());
+        }
+    }
+
+    /**
+     * @return number of clients currently open, including retiring ones
+     */
+    public synchronized int getClientCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of acquire calls
+     */
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    /**
+     * @return number of clients created, i.e. APIC logins performed
+     */
+    public synchronized long getCreateCount() {
+        return createCount;
+    }
+
+    /**
+     * @return number of clients retired because their configuration changed
+     */
+    public synchronized long getInvalidateCount() {
+        return invalidateCount;
+    }
+
+    /**
+     * @return the checkpoint store handed to new clients, may be null
+     */
+    public ApicCheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    /**
+     * @return how long an unused client is kept open
+     */
+    public synchronized long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @param idleTimeoutMillis
+     *            how long an unused client is kept open
+     */
+    public synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    private static class Entry {
+        private final String key;
+        private final String cluster;
+        private final ACIRestClient client;
+        private int refs = 0;
+        private long lastUsed;
+        private boolean stale = false;
+
+        private Entry(String key, String cluster, ACIRestClient client) {
+            this.key = key;
+            this.cluster = cluster;
+            this.client = client;
+        }
+    }
+}
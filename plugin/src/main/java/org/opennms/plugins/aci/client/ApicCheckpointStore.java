@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable checkpoints of the last processed <code>created</code> timestamp,
+ * and record id, per cluster and APIC class.
+ *
+ * Every cluster is kept in its own properties file below
+ * <code>${opennms.home}/data/aci</code>. Files are replaced atomically: the
+ * new content is written and synced to a temporary file which is then renamed
+ * over the old one, so a crash leaves either the old or the new checkpoint
+ * behind, never a torn one. Updates are cheap in-memory writes; the dirty
+ * clusters are flushed together by a background thread, or right away with
+ * {@link #flush()}.
+ *
+ * @author metispro
+ */
+public class ApicCheckpointStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApicCheckpointStore.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final String CREATED_SUFFIX = ".created";
+    private static final String ID_SUFFIX = ".id";
+    private static final String FILE_SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * A stored checkpoint.
+     */
+    public static final class Checkpoint {
+        private final String created;
+        private final String id;
+
+        public Checkpoint(String created, String id) {
+            this.created = created;
+            this.id = id;
+        }
+
+        /**
+         * @return the last processed created timestamp, in APIC format
+         */
+        public String getCreated() {
+            return created;
+        }
+
+        /**
+         * @return the id of the last processed record, may be null
+         */
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return created + (id == null ? "" : " (" + id + ")");
+        }
+    }
+
+    private final Path directory;
+    private final Map<String, Properties> clusters = new HashMap<>();
+    private final Set<String> dirty = new HashSet<>();
+    private final ScheduledExecutorService flusher;
+
+    /** Held from snapshot to rename, an older snapshot must not overwrite a newer one */
+    private final Object writeLock = new Object();
+
+    private long flushCount = 0;
+    private long flushFailures = 0;
+
+    public ApicCheckpointStore() {
+        this(Paths.get(System.getProperty("opennms.home", "."), "data", "aci"), DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param directory
+     *            where to keep the checkpoint files
+     * @param flushIntervalMillis
+     *            how often dirty checkpoints are written, 0 to only write on
+     *            {@link #flush()}
+     */
+    public ApicCheckpointStore(Path directory, long flushIntervalMillis) {
+        this.directory = directory;
+        if (flushIntervalMillis > 0) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "aci-checkpoint-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            this.flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                                                TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * @param cluster
+     *            name of the cluster
+     * @param apicClass
+     *            the APIC class, e.g. <code>faultRecord</code>
+     * @return the stored checkpoint, null if there is none
+     */
+    public synchronized Checkpoint get(String cluster, String apicClass) {
+        Properties properties = load(cluster);
+        String created = properties.getProperty(apicClass + CREATED_SUFFIX);
+        if (created == null)
+            return null;
+        return new Checkpoint(created, properties.getProperty(apicClass + ID_SUFFIX));
+    }
+
+    /**
+     * Update a checkpoint. It is written with the next flush.
+     *
+     * @param cluster
+     *            name of the cluster
+     * @param apicClass
+     *            the APIC class, e.g. <code>faultRecord</code>
+     * @param created
+     *            the last processed created timestamp, in APIC format
+     * @param id
+     *            the id of the last processed record, may be null
+     */
+    public synchronized void put(String cluster, String apicClass, String created, String id) {
+        Properties properties = load(cluster);
+        properties.setProperty(apicClass + CREATED_SUFFIX, created);
+        if (id != null)
+            properties.setProperty(apicClass + ID_SUFFIX, id);
+        else
+            properties.remove(apicClass + ID_SUFFIX);
+        dirty.add(cluster);
+    }
+
+    /**
+     * Write all updated checkpoints.
+     *
+     * @throws IOException
+     *             if a checkpoint could not be written, it stays dirty and is
+     *             retried with the next flush
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            Map<String, byte[]> pending = new HashMap<>();
+            synchronized (this) {
+                if (dirty.isEmpty())
+                    return;
+                for (String cluster : dirty)
+                    pending.put(cluster, serialize(cluster, clusters.get(cluster)));
+                dirty.clear();
+            }
+
+            IOException failure = null;
+            for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+                try {
+                    writeAtomically(fileOf(entry.getKey()), entry.getValue());
+                } catch (IOException e) {
+                    failure = e;
+                    synchronized (this) {
+                        flushFailures++;
+                        dirty.add(entry.getKey());
+                    }
+                }
+            }
+            synchronized (this) {
+                flushCount++;
+            }
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            LOG.warn("ACI: Failed to write checkpoints to {}", directory, e);
+        }
+    }
+
+    /**
+     * Stop the background flusher and write what is pending.
+     */
+    public void close() {
+        if (flusher != null)
+            flusher.shutdown();
+        flushQuietly();
+    }
+
+    private Properties load(String cluster) {
+        Properties properties = clusters.get(cluster);
+        if (properties != null)
+            return properties;
+
+        properties = new Properties();
+        Path file = fileOf(cluster);
+        if (Files.isRegularFile(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                LOG.warn("ACI: Failed to read checkpoints of {} from {}, starting over", cluster, file, e);
+            }
+        }
+        clusters.put(cluster, properties);
+        return properties;
+    }
+
+    private static byte[] serialize(String cluster, Properties properties) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            properties.store(out, "ACI checkpoints of " + cluster);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Replace a file so that readers see either the old or the new content.
+     * Every call writes its own temporary file, concurrent writers of the
+     * same file do not mix their content; the last rename wins.
+     *
+     * @param file
+     *            the file to replace
+     * @param content
+     *            the new content
+     * @throws IOException
+     *             if the content could not be written
+     */
+    public static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString() + ".", TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Only still there if writing or renaming failed
+            Files.deleteIfExists(temp);
+        }
+        // Make the rename itself durable, not supported on every platform
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            LOG.trace("ACI: Unable to sync directory {}", directory, e);
+        }
+    }
+
+    private Path fileOf(String cluster) {
+        return directory.resolve(cluster.replaceAll("[^A-Za-z0-9._-]", "_") + FILE_SUFFIX);
+    }
+
+    /**
+     * @return the directory the checkpoints are kept in
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return number of flushes so far
+     */
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * @return number of checkpoint files that failed to be written
+     */
+    public synchronized long getFlushFailures() {
+        return flushFailures;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ApicCheckpointStore{" +
+                "directory=" + directory +
+                ", clusters=" + clusters.keySet() +
+                ", dirty=" + dirty +
+                ", flushes=" + flushCount +
+                ", failures=" + flushFailures +
+                '}';
+    }
+}
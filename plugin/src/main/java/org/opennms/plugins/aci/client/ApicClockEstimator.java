@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.client;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Estimates the offset between the local clock and an APIC's, so query
+ * windows and future-date checks use the controller's notion of now without
+ * a round trip per timestamp.
+ *
+ * Each sample is the APIC time seen in a response, taken as the midpoint of
+ * the request. Its uncertainty is half the round trip plus half the
+ * resolution of the source, a second for the HTTP <code>Date</code> header
+ * and a millisecond for <code>info.json</code>. Like an NTP clock filter,
+ * the estimate follows the most certain of the recent samples, so a slow
+ * response doesn't drag it around.
+ *
+ * @author metispro
+ */
+public class ApicClockEstimator {
+
+    public static final long DEFAULT_SAMPLE_INTERVAL_MILLIS = 10000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 600000;
+
+    private static final int SAMPLES = 8;
+
+    private final long sampleIntervalMillis;
+    private final long maxAgeMillis;
+
+    private final long[] offsets = new long[SAMPLES];
+    private final long[] uncertainties = new long[SAMPLES];
+    private final long[] takenAt = new long[SAMPLES];
+    private int next = 0;
+    private int size = 0;
+
+    private volatile long offsetMillis = 0;
+    private volatile long uncertaintyMillis = Long.MAX_VALUE;
+    private volatile long lastSampleMillis = 0;
+    private volatile long sampleCount = 0;
+
+    public ApicClockEstimator() {
+        this(DEFAULT_SAMPLE_INTERVAL_MILLIS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param sampleIntervalMillis
+     *            minimum time between two <code>Date</code> header samples
+     * @param maxAgeMillis
+     *            samples older than this no longer count
+     */
+    public ApicClockEstimator(long sampleIntervalMillis, long maxAgeMillis) {
+        this.sampleIntervalMillis = sampleIntervalMillis;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return true if a response's <code>Date</code> header should be sampled
+     */
+    public boolean wantsSample(long nowMillis) {
+        return nowMillis - lastSampleMillis >= sampleIntervalMillis;
+    }
+
+    /**
+     * Sample the <code>Date</code> header of a response.
+     *
+     * @param sentMillis
+     *            local time the request was sent
+     * @param receivedMillis
+     *            local time the response arrived
+     * @param dateHeader
+     *            the RFC 1123 <code>Date</code> header, ignored if null or
+     *            malformed
+     */
+    public void onDateHeader(long sentMillis, long receivedMillis, String dateHeader) {
+        if (dateHeader == null)
+            return;
+        try {
+            long apicMillis = ZonedDateTime.parse(dateHeader, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+            // The header truncates to the second, the APIC was somewhere within it
+            onSample(apicMillis + 500, sentMillis, receivedMillis, 1000);
+        } catch (DateTimeParseException e) {
+            // Not a usable sample
+        }
+    }
+
+    /**
+     * @param apicMillis
+     *            the APIC time reported in the response
+     * @param sentMillis
+     *            local time the request was sent
+     * @param receivedMillis
+     *            local time the response arrived
+     * @param resolutionMillis
+     *            resolution of the reported time
+     */
+    public synchronized void onSample(long apicMillis, long sentMillis, long receivedMillis, long resolutionMillis) {
+        long rtt = Math.max(0, receivedMillis - sentMillis);
+        offsets[next] = apicMillis - (sentMillis + rtt / 2);
+        uncertainties[next] = rtt / 2 + resolutionMillis / 2;
+        takenAt[next] = receivedMillis;
+        next = (next + 1) % SAMPLES;
+        size = Math.min(size + 1, SAMPLES);
+        lastSampleMillis = receivedMillis;
+        sampleCount++;
+
+        int best = -1;
+        for (int i = 0; i < size; i++) {
+            if (receivedMillis - takenAt[i] > maxAgeMillis)
+                continue;
+            if (best < 0 || uncertainties[i] < uncertainties[best])
+                best = i;
+        }
+        offsetMillis = offsets[best];
+        uncertaintyMillis = uncertainties[best];
+    }
+
+    /**
+     * @return true once at least one sample was taken
+     */
+    public boolean hasSample() {
+        return sampleCount > 0;
+    }
+
+    /**
+     * @return the current time on the APIC's clock, the local time until
+     *         sampled
+     */
+    public long apicNow() {
+        return System.currentTimeMillis() + offsetMillis;
+    }
+
+    /**
+     * @param apicMillis
+     *            a time on the APIC's clock
+     * @return the same instant on the local clock
+     */
+    public long toLocalMillis(long apicMillis) {
+        return apicMillis - offsetMillis;
+    }
+
+    /**
+     * @return how far the APIC's clock is ahead of the local one
+     */
+    public long getOffsetMillis() {
+        return offsetMillis;
+    }
+
+    /**
+     * @return the error bound of the offset
+     */
+    public long getUncertaintyMillis() {
+        return uncertaintyMillis;
+    }
+
+    /**
+     * @return number of samples taken
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ApicClockEstimator{" +
+                "offset=" + offsetMillis + "ms" +
+                ", uncertainty=" + (hasSample() ? uncertaintyMillis + "ms" : "n/a") +
+                ", samples=" + sampleCount +
+                '}';
+    }
+}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the APIC of a cluster that requests should go to.
+ *
+ * Every member keeps an exponentially weighted moving average of its response
+ * latency and a short window of recent samples. Requests go to the healthy
+ * member with the lowest average; a member that fails is put in a cool down
+ * that grows with consecutive failures, so traffic moves to the next member
+ * right away instead of waiting for the cluster manager to be restarted.
+ *
+ * @author metispro
+ */
+public class ApicMemberSelector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApicMemberSelector.class);
+
+    /** Weight of the newest sample in the latency average. */
+    private static final double EWMA_ALPHA = 0.3;
+
+    private static final long MIN_COOLDOWN_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_COOLDOWN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /** Every n-th selection goes to the least recently used healthy member to refresh its latency. */
+    private static final int PROBE_INTERVAL = 50;
+
+    private static final int LATENCY_WINDOW = 64;
+    private static final int MIN_SAMPLES_FOR_PERCENTILE = 8;
+
+    /** Hedge delay used until enough samples have been collected. */
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 1000;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    private final List<Member> members;
+
+    private final AtomicLong selections = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    public ApicMemberSelector(List<Member> members) {
+        if (members == null || members.isEmpty())
+            throw new IllegalArgumentException("At least one APIC is required");
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+    }
+
+    /**
+     * @return the member requests should currently go to
+     */
+    public Member select() {
+        long now = System.currentTimeMillis();
+        long selection = selections.incrementAndGet();
+
+        Member best = null;
+        Member leastRecent = null;
+        for (Member member : members) {
+            if (!member.isAvailable(now))
+                continue;
+            if (best == null || member.getLatencyMillis() < best.getLatencyMillis())
+                best = member;
+            if (leastRecent == null || member.lastUsed < leastRecent.lastUsed)
+                leastRecent = member;
+        }
+        if (best == null) {
+            // Everything is cooling down, go with whatever recovers first
+            return Collections.min(members, Comparator.comparingLong(m -> m.cooldownUntil));
+        }
+        Member selected = selection % PROBE_INTERVAL == 0 ? leastRecent : best;
+        selected.lastUsed = now;
+        return selected;
+    }
+
+    /**
+     * @return the member requests would currently go to, without counting it
+     *         as a selection
+     */
+    public Member peek() {
+        Member best = alternate(null);
+        return best != null ? best : Collections.min(members, Comparator.comparingLong(m -> m.cooldownUntil));
+    }
+
+    /**
+     * @return the best member other than the given one, or null if there is
+     *         no other available member
+     */
+    public Member alternate(Member exclude) {
+        long now = System.currentTimeMillis();
+        Member best = null;
+        for (Member member : members) {
+            if (member == exclude || !member.isAvailable(now))
+                continue;
+            if (best == null || member.getLatencyMillis() < best.getLatencyMillis())
+                best = member;
+        }
+        return best;
+    }
+
+    /**
+     * @return all members, available ones first ordered by latency, for
+     *         operations that have to try one after another (e.g. login)
+     */
+    public List<Member> candidates() {
+        final long now = System.currentTimeMillis();
+        List<Member> ordered = new ArrayList<>(members);
+        ordered.sort(Comparator.comparing((Member m) -> !m.isAvailable(now))
+                             .thenComparingDouble(Member::getLatencyMillis));
+        return ordered;
+    }
+
+    /**
+     * Record a successful exchange with a member.
+     */
+    public void onSuccess(Member member, long latencyNanos) {
+        member.recordLatency(latencyNanos);
+        if (member.consecutiveFailures.getAndSet(0) > 0) {
+            LOG.info("ACI: APIC {} is responding again", member);
+            member.cooldownUntil = 0;
+        }
+    }
+
+    /**
+     * Record a failed exchange (I/O error or server error) with a member.
+     */
+    public void onFailure(Member member, Object reason) {
+        member.failures.incrementAndGet();
+        int failures = member.consecutiveFailures.incrementAndGet();
+        long cooldown = Math.min(MAX_COOLDOWN_MILLIS, MIN_COOLDOWN_MILLIS << Math.min(failures - 1, 10));
+        member.cooldownUntil = System.currentTimeMillis() + cooldown;
+        LOG.warn("ACI: APIC {} failed ({}), avoiding it for {}ms", member, reason, cooldown);
+    }
+
+    /**
+     * @return how long to wait for a member before hedging a read to another
+     *         one: the 95th percentile of its recent latencies
+     */
+    public long getHedgeDelayMillis(Member member) {
+        long p = member.getLatencyPercentileMillis(HEDGE_PERCENTILE);
+        return p < 0 ? DEFAULT_HEDGE_DELAY_MILLIS : Math.max(MIN_HEDGE_DELAY_MILLIS, p);
+    }
+
+    void countFailover() {
+        failovers.incrementAndGet();
+    }
+
+    void countHedge() {
+        hedges.incrementAndGet();
+    }
+
+    /**
+     * @return the configured members, in configuration order
+     */
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return reads retried on another member after a failure
+     */
+    public long getFailoverCount() {
+        return failovers.get();
+    }
+
+    /**
+     * @return reads hedged to a second member because the first was slow
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ApicMemberSelector{" +
+                "members=" + members +
+                ", failovers=" + failovers +
+                ", hedges=" + hedges +
+                '}';
+    }
+
+    /**
+     * A single APIC of the cluster.
+     */
+    public static class Member {
+        private final String host;
+        private final int port;
+
+        private final long[] window = new long[LATENCY_WINDOW];
+        private int samples = 0;
+        private volatile double latencyMillis = 0;
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long cooldownUntil = 0;
+        private volatile long lastUsed = 0;
+
+        public Member(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private boolean isAvailable(long now) {
+            return now >= cooldownUntil;
+        }
+
+        private synchronized void recordLatency(long latencyNanos) {
+            double millis = latencyNanos / 1_000_000d;
+            latencyMillis = samples == 0 ? millis : EWMA_ALPHA * millis + (1 - EWMA_ALPHA) * latencyMillis;
+            window[samples % LATENCY_WINDOW] = latencyNanos;
+            samples++;
+        }
+
+        private synchronized long getLatencyPercentileMillis(double percentile) {
+            int n = Math.min(samples, LATENCY_WINDOW);
+            if (n < MIN_SAMPLES_FOR_PERCENTILE)
+                return -1;
+            long[] sorted = Arrays.copyOf(window, n);
+            Arrays.sort(sorted);
+            return TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.ceil(percentile * n) - 1]);
+        }
+
+        /**
+         * @return the host name or address of the APIC
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return the https port of the APIC
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return the moving average of the response latency, 0 until the
+         *         first response
+         */
+        public double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * @return the total number of failed exchanges
+         */
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        /**
+         * @return whether the member is currently avoided after failures
+         */
+        public boolean isCoolingDown() {
+            return !isAvailable(System.currentTimeMillis());
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + String.format("(%.1fms", latencyMillis)
+                    + (consecutiveFailures.get() > 0 ? ", failing" : "") + ")";
+        }
+    }
+}
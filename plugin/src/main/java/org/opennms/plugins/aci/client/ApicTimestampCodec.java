@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.client;
+
+import java.text.ParseException;
+
+/**
+ * Parses and formats APIC timestamps, e.g.
+ * <code>2019-03-05T12:34:56.789+00:00</code>. Parsing goes straight to epoch
+ * millis and formatting fills a single char array, so both are safe to use
+ * from any thread without locking. Offsets are accepted with or without the
+ * colon, as written by the APIC and by older checkpoints; timestamps are
+ * formatted in UTC.
+ *
+ * @author metispro
+ */
+public final class ApicTimestampCodec {
+
+    private static final int DAYS_0000_TO_1970 = 719468;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private ApicTimestampCodec() {
+    }
+
+    /**
+     * @param timestamp
+     *            an APIC timestamp
+     * @return epoch millis
+     * @throws ParseException
+     *             if the timestamp is malformed
+     */
+    public static long parse(CharSequence timestamp) throws ParseException {
+        if (timestamp == null)
+            throw new ParseException("Missing timestamp", 0);
+
+        final int length = timestamp.length();
+        if (length < 19 || timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-'
+                || (timestamp.charAt(10) != 'T' && timestamp.charAt(10) != ' ')
+                || timestamp.charAt(13) != ':' || timestamp.charAt(16) != ':')
+            throw error(timestamp, 0);
+
+        int year = digits(timestamp, 0, 4);
+        int month = digits(timestamp, 5, 2);
+        int day = digits(timestamp, 8, 2);
+        int hour = digits(timestamp, 11, 2);
+        int minute = digits(timestamp, 14, 2);
+        int second = digits(timestamp, 17, 2);
+        if ((year | month | day | hour | minute | second) < 0 || month < 1 || month > 12 || day < 1
+                || day > lengthOfMonth(year, month) || hour > 23 || minute > 59 || second > 59)
+            throw error(timestamp, 0);
+
+        // Fraction of any precision, only milliseconds are kept
+        int pos = 19;
+        int millis = 0;
+        if (pos < length && timestamp.charAt(pos) == '.') {
+            int start = ++pos;
+            while (pos < length && isDigit(timestamp.charAt(pos))) {
+                if (pos - start < 3)
+                    millis = millis * 10 + (timestamp.charAt(pos) - '0');
+                pos++;
+            }
+            if (pos == start)
+                throw error(timestamp, pos);
+            for (int i = pos - start; i < 3; i++)
+                millis *= 10;
+        }
+
+        int offsetSeconds = 0;
+        if (pos < length) {
+            char sign = timestamp.charAt(pos);
+            if (sign == 'Z' && pos + 1 == length) {
+                pos++;
+            } else if (sign == '+' || sign == '-') {
+                int offsetHours = digits(timestamp, pos + 1, 2);
+                int minutesAt = pos + 3 < length && timestamp.charAt(pos + 3) == ':' ? pos + 4 : pos + 3;
+                int offsetMinutes = digits(timestamp, minutesAt, 2);
+                if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59
+                        || minutesAt + 2 != length)
+                    throw error(timestamp, pos);
+                offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (sign == '-' ? -1 : 1);
+                pos = length;
+            } else {
+                throw error(timestamp, pos);
+            }
+        }
+        if (pos != length)
+            throw error(timestamp, pos);
+
+        long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second - offsetSeconds;
+        return seconds * 1000 + millis;
+    }
+
+    /**
+     * @param timestamp
+     *            an APIC timestamp, may be null
+     * @param defaultValue
+     *            returned for a missing or malformed timestamp
+     * @return epoch millis
+     */
+    public static long parse(CharSequence timestamp, long defaultValue) {
+        if (timestamp == null)
+            return defaultValue;
+        try {
+            return parse(timestamp);
+        } catch (ParseException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param epochMillis
+     *            the time to format
+     * @return the timestamp in UTC, e.g. <code>2019-03-05T12:34:56.789+00:00</code>
+     */
+    public static String format(long epochMillis) {
+        long days = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(epochMillis, MILLIS_PER_DAY);
+
+        // Civil date of the day, see daysFromCivil
+        long z = days + DAYS_0000_TO_1970;
+        long era = Math.floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999)
+            throw new IllegalArgumentException("Year out of range: " + year);
+
+        char[] chars = new char[29];
+        put(chars, 0, (int) year, 4);
+        chars[4] = '-';
+        put(chars, 5, month, 2);
+        chars[7] = '-';
+        put(chars, 8, day, 2);
+        chars[10] = 'T';
+        put(chars, 11, millisOfDay / 3600000, 2);
+        chars[13] = ':';
+        put(chars, 14, millisOfDay / 60000 % 60, 2);
+        chars[16] = ':';
+        put(chars, 17, millisOfDay / 1000 % 60, 2);
+        chars[19] = '.';
+        put(chars, 20, millisOfDay % 1000, 3);
+        chars[23] = '+';
+        chars[24] = '0';
+        chars[25] = '0';
+        chars[26] = ':';
+        chars[27] = '0';
+        chars[28] = '0';
+        return new String(chars);
+    }
+
+    private static void put(char[] chars, int at, int value, int width) {
+        for (int i = at + width - 1; i >= at; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /** @return the value of the digits, -1 if any is not a digit */
+    private static int digits(CharSequence s, int at, int count) {
+        if (at < 0 || at + count > s.length())
+            return -1;
+        int value = 0;
+        for (int i = at; i < at + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c))
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+        case 2:
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /** Days since the epoch of a proleptic Gregorian date, without a calendar */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - DAYS_0000_TO_1970;
+    }
+
+    private static ParseException error(CharSequence timestamp, int offset) {
+        return new ParseException("Invalid APIC timestamp: " + timestamp, offset);
+    }
+}
@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the APIC session token of a single {@link ACIRestClient} alive.
+ *
+ * The token is refreshed in the background shortly before the
+ * refreshTimeoutSeconds reported by aaaLogin/aaaRefresh runs out, so regular
+ * requests can simply reuse the cached cookie. A rejected token (401/403)
+ * triggers a transparent re-login.
+ *
+ * @author metispro
+ */
+public class ApicTokenManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApicTokenManager.class);
+
+    /** APIC default when the login response does not carry a timeout. */
+    public static final long DEFAULT_REFRESH_TIMEOUT_SECONDS = 600;
+
+    /** Refresh this many seconds ahead of expiry (capped at a quarter of the timeout). */
+    private static final long REFRESH_MARGIN_SECONDS = 30;
+
+    /**
+     * Create a pool for refreshing the tokens of one or more clients. Owned,
+     * and shut down, by whoever creates the clients.
+     *
+     * @param threads
+     *            number of threads, one slow APIC only holds up one of them
+     * @return the executor
+     */
+    public static ScheduledExecutorService newRefreshExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "aci-token-refresh-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private final ACIRestClient client;
+
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong reloginCount = new AtomicLong();
+    private final AtomicLong authFailureCount = new AtomicLong();
+
+    private volatile String token;
+    private volatile long refreshTimeoutSeconds = DEFAULT_REFRESH_TIMEOUT_SECONDS;
+    private volatile long expiresAt = 0;
+    private volatile boolean closed = false;
+
+    private ScheduledFuture<?> refreshTask;
+
+    /** Refresh or login on the wire, shared by everyone needing a new token meanwhile */
+    private CompletableFuture<Void> pending;
+
+    ApicTokenManager(ACIRestClient client, ScheduledExecutorService executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Record a token returned by aaaLogin or aaaRefresh and schedule the next
+     * background refresh.
+     *
+     * @param token the APIC-cookie value
+     * @param timeoutSeconds refreshTimeoutSeconds as reported by the APIC, or
+     *            a value &lt;= 0 if unknown
+     */
+    synchronized void onToken(String token, long timeoutSeconds) {
+        this.token = token;
+        this.refreshTimeoutSeconds = timeoutSeconds > 0 ? timeoutSeconds : DEFAULT_REFRESH_TIMEOUT_SECONDS;
+        this.expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(this.refreshTimeoutSeconds);
+        scheduleRefresh();
+    }
+
+    /**
+     * Make sure we hold a usable token before a request goes out. Normally a
+     * no-op; only refreshes in-line if the background refresh fell behind.
+     *
+     * @throws Exception if the token could neither be refreshed nor re-acquired
+     */
+    void ensureValid() throws Exception {
+        if (isValid())
+            return;
+        LOG.debug("ACI: Token for {} expired, refreshing in-line", client.getHost());
+        await(renew(false, null));
+    }
+
+    private boolean isValid() {
+        return token != null && System.currentTimeMillis() < expiresAt - TimeUnit.SECONDS.toMillis(1);
+    }
+
+    /**
+     * Called when the APIC rejected the cached token (HTTP 401/403).
+     *
+     * @param rejectedToken the token the failed request was sent with
+     * @throws Exception if logging in again failed
+     */
+    void onAuthFailure(String rejectedToken) throws Exception {
+        authFailureCount.incrementAndGet();
+        await(renew(true, rejectedToken));
+    }
+
+    /**
+     * Run {@link #onAuthFailure(String)} on the refresh executor, so that the
+     * blocking re-login never ties up a shared pool.
+     *
+     * @param rejectedToken the token the failed request was sent with
+     * @return completes once a new token is in place, exceptionally if the
+     *         login failed or the manager is shut down
+     */
+    CompletableFuture<Void> onAuthFailureAsync(String rejectedToken) {
+        try {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    onAuthFailure(rejectedToken);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("Token manager for " + client.getHost() + " is closed", e));
+        }
+    }
+
+    /**
+     * Start a refresh, or a login if asked to, unless one is on the wire
+     * already. The network call runs without holding the monitor; only the
+     * token is swapped under it.
+     *
+     * @param relogin skip aaaRefresh, the token was rejected
+     * @param rejectedToken the rejected token, nothing is done if it was replaced meanwhile
+     * @return completes once a new token is in place
+     */
+    private CompletableFuture<Void> renew(boolean relogin, String rejectedToken) {
+        final CompletableFuture<Void> renewal;
+        synchronized (this) {
+            if (pending != null)
+                return pending;
+            if (relogin ? rejectedToken != null && !rejectedToken.equals(token) : isValid())
+                // Another thread already replaced the token
+                return CompletableFuture.completedFuture(null);
+            renewal = new CompletableFuture<>();
+            pending = renewal;
+        }
+
+        try {
+            if (relogin)
+                relogin();
+            else
+                refreshOrRelogin();
+            renewal.complete(null);
+        } catch (Throwable e) {
+            renewal.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                pending = null;
+            }
+        }
+        return renewal;
+    }
+
+    private static void await(CompletableFuture<Void> renewal) throws Exception {
+        try {
+            renewal.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    private void refreshOrRelogin() throws Exception {
+        try {
+            client.refreshToken();
+            refreshCount.incrementAndGet();
+        } catch (Exception e) {
+            LOG.debug("ACI: aaaRefresh failed for {}, logging in again", client.getHost(), e);
+            relogin();
+        }
+    }
+
+    private void relogin() throws Exception {
+        client.login();
+        reloginCount.incrementAndGet();
+        LOG.info("ACI: Re-established APIC session for cluster {} on {}", client.getCluster(), client.getHost());
+    }
+
+    private synchronized void scheduleRefresh() {
+        if (refreshTask != null)
+            refreshTask.cancel(false);
+        if (closed || executor.isShutdown())
+            return;
+
+        long margin = Math.min(REFRESH_MARGIN_SECONDS, refreshTimeoutSeconds / 4);
+        long delay = Math.max(1, refreshTimeoutSeconds - margin);
+        refreshTask = executor.schedule(this::backgroundRefresh, delay, TimeUnit.SECONDS);
+        LOG.trace("ACI: Next token refresh for {} in {}s", client.getHost(), delay);
+    }
+
+    private void backgroundRefresh() {
+        if (closed)
+            return;
+        try {
+            await(renew(false, null));
+        } catch (Throwable e) {
+            LOG.warn("ACI: Failed to refresh APIC session for cluster {} on {}: {}", client.getCluster(),
+                     client.getHost(), e.getMessage());
+            synchronized (this) {
+                // Try again soon rather than waiting for a full timeout period
+                if (!closed && !executor.isShutdown())
+                    refreshTask = executor.schedule(this::backgroundRefresh, REFRESH_MARGIN_SECONDS / 3,
+                                                    TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stop refreshing the token.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * @return the current token
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the refreshTimeoutSeconds last reported by the APIC
+     */
+    public long getRefreshTimeoutSeconds() {
+        return refreshTimeoutSeconds;
+    }
+
+    /**
+     * @return number of successful aaaRefresh calls
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return number of successful re-logins after the initial login
+     */
+    public long getReloginCount() {
+        return reloginCount.get();
+    }
+
+    /**
+     * @return number of tokens rejected by the APIC
+     */
+    public long getAuthFailureCount() {
+        return authFailureCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ApicTokenManager{" +
+                "refreshTimeoutSeconds=" + refreshTimeoutSeconds +
+                ", refreshes=" + refreshCount +
+                ", relogins=" + reloginCount +
+                ", authFailures=" + authFailureCount +
+                '}';
+    }
+}
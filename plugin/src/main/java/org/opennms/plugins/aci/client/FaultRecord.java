@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.client;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Compact form of a <code>faultRecord</code>, <code>faultInst</code> or
+ * <code>eventRecord</code>. The attributes the plugin works with are plain
+ * fields; everything else is kept in a pair of arrays. Attribute names and
+ * the values of low-cardinality attributes are interned, so a storm of
+ * records shares one copy of each instead of one per record.
+ *
+ * Records are filled while decoding and must not be changed once handed on.
+ *
+ * @author metispro
+ */
+public final class FaultRecord {
+
+    public static final String FAULT_RECORD = "faultRecord";
+    public static final String FAULT_INST = "faultInst";
+    public static final String EVENT_RECORD = "eventRecord";
+
+    private static final int MAX_INTERNED = 4096;
+    private static final Map<String, String> INTERNED = new ConcurrentHashMap<>();
+
+    private final String moClass;
+
+    private String dn;
+    private String affected;
+    private String code;
+    private String severity;
+    private String lc;
+    private String created;
+    private String id;
+    private String descr;
+    private String cause;
+
+    private String[] names = new String[24];
+    private String[] values = new String[24];
+    private int extra = 0;
+
+    /**
+     * @param moClass
+     *            the class of the managed object, or "error" for an APIC
+     *            error entry
+     */
+    public FaultRecord(String moClass) {
+        this.moClass = intern(moClass);
+    }
+
+    /**
+     * Copy the attributes of a decoded managed object.
+     */
+    public static FaultRecord of(String moClass, JSONObject attributes) {
+        FaultRecord record = new FaultRecord(moClass);
+        for (Object entry : attributes.entrySet()) {
+            Map.Entry<?, ?> attribute = (Map.Entry<?, ?>) entry;
+            record.put(String.valueOf(attribute.getKey()), attribute.getValue());
+        }
+        return record;
+    }
+
+    /**
+     * Set an attribute while decoding. Values that are not strings are kept
+     * in their JSON form.
+     */
+    public void put(String name, Object value) {
+        if (value == null)
+            return;
+        String text = value instanceof String ? (String) value : JSONValue.toJSONString(value);
+        switch (name) {
+        case "dn":
+            dn = text;
+            break;
+        case "affected":
+            affected = text;
+            break;
+        case "code":
+            code = intern(text);
+            break;
+        case "severity":
+            severity = intern(text);
+            break;
+        case "lc":
+            lc = intern(text);
+            break;
+        case "created":
+            created = text;
+            break;
+        case "id":
+            id = text;
+            break;
+        case "descr":
+            descr = text;
+            break;
+        case "cause":
+            cause = intern(text);
+            break;
+        default:
+            for (int i = 0; i < extra; i++) {
+                if (names[i].equals(name)) {
+                    values[i] = text;
+                    return;
+                }
+            }
+            if (extra == names.length) {
+                names = Arrays.copyOf(names, extra * 2);
+                values = Arrays.copyOf(values, extra * 2);
+            }
+            names[extra] = intern(name);
+            values[extra] = text;
+            extra++;
+        }
+    }
+
+    /**
+     * @return the value of an attribute, null if not set
+     */
+    public String get(String name) {
+        switch (name) {
+        case "dn":
+            return dn;
+        case "affected":
+            return affected;
+        case "code":
+            return code;
+        case "severity":
+            return severity;
+        case "lc":
+            return lc;
+        case "created":
+            return created;
+        case "id":
+            return id;
+        case "descr":
+            return descr;
+        case "cause":
+            return cause;
+        default:
+            for (int i = 0; i < extra; i++) {
+                if (names[i].equals(name))
+                    return values[i];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Visit every attribute that is set, the known ones first.
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        visit(action, "dn", dn);
+        visit(action, "affected", affected);
+        visit(action, "code", code);
+        visit(action, "severity", severity);
+        visit(action, "lc", lc);
+        visit(action, "created", created);
+        visit(action, "id", id);
+        visit(action, "descr", descr);
+        visit(action, "cause", cause);
+        for (int i = 0; i < extra; i++)
+            action.accept(names[i], values[i]);
+    }
+
+    private static void visit(BiConsumer<String, String> action, String name, String value) {
+        if (value != null)
+            action.accept(name, value);
+    }
+
+    /**
+     * @return the number of attributes set
+     */
+    public int size() {
+        int[] count = { 0 };
+        forEach((name, value) -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * @return true if the record has no attributes
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the affected DN, or the record's own DN if not set
+     */
+    public String getAffectedOrDn() {
+        return affected != null ? affected : dn;
+    }
+
+    /** @return the class of the managed object */
+    public String getMoClass() {
+        return moClass;
+    }
+
+    /** @return the dn attribute */
+    public String getDn() {
+        return dn;
+    }
+
+    /** @return the affected attribute */
+    public String getAffected() {
+        return affected;
+    }
+
+    /** @return the code attribute */
+    public String getCode() {
+        return code;
+    }
+
+    /** @return the severity attribute */
+    public String getSeverity() {
+        return severity;
+    }
+
+    /** @return the lc (lifecycle) attribute */
+    public String getLc() {
+        return lc;
+    }
+
+    /** @return the created attribute */
+    public String getCreated() {
+        return created;
+    }
+
+    /** @return the id attribute */
+    public String getId() {
+        return id;
+    }
+
+    /** @return the descr attribute */
+    public String getDescr() {
+        return descr;
+    }
+
+    /** @return the cause attribute */
+    public String getCause() {
+        return cause;
+    }
+
+    /**
+     * @return the attributes as a json-simple object, for printing
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSONObject() {
+        JSONObject attributes = new JSONObject();
+        forEach(attributes::put);
+        return attributes;
+    }
+
+    /**
+     * @return the attributes in JSON form
+     */
+    public String toJSONString() {
+        return toJSONObject().toJSONString();
+    }
+
+    /** Share one copy of a string; new strings stop being added once the pool is full */
+    private static String intern(String value) {
+        if (value == null)
+            return null;
+        String interned = INTERNED.get(value);
+        if (interned != null)
+            return interned;
+        if (INTERNED.size() >= MAX_INTERNED)
+            return value;
+        interned = INTERNED.putIfAbsent(value, value);
+        return interned != null ? interned : value;
+    }
+
+    @Override
+    public String toString() {
+        return moClass + toJSONString();
+    }
+}
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+
+/**
+ * SAX style handler for APIC responses of the form
+ * <code>{"totalCount":"n","imdata":[{"&lt;class&gt;":{"attributes":{...}}}, ...]}</code>.
+ *
+ * Only a single imdata entry is held in memory at a time; each one is handed
+ * to the {@link ImdataConsumer} as soon as it is complete and then dropped.
+ * With a {@link FaultRecordConsumer} the attributes are decoded straight into
+ * a {@link FaultRecord}, without an intermediate map. Websocket notifications
+ * additionally carry the ids of the subscriptions they were pushed for, which
+ * are handed to a {@link SubscriptionRecordConsumer} along with each record.
+ *
+ * @author metispro
+ */
+class ImdataStreamHandler implements ContentHandler {
+
+    private static final int ROOT_DEPTH = 1;
+    private static final int IMDATA_DEPTH = 2;
+    private static final int ENTRY_DEPTH = 3;
+    private static final int ATTRIBUTES_DEPTH = 5;
+
+    private final ImdataConsumer consumer;
+    private final FaultRecordConsumer faultConsumer;
+    private final SubscriptionRecordConsumer subscriptionConsumer;
+
+    private final List<String> subscriptionIds = new ArrayList<>(2);
+    private final List<String> readOnlyIds = Collections.unmodifiableList(subscriptionIds);
+
+    /** Stands in for the {@link FaultRecord} being filled on the stack */
+    private static final Object RECORD = new Object();
+    private FaultRecord record;
+    private String entryClass;
+
+    /** Open containers and pending keys of the current imdata entry. */
+    private final Deque<Object> stack = new ArrayDeque<>();
+
+    private int depth;
+    private String rootKey;
+    private boolean inImdata;
+    private int totalCount = -1;
+    private int decoded;
+
+    ImdataStreamHandler(ImdataConsumer consumer) {
+        this.consumer = consumer;
+        this.faultConsumer = null;
+        this.subscriptionConsumer = null;
+    }
+
+    ImdataStreamHandler(FaultRecordConsumer faultConsumer) {
+        this.consumer = null;
+        this.faultConsumer = faultConsumer;
+        this.subscriptionConsumer = null;
+    }
+
+    ImdataStreamHandler(SubscriptionRecordConsumer subscriptionConsumer) {
+        this.consumer = null;
+        this.faultConsumer = null;
+        this.subscriptionConsumer = subscriptionConsumer;
+    }
+
+    @Override
+    public void startJSON() {
+        stack.clear();
+        depth = 0;
+        rootKey = null;
+        inImdata = false;
+        totalCount = -1;
+        decoded = 0;
+        record = null;
+        entryClass = null;
+        subscriptionIds.clear();
+    }
+
+    @Override
+    public void endJSON() {
+    }
+
+    @Override
+    public boolean startObject() {
+        depth++;
+        if (!inImdata)
+            return true;
+        if ((faultConsumer != null || subscriptionConsumer != null) && depth == ATTRIBUTES_DEPTH && "attributes".equals(stack.peek())) {
+            stack.pop();
+            record = new FaultRecord(entryClass);
+            stack.push(RECORD);
+        } else {
+            stack.push(new JSONObject());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObject() {
+        if (inImdata) {
+            Object value = stack.pop();
+            if (value == RECORD)
+                emit(record);
+            else if (depth == ENTRY_DEPTH)
+                emit((JSONObject) value);
+            else
+                attach(value);
+        }
+        depth--;
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        if (depth == ROOT_DEPTH)
+            rootKey = key;
+        else if (inImdata) {
+            if (depth == ENTRY_DEPTH)
+                entryClass = key;
+            stack.push(key);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        depth++;
+        if (depth == IMDATA_DEPTH && "imdata".equals(rootKey))
+            inImdata = true;
+        else if (inImdata)
+            stack.push(new JSONArray());
+        return true;
+    }
+
+    @Override
+    public boolean endArray() {
+        if (inImdata) {
+            if (depth == IMDATA_DEPTH)
+                inImdata = false;
+            else
+                attach(stack.pop());
+        }
+        depth--;
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) {
+        if (inImdata) {
+            attach(value);
+        } else if ("subscriptionId".equals(rootKey) && value != null) {
+            // A single id or an array of them
+            subscriptionIds.add(value.toString());
+        } else if (depth == ROOT_DEPTH && "totalCount".equals(rootKey) && value != null) {
+            totalCount = Integer.parseInt(value.toString());
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void attach(Object value) {
+        Object top = stack.peek();
+        if (top instanceof JSONArray) {
+            ((JSONArray) top).add(value);
+        } else if (top instanceof String) {
+            String key = (String) stack.pop();
+            Object parent = stack.peek();
+            if (parent == RECORD)
+                record.put(key, value);
+            else
+                ((JSONObject) parent).put(key, value);
+        }
+    }
+
+    private void emit(FaultRecord faultRecord) {
+        record = null;
+        decoded++;
+        if (subscriptionConsumer != null)
+            subscriptionConsumer.accept(readOnlyIds, faultRecord);
+        else
+            faultConsumer.accept(faultRecord);
+    }
+
+    private void emit(JSONObject entry) {
+        if (consumer == null)
+            return; // Attributes went out as fault records already
+        for (Object key : entry.keySet()) {
+            Object body = entry.get(key);
+            if (!(body instanceof JSONObject))
+                continue;
+            JSONObject attributes = (JSONObject) ((JSONObject) body).get("attributes");
+            if (attributes == null)
+                continue;
+            decoded++;
+            consumer.accept((String) key, attributes);
+        }
+    }
+
+    /**
+     * @return the totalCount reported by the APIC, or the number of decoded
+     *         objects if the response did not carry one
+     */
+    int getTotalCount() {
+        return totalCount >= 0 ? totalCount : decoded;
+    }
+
+    /**
+     * @return number of managed objects passed to the consumer
+     */
+    int getDecoded() {
+        return decoded;
+    }
+}
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.client;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caps the number of requests in flight against a single APIC. Requests over
+ * the limit are queued and started as earlier ones complete, so callers never
+ * park a thread while waiting for a slot.
+ *
+ * @author metispro
+ */
+public class InFlightLimiter {
+
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    private volatile int maxInFlight;
+
+    public InFlightLimiter(int maxInFlight) {
+        setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * Run the given task once a slot is free.
+     *
+     * @param task starts the request and returns its future
+     * @return a future completing with the task's result
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        queued.incrementAndGet();
+        pending.add(() -> {
+            CompletableFuture<T> future;
+            try {
+                future = task.get();
+            } catch (Throwable e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((value, error) -> {
+                release();
+                if (error != null)
+                    result.completeExceptionally(error);
+                else
+                    result.complete(value);
+            });
+        });
+        drain();
+        return result;
+    }
+
+    /**
+     * Take a slot for an extra request, such as a hedge, if one is free and
+     * no queued request is waiting for it. Give it back with
+     * {@link #release()}.
+     *
+     * @return true if a slot was taken
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxInFlight || !pending.isEmpty())
+                return false;
+            if (inFlight.compareAndSet(current, current + 1)) {
+                peakInFlight.accumulateAndGet(current + 1, Math::max);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a slot taken with {@link #tryAcquire()}.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+        completed.incrementAndGet();
+        drain();
+    }
+
+    /**
+     * Start queued tasks while slots are free. Only one thread drains at a
+     * time; a task completing synchronously calls back in here through
+     * release(), which then just leaves another pass to the running loop
+     * instead of recursing.
+     */
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0)
+            return;
+
+        int missed = 1;
+        do {
+            startPending();
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void startPending() {
+        while (!pending.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight)
+                return;
+            if (!inFlight.compareAndSet(current, current + 1))
+                continue;
+
+            Runnable next = pending.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            peakInFlight.accumulateAndGet(current + 1, Math::max);
+            next.run();
+        }
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        this.maxInFlight = maxInFlight;
+        drain();
+    }
+
+    /**
+     * @return requests currently on the wire
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return requests waiting for a slot
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return highest number of concurrent requests seen so far
+     */
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * @return number of finished requests
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "InFlightLimiter{" +
+                "inFlight=" + inFlight +
+                ", max=" + maxInFlight +
+                ", queued=" + queued +
+                ", peak=" + peakInFlight +
+                ", completed=" + completed +
+                '}';
+    }
+}
@@ -36,6 +36,7 @@ import org.apache.karaf.shell.api.action.Command;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.opennms.plugins.aci.ApicClusterManager;
 import org.opennms.plugins.aci.ApicService;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
 
 /**
  * @author tf016851
@@ -76,6 +77,10 @@ public class ApicServiceStatusCommand implements Action {
             }
         }
 
+        ACIRestClientRegistry clientRegistry = ApicService.getClientRegistry();
+        if (clientRegistry != null && _clusterName == null)
+            clientRegistry.printStatus();
+
         return null;
     }
 
@@ -32,9 +32,9 @@ import org.apache.karaf.shell.api.action.Action;
 import org.apache.karaf.shell.api.action.Command;
 import org.apache.karaf.shell.api.action.Option;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import org.opennms.plugins.aci.ApicService;
 import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ACIRestClientRegistry;
 
 
 /**
@@ -68,23 +68,20 @@ public class GetFaultsCommand implements Action {
     public Object execute() throws Exception {
         try
         {
-            ACIRestClient client = ACIRestClient.newAciRest( location, aciUrl, username, password );
-            
-            JSONArray results = client.getCurrentFaults(client.getTimeStamp(pollDuration * 60));
+            // Share the service's session when running inside OpenNMS
+            ACIRestClientRegistry registry = ApicService.getClientRegistry();
+            ACIRestClient client = registry != null
+                    ? registry.acquire( location, aciUrl, username, password )
+                    : ACIRestClient.newAciRest( location, aciUrl, username, password );
 
-            for (Object object : results) {
-                JSONObject objectData = (JSONObject) object;
-                if (objectData == null)
-                    continue;
-                for (Object object2 : objectData.keySet()) {
-                    String key = (String) object2;
-                    JSONObject classData = (JSONObject) objectData.get(key);
-                    JSONObject attributes = (JSONObject) classData.get("attributes");
-                    if (attributes == null)
-                        continue;
-
-                    System.out.println(attributes.toJSONString());
-                }
+            try {
+                client.getCurrentFaults(client.getTimeStamp(pollDuration * 60),
+                        record -> System.out.println(record.toJSONString()));
+            } finally {
+                if (registry != null)
+                    registry.release(client);
+                else
+                    client.close();
             }
 
         }
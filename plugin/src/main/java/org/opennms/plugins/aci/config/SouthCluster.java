@@ -65,6 +65,15 @@ public class SouthCluster implements Serializable {
     @XmlElement(name = "poll-duration-minutes", required = false)
     private int pollDurationMinutes;
    
+    @XmlElement(name = "flap-half-life-seconds", required = false)
+    private Integer flapHalfLifeSeconds;
+
+    @XmlElement(name = "flap-suppress-limit", required = false)
+    private Integer flapSuppressLimit;
+
+    @XmlElement(name = "subscription-class", required = false)
+    private List<String> subscriptionClasses = new ArrayList<String>();
+
     @XmlElement(name = "south-element")
     private List<SouthElement> m_elements = new ArrayList<SouthElement>();
 
@@ -124,9 +133,44 @@ public class SouthCluster implements Serializable {
         this.location = location;
     }
 
+    /**
+     * @return half-life of the flap penalty, 0 disables flap damping, null for the default
+     */
+    public Integer getFlapHalfLifeSeconds() {
+        return flapHalfLifeSeconds;
+    }
+
+    public void setFlapHalfLifeSeconds(Integer flapHalfLifeSeconds) {
+        this.flapHalfLifeSeconds = flapHalfLifeSeconds;
+    }
+
+    /**
+     * @return flap penalty at which a fault is suppressed, each transition adds 1000 so it must be above that,
+     *         null for the default
+     */
+    public Integer getFlapSuppressLimit() {
+        return flapSuppressLimit;
+    }
+
+    public void setFlapSuppressLimit(Integer flapSuppressLimit) {
+        this.flapSuppressLimit = flapSuppressLimit;
+    }
+
+    /**
+     * @return classes pushed over the cluster's websocket next to faultRecord, e.g. eventRecord or aaaModLR
+     */
+    public List<String> getSubscriptionClasses() {
+        return subscriptionClasses;
+    }
+
+    public void setSubscriptionClasses(List<String> subscriptionClasses) {
+        this.subscriptionClasses = subscriptionClasses;
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(this.m_clusterName, this.m_elements, this.m_cronSchedule, this.pollDurationMinutes);
+        return Objects.hash(this.m_clusterName, this.m_elements, this.m_cronSchedule, this.pollDurationMinutes,
+                            this.flapHalfLifeSeconds, this.flapSuppressLimit, this.subscriptionClasses);
     }
 
     @Override
@@ -139,7 +183,10 @@ public class SouthCluster implements Serializable {
             return Objects.equals(this.m_clusterName, other.m_clusterName)
                     && Objects.equals(this.m_elements, other.m_elements)
                     && Objects.equals(this.m_cronSchedule, other.m_cronSchedule)
-                    && Objects.equals(this.pollDurationMinutes, other.pollDurationMinutes);
+                    && Objects.equals(this.pollDurationMinutes, other.pollDurationMinutes)
+                    && Objects.equals(this.flapHalfLifeSeconds, other.flapHalfLifeSeconds)
+                    && Objects.equals(this.flapSuppressLimit, other.flapSuppressLimit)
+                    && Objects.equals(this.subscriptionClasses, other.subscriptionClasses);
         }
         return false;
     }
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.plugins.aci.ApicWatermark;
+import org.opennms.plugins.aci.client.ApicCheckpointStore;
+import org.opennms.plugins.aci.client.FaultRecord;
+
+/**
+ * @author metispro
+ *
+ */
+public class ApicCheckpointStoreTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = folder.getRoot().toPath().resolve("data").resolve("aci");
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testPutFlushAndReload() throws Exception
+    {
+        ApicCheckpointStore store = new ApicCheckpointStore( directory, 0 );
+        assertNull( store.get( "LS6", "faultRecord" ) );
+
+        store.put( "LS6", "faultRecord", "2019-03-05T12:34:56.789+00:00", "8589939208" );
+        store.put( "LS6", "eventRecord", "2019-03-05T12:00:00.000+00:00", null );
+        store.put( "pod/2", "faultRecord", "2019-03-05T11:00:00.000+00:00", null );
+        // Nothing is written before the flush
+        assertFalse( Files.exists( directory ) );
+
+        store.flush();
+        assertTrue( Files.isRegularFile( directory.resolve( "LS6.properties" ) ) );
+        assertTrue( Files.isRegularFile( directory.resolve( "pod_2.properties" ) ) );
+        assertFalse( Files.exists( directory.resolve( "LS6.properties.tmp" ) ) );
+
+        ApicCheckpointStore reloaded = new ApicCheckpointStore( directory, 0 );
+        ApicCheckpointStore.Checkpoint checkpoint = reloaded.get( "LS6", "faultRecord" );
+        assertEquals( "2019-03-05T12:34:56.789+00:00", checkpoint.getCreated() );
+        assertEquals( "8589939208", checkpoint.getId() );
+        assertNull( reloaded.get( "LS6", "eventRecord" ).getId() );
+        assertEquals( "2019-03-05T11:00:00.000+00:00", reloaded.get( "pod/2", "faultRecord" ).getCreated() );
+    }
+
+    @Test
+    public void testCloseFlushesPending() throws Exception
+    {
+        ApicCheckpointStore store = new ApicCheckpointStore( directory, 60000 );
+        store.put( "LS6", "faultRecord", "2019-03-05T12:34:56.789+00:00", null );
+        store.close();
+
+        assertEquals( "2019-03-05T12:34:56.789+00:00",
+                      new ApicCheckpointStore( directory, 0 ).get( "LS6", "faultRecord" ).getCreated() );
+    }
+
+    @Test
+    public void testWatermarkResumesFromCheckpoint() throws Exception
+    {
+        ApicCheckpointStore store = new ApicCheckpointStore( directory, 0 );
+        ApicWatermark watermark = new ApicWatermark( store, "LS6" );
+        assertFalse( watermark.isSet() );
+
+        assertTrue( watermark.accept( record( "2", "2019-03-05T12:00:01.000+00:00" ) ) );
+        assertTrue( watermark.accept( record( "1", "2019-03-05T12:00:00.000+00:00" ) ) );
+        assertFalse( watermark.accept( record( "2", "2019-03-05T12:00:01.000+00:00" ) ) );
+        assertEquals( 1, watermark.getDuplicateCount() );
+        // Accepting alone does not move the watermark
+        assertFalse( watermark.isSet() );
+
+        // Held back by the older record still in flight
+        watermark.processed( record( "2", "2019-03-05T12:00:01.000+00:00" ) );
+        assertEquals( ApicWatermark.parseCreated( "2019-03-05T12:00:00.000+00:00" ), watermark.getCreatedMillis() );
+        assertNull( watermark.getLastId() );
+
+        watermark.processed( record( "1", "2019-03-05T12:00:00.000+00:00" ) );
+        assertEquals( "2019-03-05T12:00:01.000+00:00", watermark.getCreated() );
+        assertEquals( "2", watermark.getLastId() );
+
+        // A dropped record neither holds the watermark back nor stays a duplicate
+        assertTrue( watermark.accept( record( "3", "2019-03-05T12:00:00.500+00:00" ) ) );
+        watermark.rejected( record( "3", "2019-03-05T12:00:00.500+00:00" ) );
+        assertTrue( watermark.accept( record( "3", "2019-03-05T12:00:00.500+00:00" ) ) );
+        watermark.processed( record( "3", "2019-03-05T12:00:00.500+00:00" ) );
+        assertEquals( "2", watermark.getLastId() );
+        store.flush();
+
+        ApicWatermark resumed = new ApicWatermark( new ApicCheckpointStore( directory, 0 ), "LS6" );
+        assertTrue( resumed.isSet() );
+        assertEquals( "2019-03-05T12:00:01.000+00:00", resumed.getCreated() );
+        assertEquals( "2", resumed.getLastId() );
+    }
+
+    private static FaultRecord record( String id, String created )
+    {
+        FaultRecord record = new FaultRecord( FaultRecord.FAULT_RECORD );
+        record.put( "id", id );
+        record.put( "created", created );
+        return record;
+    }
+
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.ApicClockEstimator;
+
+/**
+ * @author metispro
+ *
+ */
+public class ApicClockEstimatorTest
+{
+
+    /** Local send time of the first sample */
+    private static final long T0 = 1_600_000_000_000L;
+
+    private ApicClockEstimator clock;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        clock = new ApicClockEstimator( 10000, 60000 );
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testOffsetFromMidpoint() throws Exception
+    {
+        assertFalse( clock.hasSample() );
+        assertEquals( 0, clock.getOffsetMillis() );
+
+        // APIC a minute ahead, it answered halfway through a 200ms round trip
+        clock.onSample( T0 + 100 + 60000, T0, T0 + 200, 1 );
+
+        assertTrue( clock.hasSample() );
+        assertEquals( 60000, clock.getOffsetMillis() );
+        assertEquals( 100, clock.getUncertaintyMillis() );
+        assertEquals( T0, clock.toLocalMillis( T0 + 60000 ) );
+    }
+
+    @Test
+    public void testFollowsMostCertainSample() throws Exception
+    {
+        clock.onSample( T0 + 100 + 60000, T0, T0 + 200, 1 );
+
+        // A slow response is off by 500ms, but less certain than the first
+        clock.onSample( T0 + 11000 + 60500, T0 + 10000, T0 + 12000, 1 );
+        assertEquals( 60000, clock.getOffsetMillis() );
+        assertEquals( 100, clock.getUncertaintyMillis() );
+
+        // A faster one replaces the estimate
+        clock.onSample( T0 + 20010 + 60020, T0 + 20000, T0 + 20020, 1 );
+        assertEquals( 60020, clock.getOffsetMillis() );
+        assertEquals( 10, clock.getUncertaintyMillis() );
+        assertEquals( 3, clock.getSampleCount() );
+    }
+
+    @Test
+    public void testOldSamplesExpire() throws Exception
+    {
+        clock.onSample( T0 + 10 - 90000, T0, T0 + 20, 1 );
+        assertEquals( -90000, clock.getOffsetMillis() );
+
+        // Two minutes later the precise sample no longer counts
+        clock.onSample( T0 + 120500 - 91000, T0 + 120000, T0 + 121000, 1 );
+        assertEquals( -91000, clock.getOffsetMillis() );
+        assertEquals( 500, clock.getUncertaintyMillis() );
+    }
+
+    @Test
+    public void testDateHeader() throws Exception
+    {
+        // The header only has whole seconds, the APIC was 30s and some ahead
+        long apicSecond = T0 + 30000;
+        clock.onDateHeader( T0, T0 + 400, rfc1123( apicSecond ) );
+
+        assertEquals( apicSecond + 500 - ( T0 + 200 ), clock.getOffsetMillis() );
+        assertEquals( 700, clock.getUncertaintyMillis() );
+
+        clock.onDateHeader( T0, T0 + 10, "yesterday" );
+        clock.onDateHeader( T0, T0 + 10, null );
+        assertEquals( 1, clock.getSampleCount() );
+    }
+
+    @Test
+    public void testSampleInterval() throws Exception
+    {
+        assertTrue( clock.wantsSample( T0 ) );
+        clock.onSample( T0 + 100, T0, T0 + 200, 1 );
+        assertFalse( clock.wantsSample( T0 + 5000 ) );
+        assertTrue( clock.wantsSample( T0 + 10200 ) );
+    }
+
+    @Test
+    public void testUpperBoundFollowsApicClock() throws Exception
+    {
+        // The upper bound of a big data query is the APIC's now
+        long now = System.currentTimeMillis();
+        clock.onSample( now + 25 + 45000, now, now + 50, 1 );
+
+        long before = System.currentTimeMillis();
+        long apicNow = clock.apicNow();
+        long after = System.currentTimeMillis();
+        assertTrue( apicNow >= before + 45000 );
+        assertTrue( apicNow <= after + 45000 );
+    }
+
+    private static String rfc1123( long millis )
+    {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format( Instant.ofEpochMilli( millis ).atZone( ZoneOffset.UTC ) );
+    }
+
+}
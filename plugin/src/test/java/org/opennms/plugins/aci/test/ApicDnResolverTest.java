@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.integration.api.v1.dao.NodeDao;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.aci.ApicDnResolver;
+import org.opennms.plugins.aci.NodeCache;
+
+/**
+ * @author metispro
+ *
+ */
+public class ApicDnResolverTest
+{
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testToForeignId()
+    {
+        assertEquals( "topology_pod-1_node-101", ApicDnResolver.toForeignId( "topology/pod-1/node-101" ) );
+        assertEquals( "topology_pod-1_node-101", ApicDnResolver.toForeignId( "topology/pod-1/node-101/sys/phys-[eth1/1]" ) );
+        assertEquals( "topology_pod-2_node-1", ApicDnResolver.toForeignId( "topology/pod-2/node-1/sys" ) );
+        assertNull( ApicDnResolver.toForeignId( "topology/pod-1/node-1011x/sys" ) );
+        assertNull( ApicDnResolver.toForeignId( "uni/tn-common/ctx-default" ) );
+        assertNull( ApicDnResolver.toForeignId( null ) );
+    }
+
+    @Test
+    public void testResolve()
+    {
+        Node node = mock( Node.class );
+        when( node.getId() ).thenReturn( 42 );
+        NodeDao nodeDao = mock( NodeDao.class );
+        when( nodeDao.getNodeByForeignSourceAndForeignId( "LS6", "topology_pod-1_node-101" ) ).thenReturn( node );
+
+        NodeCache nodeCache = new NodeCache();
+        nodeCache.setNodeDao( nodeDao );
+        nodeCache.init();
+        ApicDnResolver resolver = new ApicDnResolver( nodeCache );
+
+        assertEquals( Long.valueOf( 42 ), resolver.resolve( "LS6", "topology/pod-1/node-101/sys/phys-[eth1/1]", null ) );
+        assertEquals( Long.valueOf( 42 ), resolver.resolve( "LS6", "topology/pod-1/node-101/sys/ch", null ) );
+        assertNull( resolver.resolve( "LS6", "topology/pod-1/node-102/sys", null ) );
+        assertNull( resolver.resolve( "LS6", "uni/tn-common", null ) );
+
+        assertEquals( 4, resolver.getLookupCount() );
+        assertEquals( 2, resolver.getDnHitCount() );
+        assertEquals( 2, resolver.getMissCount() );
+        assertEquals( 2.0 / 3, resolver.getHitRate(), 0.0001 );
+    }
+
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.ApicEventPipeline;
+import org.opennms.plugins.aci.ApicEventPipeline.OverflowPolicy;
+import org.opennms.plugins.aci.client.FaultRecord;
+
+/**
+ * @author metispro
+ *
+ */
+public class ApicEventPipelineTest
+{
+
+    private final List<String> handled = Collections.synchronizedList( new ArrayList<>() );
+
+    private final CountDownLatch started = new CountDownLatch( 1 );
+
+    private final CountDownLatch proceed = new CountDownLatch( 1 );
+
+    private ApicEventPipeline pipeline;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        proceed.countDown();
+        if ( pipeline != null )
+            pipeline.close( 5000 );
+    }
+
+    @Test
+    public void testOrderPerDn() throws Exception
+    {
+        final Map<String, List<Integer>> byDn = new HashMap<>();
+        pipeline = new ApicEventPipeline( "test", 4, 16, OverflowPolicy.BLOCK, record -> {
+            synchronized ( byDn )
+            {
+                byDn.computeIfAbsent( record.getAffectedOrDn(), dn -> new ArrayList<>() ).add( Integer.valueOf( record.getId() ) );
+            }
+        } );
+        pipeline.start();
+
+        for ( int i = 0; i < 1000; i++ )
+            assertTrue( pipeline.submit( record( "topology/pod-1/node-" + ( 101 + i % 10 ), i ) ) );
+        pipeline.close( 5000 );
+
+        assertEquals( 10, byDn.size() );
+        for ( List<Integer> ids : byDn.values() )
+        {
+            assertEquals( 100, ids.size() );
+            for ( int i = 1; i < ids.size(); i++ )
+                assertTrue( ids.get( i - 1 ) < ids.get( i ) );
+        }
+        assertEquals( 1000, pipeline.getSubmitted() );
+        assertEquals( 1000, pipeline.getProcessed() );
+        assertEquals( 0, pipeline.getDropped() );
+    }
+
+    @Test
+    public void testBlock() throws Exception
+    {
+        fillSinglePartition( OverflowPolicy.BLOCK );
+
+        final AtomicBoolean accepted = new AtomicBoolean();
+        Thread submitter = new Thread( () -> {
+            try
+            {
+                accepted.set( pipeline.submit( record( "topology/pod-1/node-101", 3 ) ) );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } );
+        submitter.start();
+        submitter.join( 200 );
+        assertTrue( submitter.isAlive() );
+        assertEquals( 1, pipeline.getBlocked() );
+
+        proceed.countDown();
+        submitter.join( 5000 );
+        assertTrue( accepted.get() );
+        pipeline.close( 5000 );
+
+        assertEquals( Arrays.asList( "1", "2", "3" ), handled );
+        assertEquals( 0, pipeline.getDropped() );
+    }
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        fillSinglePartition( OverflowPolicy.DROP_OLDEST );
+
+        assertTrue( pipeline.submit( record( "topology/pod-1/node-101", 3 ) ) );
+        assertEquals( 1, pipeline.getDropped() );
+
+        proceed.countDown();
+        pipeline.close( 5000 );
+        assertEquals( Arrays.asList( "1", "3" ), handled );
+    }
+
+    @Test
+    public void testDropNewest() throws Exception
+    {
+        fillSinglePartition( OverflowPolicy.DROP_NEWEST );
+
+        assertFalse( pipeline.submit( record( "topology/pod-1/node-101", 3 ) ) );
+        assertEquals( 1, pipeline.getDropped() );
+
+        proceed.countDown();
+        pipeline.close( 5000 );
+        assertEquals( Arrays.asList( "1", "2" ), handled );
+    }
+
+    @Test
+    public void testDrainOnClose() throws Exception
+    {
+        pipeline = new ApicEventPipeline( "test", 2, 1000, OverflowPolicy.BLOCK, record -> {
+            try
+            {
+                Thread.sleep( 1 );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            handled.add( record.getId() );
+        } );
+        pipeline.start();
+
+        for ( int i = 0; i < 200; i++ )
+            pipeline.submit( record( "topology/pod-1/node-" + ( 101 + i % 2 ), i ) );
+        pipeline.close( 10000 );
+
+        assertEquals( 200, handled.size() );
+        assertEquals( 0, pipeline.getQueued() );
+
+        // Nothing is accepted after close
+        assertFalse( pipeline.submit( record( "topology/pod-1/node-101", 200 ) ) );
+        assertEquals( 1, pipeline.getDropped() );
+    }
+
+    @Test
+    public void testHandlerFailure() throws Exception
+    {
+        pipeline = new ApicEventPipeline( "test", 1, 16, OverflowPolicy.BLOCK, record -> {
+            if ( "1".equals( record.getId() ) )
+                throw new IllegalStateException( "boom" );
+            handled.add( record.getId() );
+        } );
+        pipeline.start();
+
+        pipeline.submit( record( "topology/pod-1/node-101", 1 ) );
+        pipeline.submit( record( "topology/pod-1/node-101", 2 ) );
+        pipeline.close( 5000 );
+
+        assertEquals( Arrays.asList( "2" ), handled );
+        assertEquals( 1, pipeline.getFailed() );
+        assertEquals( 1, pipeline.getProcessed() );
+    }
+
+    /**
+     * One partition with room for one record, the worker holding record 1
+     * until proceed is released and record 2 queued behind it.
+     */
+    private void fillSinglePartition( OverflowPolicy policy ) throws Exception
+    {
+        pipeline = new ApicEventPipeline( "test", 1, 1, policy, record -> {
+            started.countDown();
+            try
+            {
+                proceed.await( 10, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            handled.add( record.getId() );
+        } );
+        pipeline.start();
+
+        assertTrue( pipeline.submit( record( "topology/pod-1/node-101", 1 ) ) );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        assertTrue( pipeline.submit( record( "topology/pod-1/node-101", 2 ) ) );
+        assertEquals( 0, pipeline.getDropped() );
+    }
+
+    private static FaultRecord record( String affected, int id )
+    {
+        FaultRecord record = new FaultRecord( FaultRecord.FAULT_RECORD );
+        record.put( "affected", affected );
+        record.put( "code", "F0532" );
+        record.put( "lc", "raised" );
+        record.put( "severity", "major" );
+        record.put( "id", String.valueOf( id ) );
+        return record;
+    }
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ApicMemberSelector;
+import org.opennms.plugins.aci.client.ApicMemberSelector.Member;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Hedged reads of {@link ACIRestClient} against two mocked APICs.
+ *
+ * @author metispro
+ *
+ */
+public class ApicHedgedReadTest
+{
+
+    private static final String QUERY = "/api/class/fvTenant.json";
+
+    private static final String LOGIN = "{\"totalCount\":\"1\",\"imdata\":[{\"aaaLogin\":{\"attributes\":"
+            + "{\"token\":\"token-1\",\"refreshTimeoutSeconds\":\"600\"}}}]}";
+
+    @Rule
+    public WireMockRule apic1 = new WireMockRule( options().dynamicPort().dynamicHttpsPort() );
+
+    @Rule
+    public WireMockRule apic2 = new WireMockRule( options().dynamicPort().dynamicHttpsPort() );
+
+    private ACIRestClient client;
+
+    private Member slow;
+
+    private Member fast;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        for ( WireMockRule apic : new WireMockRule[] { apic1, apic2 } )
+            apic.stubFor( post( urlEqualTo( "/api/aaaLogin.json" ) ).willReturn( aResponse().withStatus( 200 ).withBody( LOGIN ) ) );
+        client = ACIRestClient.newAciRest( "test", "https://localhost:" + apic1.httpsPort() + ",https://localhost:"
+                + apic2.httpsPort(), "admin", "secret" );
+
+        // apic1 has been the fastest so far, hedge after the 50ms minimum
+        ApicMemberSelector members = client.getMembers();
+        slow = members.getMembers().get( 0 );
+        fast = members.getMembers().get( 1 );
+        for ( int i = 0; i < 30; i++ )
+        {
+            members.onSuccess( slow, TimeUnit.MILLISECONDS.toNanos( 1 ) );
+            members.onSuccess( fast, TimeUnit.MILLISECONDS.toNanos( 20 ) );
+        }
+        assertSame( slow, members.peek() );
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        client.close();
+    }
+
+    @Test
+    public void testDelayedPrimaryLosesToHedge() throws Exception
+    {
+        apic1.stubFor( get( urlEqualTo( QUERY ) ).willReturn( aResponse().withStatus( 200 ).withFixedDelay( 3000 )
+                .withBody( "{\"totalCount\":\"1\",\"imdata\":[]}" ) ) );
+        apic2.stubFor( get( urlEqualTo( QUERY ) ).willReturn( aResponse().withStatus( 200 )
+                .withBody( "{\"totalCount\":\"2\",\"imdata\":[]}" ) ) );
+        client.setHedgeReads( true );
+
+        long start = System.currentTimeMillis();
+        JSONObject result = (JSONObject) client.get( "class/fvTenant.json" );
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals( "2", result.get( "totalCount" ) );
+        assertTrue( "answered after " + elapsed + "ms", elapsed < 2000 );
+        assertEquals( 1, client.getMembers().getHedgeCount() );
+        apic1.verify( 1, getRequestedFor( urlEqualTo( QUERY ) ) );
+        apic2.verify( 1, getRequestedFor( urlEqualTo( QUERY ) ) );
+
+        // The loser is cancelled, not counted as a failure, and both slots are back
+        for ( int i = 0; i < 100 && client.getLimiter().getInFlight() > 0; i++ )
+            Thread.sleep( 10 );
+        assertEquals( 0, client.getLimiter().getInFlight() );
+        assertEquals( 0, slow.getFailureCount() );
+    }
+
+    @Test
+    public void testNoHedgeWithoutFreeSlot() throws Exception
+    {
+        apic1.stubFor( get( urlEqualTo( QUERY ) ).willReturn( aResponse().withStatus( 200 ).withFixedDelay( 500 )
+                .withBody( "{\"totalCount\":\"1\",\"imdata\":[]}" ) ) );
+        apic2.stubFor( get( urlEqualTo( QUERY ) ).willReturn( aResponse().withStatus( 200 )
+                .withBody( "{\"totalCount\":\"2\",\"imdata\":[]}" ) ) );
+        client.setHedgeReads( true );
+        client.setMaxInFlightRequests( 1 );
+
+        JSONObject result = (JSONObject) client.get( "class/fvTenant.json" );
+
+        assertEquals( "1", result.get( "totalCount" ) );
+        assertEquals( 0, client.getMembers().getHedgeCount() );
+        apic2.verify( 0, getRequestedFor( urlEqualTo( QUERY ) ) );
+    }
+
+    @Test
+    public void testFailover() throws Exception
+    {
+        apic1.stubFor( get( urlEqualTo( QUERY ) ).willReturn( aResponse().withStatus( 503 ) ) );
+        apic2.stubFor( get( urlEqualTo( QUERY ) ).willReturn( aResponse().withStatus( 200 )
+                .withBody( "{\"totalCount\":\"2\",\"imdata\":[]}" ) ) );
+
+        JSONObject result = (JSONObject) client.get( "class/fvTenant.json" );
+
+        assertEquals( "2", result.get( "totalCount" ) );
+        assertEquals( 1, client.getMembers().getFailoverCount() );
+        assertEquals( 1, slow.getFailureCount() );
+        assertTrue( slow.isCoolingDown() );
+        assertEquals( 0, client.getLimiter().getInFlight() );
+    }
+
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.ApicMemberSelector;
+import org.opennms.plugins.aci.client.ApicMemberSelector.Member;
+
+/**
+ * @author metispro
+ *
+ */
+public class ApicMemberSelectorTest
+{
+
+    private Member apic1;
+
+    private Member apic2;
+
+    private Member apic3;
+
+    private ApicMemberSelector selector;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        apic1 = new Member( "apic1", 443 );
+        apic2 = new Member( "apic2", 443 );
+        apic3 = new Member( "apic3", 443 );
+        selector = new ApicMemberSelector( Arrays.asList( apic1, apic2, apic3 ) );
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testPrefersFastestMember() throws Exception
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            selector.onSuccess( apic1, millis( 80 ) );
+            selector.onSuccess( apic2, millis( 5 ) );
+            selector.onSuccess( apic3, millis( 30 ) );
+        }
+        assertSame( apic2, selector.select() );
+        assertSame( apic2, selector.peek() );
+        assertSame( apic3, selector.alternate( apic2 ) );
+        assertEquals( Arrays.asList( apic2, apic3, apic1 ), selector.candidates() );
+
+        // apic2 slows down, the moving average moves traffic to apic3
+        for ( int i = 0; i < 10; i++ )
+            selector.onSuccess( apic2, millis( 200 ) );
+        assertTrue( apic2.getLatencyMillis() > apic3.getLatencyMillis() );
+        assertSame( apic3, selector.select() );
+        assertSame( apic1, selector.alternate( apic3 ) );
+    }
+
+    @Test
+    public void testAvoidsFailedMember() throws Exception
+    {
+        selector.onSuccess( apic1, millis( 50 ) );
+        selector.onSuccess( apic2, millis( 5 ) );
+        selector.onSuccess( apic3, millis( 20 ) );
+
+        selector.onFailure( apic2, "HTTP 503" );
+        assertTrue( apic2.isCoolingDown() );
+        assertEquals( 1, apic2.getFailureCount() );
+        assertSame( apic3, selector.select() );
+        assertSame( apic1, selector.alternate( apic3 ) );
+        assertEquals( apic2, selector.candidates().get( 2 ) );
+
+        selector.onFailure( apic3, "HTTP 503" );
+        assertNull( selector.alternate( apic1 ) );
+        assertSame( apic1, selector.select() );
+
+        // Answering again ends the cool down right away
+        selector.onSuccess( apic2, millis( 5 ) );
+        assertFalse( apic2.isCoolingDown() );
+        assertSame( apic2, selector.select() );
+    }
+
+    @Test
+    public void testAllCoolingDown() throws Exception
+    {
+        selector.onFailure( apic1, "connect timed out" );
+        selector.onFailure( apic1, "connect timed out" );
+        selector.onFailure( apic2, "connect timed out" );
+        Thread.sleep( 5 );
+        selector.onFailure( apic3, "connect timed out" );
+
+        // Consecutive failures back off longer, apic2 recovers first
+        assertSame( apic2, selector.select() );
+        assertSame( apic2, selector.peek() );
+        assertNull( selector.alternate( null ) );
+    }
+
+    @Test
+    public void testProbesLeastRecentlyUsed() throws Exception
+    {
+        selector.onSuccess( apic1, millis( 5 ) );
+        selector.onSuccess( apic2, millis( 50 ) );
+        selector.onSuccess( apic3, millis( 50 ) );
+
+        int probes = 0;
+        for ( int i = 0; i < 100; i++ )
+        {
+            if ( selector.select() != apic1 )
+                probes++;
+            Thread.sleep( 1 );
+        }
+        assertEquals( 2, probes );
+    }
+
+    @Test
+    public void testHedgeDelay() throws Exception
+    {
+        assertEquals( ApicMemberSelector.DEFAULT_HEDGE_DELAY_MILLIS, selector.getHedgeDelayMillis( apic1 ) );
+
+        // 95th percentile of the window once there are enough samples
+        for ( int i = 1; i <= 20; i++ )
+            selector.onSuccess( apic1, millis( i * 10 ) );
+        assertEquals( 190, selector.getHedgeDelayMillis( apic1 ) );
+
+        // Never below the minimum, however fast the member is
+        for ( int i = 0; i < 10; i++ )
+            selector.onSuccess( apic2, millis( 1 ) );
+        assertEquals( 50, selector.getHedgeDelayMillis( apic2 ) );
+    }
+
+    private static long millis( long millis )
+    {
+        return TimeUnit.MILLISECONDS.toNanos( millis );
+    }
+
+}
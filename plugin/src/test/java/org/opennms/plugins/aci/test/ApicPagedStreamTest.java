@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.ACIRestClient;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder;
+
+/**
+ * Paged class queries of {@link ACIRestClient} against a mocked APIC.
+ *
+ * @author metispro
+ *
+ */
+public class ApicPagedStreamTest
+{
+
+    private static final String QUERY = "/api/class/fvTenant.json";
+
+    private static final String ORDER_BY = "fvTenant.name|asc";
+
+    private static final String LOGIN = "{\"totalCount\":\"1\",\"imdata\":[{\"aaaLogin\":{\"attributes\":"
+            + "{\"token\":\"token-1\",\"refreshTimeoutSeconds\":\"600\"}}}]}";
+
+    @Rule
+    public WireMockRule apic = new WireMockRule( options().dynamicPort().dynamicHttpsPort() );
+
+    private final List<String> names = new ArrayList<>();
+
+    private final Set<Thread> consumerThreads = new HashSet<>();
+
+    private ACIRestClient client;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        apic.stubFor( post( urlEqualTo( "/api/aaaLogin.json" ) ).willReturn( aResponse().withStatus( 200 ).withBody( LOGIN ) ) );
+        client = ACIRestClient.newAciRest( "test", "https://localhost:" + apic.httpsPort(), "admin", "secret" );
+        client.setPageSize( 2 );
+        client.setPageParallelism( 2 );
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        client.close();
+    }
+
+    @Test
+    public void testPagesInOrder() throws Exception
+    {
+        // The second page is the slowest, the third must still come after it
+        stubPage( 0, 5, 0, "t0", "t1" );
+        stubPage( 1, 5, 500, "t2", "t3" );
+        stubPage( 2, 5, 0, "t4" );
+
+        assertEquals( 5, stream() );
+
+        assertEquals( Arrays.asList( "t0", "t1", "t2", "t3", "t4" ), names );
+        for ( int page = 0; page < 3; page++ )
+            apic.verify( 1, pageRequest( page ) );
+        // The short third page is the last one asked for
+        apic.verify( 3, getRequestedFor( urlPathEqualTo( QUERY ) ) );
+    }
+
+    @Test
+    public void testFullLastPage() throws Exception
+    {
+        stubPage( 0, 4, 0, "t0", "t1" );
+        stubPage( 1, 4, 0, "t2", "t3" );
+
+        assertEquals( 4, stream() );
+
+        assertEquals( Arrays.asList( "t0", "t1", "t2", "t3" ), names );
+        apic.verify( 2, getRequestedFor( urlPathEqualTo( QUERY ) ) );
+    }
+
+    @Test
+    public void testEmptyResult() throws Exception
+    {
+        stubPage( 0, 0, 0 );
+
+        assertEquals( 0, stream() );
+
+        assertTrue( names.isEmpty() );
+        apic.verify( 1, getRequestedFor( urlPathEqualTo( QUERY ) ) );
+    }
+
+    @Test
+    public void testConsumedOnCallingThread() throws Exception
+    {
+        stubPage( 0, 7, 0, "t0", "t1" );
+        stubPage( 1, 7, 100, "t2", "t3" );
+        stubPage( 2, 7, 0, "t4", "t5" );
+        stubPage( 3, 7, 0, "t6" );
+
+        assertEquals( 7, stream() );
+
+        // The first page is buffered like the others, not consumed on an
+        // HTTP client thread
+        assertEquals( 7, names.size() );
+        assertEquals( new HashSet<>( Arrays.asList( Thread.currentThread() ) ), consumerThreads );
+    }
+
+    private int stream() throws Exception
+    {
+        return client.streamPaged( "class/fvTenant.json", ORDER_BY, ( moClass, attributes ) -> {
+            consumerThreads.add( Thread.currentThread() );
+            names.add( (String) attributes.get( "name" ) );
+        } );
+    }
+
+    private void stubPage( int page, int totalCount, int delayMillis, String... tenants )
+    {
+        StringBuilder body = new StringBuilder( "{\"totalCount\":\"" + totalCount + "\",\"imdata\":[" );
+        for ( int i = 0; i < tenants.length; i++ )
+        {
+            if ( i > 0 )
+                body.append( ',' );
+            body.append( "{\"fvTenant\":{\"attributes\":{\"dn\":\"uni/tn-" + tenants[i] + "\",\"name\":\""
+                    + tenants[i] + "\"}}}" );
+        }
+        body.append( "]}" );
+        apic.stubFor( get( urlPathEqualTo( QUERY ) ).withQueryParam( "order-by", equalTo( ORDER_BY ) )
+                .withQueryParam( "page-size", equalTo( "2" ) ).withQueryParam( "page", equalTo( String.valueOf( page ) ) )
+                .willReturn( aResponse().withStatus( 200 ).withFixedDelay( delayMillis ).withBody( body.toString() ) ) );
+    }
+
+    private static RequestPatternBuilder pageRequest( int page )
+    {
+        return getRequestedFor( urlPathEqualTo( QUERY ) ).withQueryParam( "page", equalTo( String.valueOf( page ) ) );
+    }
+
+}
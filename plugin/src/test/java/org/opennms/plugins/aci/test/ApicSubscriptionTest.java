@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.ApicEventPipeline;
+import org.opennms.plugins.aci.ApicSubscription;
+import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.FaultRecord;
+
+/**
+ * @author metispro
+ *
+ */
+public class ApicSubscriptionTest
+{
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testQuery()
+    {
+        ApicEventPipeline pipeline = new ApicEventPipeline( "test", record -> {} );
+        String since = "2019-03-05T12:00:00.000+00:00";
+
+        assertEquals( "/api/node/class/aaaModLR.json?query-target-filter=gt(aaaModLR.created, \"" + since + "\")&subscription=yes",
+                      new ApicSubscription( ApicSubscription.AUDIT_RECORD, pipeline ).getQuery( since ) );
+        assertEquals( "/api/node/class/fabricNode.json?subscription=yes",
+                      new ApicSubscription( ApicSubscription.FABRIC_NODE, pipeline ).getQuery( since ) );
+    }
+
+    @Test
+    public void testDecodeNotification() throws Exception
+    {
+        String message = "{\"subscriptionId\":[\"72057598349672449\",\"72057598349672450\"],\"imdata\":["
+                + "{\"aaaModLR\":{\"attributes\":{\"code\":\"E4212393\",\"dn\":\"subj-[uni/tn-common]/mod-4294967297\",\"user\":\"admin\"}}},"
+                + "{\"aaaModLR\":{\"attributes\":{\"code\":\"E4212394\",\"dn\":\"subj-[uni/tn-common]/mod-4294967298\"}}}]}";
+
+        List<String> routed = new ArrayList<>();
+        int count = ACIRestClient.decodeNotification( new StringReader( message ), ( subscriptionIds, record ) -> {
+            assertEquals( 2, subscriptionIds.size() );
+            routed.add( subscriptionIds.get( 0 ) + " " + record.getMoClass() + " " + record.getCode() );
+        } );
+
+        assertEquals( 2, count );
+        assertEquals( "72057598349672449 aaaModLR E4212393", routed.get( 0 ) );
+        assertEquals( "72057598349672449 aaaModLR E4212394", routed.get( 1 ) );
+
+        // A single id and a fault reuse the same parser
+        ACIRestClient.decodeNotification( new StringReader( "{\"subscriptionId\":\"1\",\"imdata\":[{\"faultRecord\":"
+                + "{\"attributes\":{\"code\":\"F0532\"}}}]}" ), ( subscriptionIds, record ) -> {
+            assertEquals( "1", subscriptionIds.get( 0 ) );
+            assertEquals( FaultRecord.FAULT_RECORD, record.getMoClass() );
+        } );
+    }
+
+}
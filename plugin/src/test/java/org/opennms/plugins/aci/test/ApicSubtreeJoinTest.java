@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.ACIRestClient;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Joining a class level subtree query back to the objects it belongs to.
+ *
+ * @author metispro
+ *
+ */
+public class ApicSubtreeJoinTest
+{
+
+    private static final String NODE = "topology/pod-1/node-101/sys";
+
+    private static final String PHYS_1 = NODE + "/phys-[eth1/1]";
+
+    private static final String PHYS_2 = NODE + "/phys-[eth1/2]";
+
+    private static final String LOGIN = "{\"totalCount\":\"1\",\"imdata\":[{\"aaaLogin\":{\"attributes\":"
+            + "{\"token\":\"token-1\",\"refreshTimeoutSeconds\":\"600\"}}}]}";
+
+    @Rule
+    public WireMockRule apic = new WireMockRule( options().dynamicPort().dynamicHttpsPort() );
+
+    private ACIRestClient client;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        apic.stubFor( post( urlEqualTo( "/api/aaaLogin.json" ) ).willReturn( aResponse().withStatus( 200 ).withBody( LOGIN ) ) );
+        client = ACIRestClient.newAciRest( "test", "https://localhost:" + apic.httpsPort(), "admin", "secret" );
+
+        // Two ports and the system object both of them are nested in
+        apic.stubFor( get( urlEqualTo( "/api/node/class/l1PhysIf.json" ) ).willReturn( aResponse().withStatus( 200 )
+                .withBody( imdata( entry( "l1PhysIf", PHYS_1 ), entry( "l1PhysIf", PHYS_2 ),
+                                   entry( "l1PhysIf", NODE ) ) ) ) );
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        client.close();
+    }
+
+    @Test
+    public void testJoinsToNearestOwner() throws Exception
+    {
+        apic.stubFor( get( urlPathEqualTo( "/api/node/class/l1PhysIf.json" ) )
+                .withQueryParam( "rsp-subtree-include", equalTo( "stats,no-scoped" ) )
+                .willReturn( aResponse().withStatus( 200 ).withBody( imdata(
+                        entry( "eqptIngrTotal5min", PHYS_1 + "/CDeqptIngrTotal5min" ),
+                        // Deeper below the port, bracketed slashes are not separators
+                        entry( "eqptEgrTotal5min", PHYS_1 + "/dbgIfIn/[a/b]/CDeqptEgrTotal5min" ),
+                        entry( "eqptIngrTotal5min", PHYS_2 + "/CDeqptIngrTotal5min" ),
+                        // Below the node but not below a port
+                        entry( "eqptTemp5min", NODE + "/ch/CDeqptTemp5min" ),
+                        // No owner among the queried objects
+                        entry( "eqptIngrTotal5min", "topology/pod-1/node-999/sys/phys-[eth1/9]/CDeqptIngrTotal5min" ) ) ) ) );
+
+        List<JSONArray> stats = client.getStats( "l1PhysIf" );
+
+        assertEquals( 3, stats.size() );
+        assertEquals( Arrays.asList( PHYS_1 + "/CDeqptIngrTotal5min", PHYS_1 + "/dbgIfIn/[a/b]/CDeqptEgrTotal5min" ),
+                      dns( stats.get( 0 ) ) );
+        assertEquals( Arrays.asList( PHYS_2 + "/CDeqptIngrTotal5min" ), dns( stats.get( 1 ) ) );
+        assertEquals( Arrays.asList( NODE + "/ch/CDeqptTemp5min" ), dns( stats.get( 2 ) ) );
+        // One batched query, no per object fallback
+        apic.verify( 0, getRequestedFor( urlPathMatching( "/api/mo/.*" ) ) );
+    }
+
+    @Test
+    public void testFallsBackPerObject() throws Exception
+    {
+        apic.stubFor( get( urlPathEqualTo( "/api/node/class/l1PhysIf.json" ) )
+                .withQueryParam( "rsp-subtree-include", equalTo( "stats,no-scoped" ) )
+                .willReturn( aResponse().withStatus( 200 ).withBody(
+                        "{\"totalCount\":\"1\",\"imdata\":[{\"error\":{\"attributes\":{\"code\":\"400\",\"text\":\"too big\"}}}]}" ) ) );
+        apic.stubFor( get( urlPathMatching( "/api/mo/.*" ) ).willReturn( aResponse().withStatus( 200 )
+                .withBody( imdata( entry( "eqptIngrTotal5min", PHYS_1 + "/CDeqptIngrTotal5min" ) ) ) ) );
+
+        List<JSONArray> stats = client.getStats( "l1PhysIf" );
+
+        assertEquals( 3, stats.size() );
+        apic.verify( 3, getRequestedFor( urlPathMatching( "/api/mo/.*" ) ) );
+    }
+
+    private static List<String> dns( JSONArray imdata )
+    {
+        List<String> dns = new ArrayList<>();
+        for ( Object object : imdata )
+        {
+            JSONObject classData = (JSONObject) ( (JSONObject) object ).values().iterator().next();
+            dns.add( (String) ( (JSONObject) classData.get( "attributes" ) ).get( "dn" ) );
+        }
+        return dns;
+    }
+
+    private static String entry( String moClass, String dn )
+    {
+        return "{\"" + moClass + "\":{\"attributes\":{\"dn\":\"" + dn + "\"}}}";
+    }
+
+    private static String imdata( String... entries )
+    {
+        return "{\"totalCount\":\"" + entries.length + "\",\"imdata\":[" + String.join( ",", entries ) + "]}";
+    }
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.plugins.aci.client.ApicTimestampCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of {@link ApicTimestampCodec} against the shared, synchronized
+ * {@link SimpleDateFormat} it replaces, with the handler threads contending
+ * for it. Not run by the build, start it from the IDE or with
+ * <code>java -cp ... ApicTimestampCodecBenchmark</code>.
+ *
+ * @author metispro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ApicTimestampCodecBenchmark
+{
+
+    private static final String CREATED = "2019-03-05T12:34:56.789+01:00";
+
+    private static final long MILLIS = 1551785696789L;
+
+    private final SimpleDateFormat format = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSSZ" );
+
+    @Benchmark
+    public long parseSimpleDateFormat() throws ParseException
+    {
+        String[] startTimeparts = CREATED.split( "T" );
+        String onlydate = startTimeparts[0];
+        String onlytimewtz = startTimeparts[1];
+        String onlytime = onlytimewtz.substring( 0, onlytimewtz.length() - 6 );
+        String onlytz = onlytimewtz.substring( onlytimewtz.length() - 6 );
+        String tz = onlytz.replace( ":", "" );
+
+        synchronized ( format )
+        {
+            return format.parse( onlydate + "T" + onlytime + tz ).getTime();
+        }
+    }
+
+    @Benchmark
+    public long parseCodec() throws ParseException
+    {
+        return ApicTimestampCodec.parse( CREATED );
+    }
+
+    @Benchmark
+    public String formatSimpleDateFormat()
+    {
+        synchronized ( format )
+        {
+            return format.format( new Date( MILLIS ) );
+        }
+    }
+
+    @Benchmark
+    public String formatCodec()
+    {
+        return ApicTimestampCodec.format( MILLIS );
+    }
+
+    public static void main( String[] args ) throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include( ApicTimestampCodecBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.time.OffsetDateTime;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.ApicTimestampCodec;
+
+/**
+ * @author metispro
+ *
+ */
+public class ApicTimestampCodecTest
+{
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testParse() throws Exception
+    {
+        assertEquals( millis( "2019-03-05T12:34:56.789+01:00" ), ApicTimestampCodec.parse( "2019-03-05T12:34:56.789+01:00" ) );
+        assertEquals( millis( "2019-03-05T12:34:56.789-05:30" ), ApicTimestampCodec.parse( "2019-03-05T12:34:56.789-0530" ) );
+        assertEquals( millis( "2020-02-29T23:59:59.100Z" ), ApicTimestampCodec.parse( "2020-02-29T23:59:59.1Z" ) );
+        assertEquals( millis( "1969-12-31T23:59:59.999+00:00" ), ApicTimestampCodec.parse( "1969-12-31T23:59:59.999999+00:00" ) );
+        assertEquals( 0, ApicTimestampCodec.parse( "1970-01-01T00:00:00" ) );
+        assertEquals( -1, ApicTimestampCodec.parse( "2019-02-29T00:00:00.000+00:00", -1 ) );
+        assertEquals( -1, ApicTimestampCodec.parse( null, -1 ) );
+
+        for ( String invalid : new String[] { "", "2019-03-05", "2019-03-05T12:34:56.+00:00", "2019-13-05T12:34:56.789+00:00",
+                "2019-03-05T12:34:56.789+00", "2019-03-05T12:34:56.789 00:00", "2019-03-05T12:34:56.789+00:00x" } )
+        {
+            try
+            {
+                ApicTimestampCodec.parse( invalid );
+                fail( "Parsed " + invalid );
+            }
+            catch ( ParseException e )
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testFormat() throws Exception
+    {
+        assertEquals( "1970-01-01T00:00:00.000+00:00", ApicTimestampCodec.format( 0 ) );
+        assertEquals( "1969-12-31T23:59:59.999+00:00", ApicTimestampCodec.format( -1 ) );
+        assertEquals( "2019-03-05T11:34:56.789+00:00", ApicTimestampCodec.format( millis( "2019-03-05T12:34:56.789+01:00" ) ) );
+
+        // Round trip across leap years and century boundaries
+        for ( long m = millis( "1899-12-31T00:00:00Z" ); m < millis( "2401-03-01T00:00:00Z" ); m += 86400000L * 7 + 3661001 )
+            assertEquals( m, ApicTimestampCodec.parse( ApicTimestampCodec.format( m ) ) );
+    }
+
+    private static long millis( String timestamp )
+    {
+        return OffsetDateTime.parse( timestamp ).toInstant().toEpochMilli();
+    }
+
+}
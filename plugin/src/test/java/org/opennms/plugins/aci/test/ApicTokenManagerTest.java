@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.ACIRestClient;
+import org.opennms.plugins.aci.client.ApicTokenManager;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+/**
+ * Session handling of {@link ApicTokenManager} against a mocked APIC.
+ *
+ * @author metispro
+ *
+ */
+public class ApicTokenManagerTest
+{
+
+    private static final String LOGIN = "/api/aaaLogin.json";
+
+    private static final String REFRESH = "/api/aaaRefresh.json";
+
+    private static final String QUERY = "/api/class/fvTenant.json";
+
+    @Rule
+    public WireMockRule apic = new WireMockRule( options().dynamicPort().dynamicHttpsPort() );
+
+    private ACIRestClient client;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        if ( client != null )
+            client.close();
+    }
+
+    @Test
+    public void testConcurrentAuthFailuresLoginOnce() throws Exception
+    {
+        stubLogins( 600 );
+        stubQuery( "token-1", 401, 0 );
+        stubQuery( "token-2", 200, 0 );
+        client = connect();
+
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+        for ( int i = 0; i < 16; i++ )
+            results.add( client.getAsync( "class/fvTenant.json" ) );
+        for ( CompletableFuture<Object> result : results )
+            assertEquals( "1", ( (JSONObject) result.get( 10, TimeUnit.SECONDS ) ).get( "totalCount" ) );
+
+        apic.verify( 2, postRequestedFor( urlEqualTo( LOGIN ) ) );
+        assertEquals( 1, client.getTokenManager().getReloginCount() );
+        assertEquals( "token-2", client.getToken() );
+    }
+
+    @Test
+    public void testStaleAuthFailureKeepsNewToken() throws Exception
+    {
+        stubLogins( 600 );
+        client = connect();
+
+        // The first request is rejected late, after a second one already
+        // had its rejection handled
+        stubQuery( "token-1", 401, 1000 );
+        CompletableFuture<Object> slow = client.getAsync( "class/fvTenant.json" );
+        Thread.sleep( 200 );
+        stubQuery( "token-1", 401, 0 );
+        stubQuery( "token-2", 200, 0 );
+        client.get( "class/fvTenant.json" );
+        assertEquals( "token-2", client.getToken() );
+
+        slow.get( 10, TimeUnit.SECONDS );
+        apic.verify( 2, postRequestedFor( urlEqualTo( LOGIN ) ) );
+        assertEquals( 1, client.getTokenManager().getReloginCount() );
+        assertEquals( 2, client.getTokenManager().getAuthFailureCount() );
+        assertEquals( "token-2", client.getToken() );
+    }
+
+    @Test
+    public void testRefreshBeforeExpiry() throws Exception
+    {
+        // Expires after 4s, refreshed 1s before
+        stubLogins( 4 );
+        apic.stubFor( get( urlEqualTo( REFRESH ) ).willReturn( aResponse().withStatus( 200 )
+                .withBody( aaaLogin( "token-refreshed", 4 ) ) ) );
+        long loggedIn = System.currentTimeMillis();
+        client = connect();
+
+        while ( client.getTokenManager().getRefreshCount() == 0 && System.currentTimeMillis() - loggedIn < 10000 )
+            Thread.sleep( 50 );
+        long refreshed = System.currentTimeMillis();
+
+        assertEquals( 1, client.getTokenManager().getRefreshCount() );
+        assertTrue( "refreshed after " + ( refreshed - loggedIn ) + "ms", refreshed - loggedIn < 4000 );
+        assertEquals( "token-refreshed", client.getToken() );
+        apic.verify( 1, postRequestedFor( urlEqualTo( LOGIN ) ) );
+        apic.verify( 1, getRequestedFor( urlEqualTo( REFRESH ) ).withCookie( "APIC-cookie", equalTo( "token-1" ) ) );
+        assertEquals( 0, client.getTokenManager().getReloginCount() );
+    }
+
+    private ACIRestClient connect() throws Exception
+    {
+        return ACIRestClient.newAciRest( "test", "https://localhost:" + apic.httpsPort(), "admin", "secret" );
+    }
+
+    /**
+     * The first login hands out token-1, every later one token-2.
+     */
+    private void stubLogins( int refreshTimeoutSeconds )
+    {
+        apic.stubFor( post( urlEqualTo( LOGIN ) ).inScenario( "login" ).whenScenarioStateIs( Scenario.STARTED )
+                .willReturn( aResponse().withStatus( 200 ).withBody( aaaLogin( "token-1", refreshTimeoutSeconds ) ) )
+                .willSetStateTo( "logged in" ) );
+        apic.stubFor( post( urlEqualTo( LOGIN ) ).inScenario( "login" ).whenScenarioStateIs( "logged in" )
+                .willReturn( aResponse().withStatus( 200 ).withBody( aaaLogin( "token-2", refreshTimeoutSeconds ) ) ) );
+    }
+
+    private void stubQuery( String token, int status, int delayMillis )
+    {
+        apic.stubFor( get( urlEqualTo( QUERY ) ).withCookie( "APIC-cookie", equalTo( token ) )
+                .willReturn( aResponse().withStatus( status ).withFixedDelay( delayMillis )
+                        .withBody( status == 200 ? "{\"totalCount\":\"1\",\"imdata\":[]}" : "{\"totalCount\":\"0\",\"imdata\":[]}" ) ) );
+    }
+
+    private static String aaaLogin( String token, int refreshTimeoutSeconds )
+    {
+        return "{\"totalCount\":\"1\",\"imdata\":[{\"aaaLogin\":{\"attributes\":{\"token\":\"" + token
+                + "\",\"refreshTimeoutSeconds\":\"" + refreshTimeoutSeconds + "\"}}}]}";
+    }
+
+}
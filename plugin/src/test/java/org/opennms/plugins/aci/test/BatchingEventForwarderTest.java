@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+import org.opennms.plugins.aci.BatchingEventForwarder;
+
+/**
+ * @author metispro
+ *
+ */
+public class BatchingEventForwarderTest
+{
+
+    private final RecordingForwarder delegate = new RecordingForwarder();
+
+    private BatchingEventForwarder forwarder;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        delegate.proceed.countDown();
+        if ( forwarder != null )
+            forwarder.close( 5000 );
+    }
+
+    @Test
+    public void testFlushOnSize() throws Exception
+    {
+        // Linger far longer than the test, only a full batch goes out
+        forwarder = new BatchingEventForwarder( "test", delegate, 10, 60000, 100 );
+        for ( int i = 0; i < 25; i++ )
+            forwarder.sendAsync( event( i ) );
+
+        waitFor( 20 );
+        assertEquals( 20, delegate.events.size() );
+        assertEquals( 2, forwarder.getBatchCount() );
+        assertEquals( 10, forwarder.getLargestBatch() );
+
+        // The rest lingers until asked for
+        forwarder.flush();
+        assertEquals( 25, delegate.events.size() );
+        assertEquals( 3, forwarder.getBatchCount() );
+    }
+
+    @Test
+    public void testFlushOnLinger() throws Exception
+    {
+        forwarder = new BatchingEventForwarder( "test", delegate, 100, 50, 100 );
+        for ( int i = 0; i < 3; i++ )
+            forwarder.sendAsync( event( i ) );
+
+        waitFor( 3 );
+        assertEquals( 1, forwarder.getBatchCount() );
+        assertEquals( 3, forwarder.getEventCount() );
+    }
+
+    @Test
+    public void testOrderAndFlusherThread() throws Exception
+    {
+        forwarder = new BatchingEventForwarder( "test", delegate, 7, 5, 50 );
+        for ( int i = 0; i < 1000; i++ )
+            forwarder.sendAsync( event( i ) );
+        forwarder.sendSync( event( 1000 ) );
+
+        assertEquals( 1001, delegate.events.size() );
+        for ( int i = 0; i <= 1000; i++ )
+            assertEquals( "uei.opennms.org/test/" + i, delegate.events.get( i ) );
+        assertEquals( Collections.singletonList( "aci-event-batcher-test" ), delegate.threadNames() );
+        assertEquals( 1, delegate.syncCount );
+    }
+
+    @Test
+    public void testFlushWaitsForDelivery() throws Exception
+    {
+        forwarder = new BatchingEventForwarder( "test", delegate, 100, 60000, 100 );
+        for ( int i = 0; i < 42; i++ )
+            forwarder.sendAsync( event( i ) );
+
+        forwarder.flush();
+        assertEquals( 42, delegate.events.size() );
+        assertEquals( 0, forwarder.getQueued() );
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception
+    {
+        delegate.blocking = true;
+        forwarder = new BatchingEventForwarder( "test", delegate, 1, 0, 2 );
+
+        // One event held by the flusher, two queued behind it
+        forwarder.sendAsync( event( 0 ) );
+        assertTrue( delegate.started.await( 5, TimeUnit.SECONDS ) );
+        forwarder.sendAsync( event( 1 ) );
+        forwarder.sendAsync( event( 2 ) );
+
+        Thread producer = new Thread( () -> forwarder.sendAsync( event( 3 ) ) );
+        producer.start();
+        producer.join( 200 );
+        assertTrue( producer.isAlive() );
+        assertEquals( 1, forwarder.getBlockedCount() );
+
+        delegate.proceed.countDown();
+        producer.join( 5000 );
+        forwarder.flush();
+        assertEquals( 4, delegate.events.size() );
+        assertEquals( "uei.opennms.org/test/3", delegate.events.get( 3 ) );
+    }
+
+    @Test
+    public void testDrainOnClose() throws Exception
+    {
+        forwarder = new BatchingEventForwarder( "test", delegate, 10, 60000, 100 );
+        for ( int i = 0; i < 15; i++ )
+            forwarder.sendAsync( event( i ) );
+        forwarder.close( 5000 );
+
+        assertEquals( 15, delegate.events.size() );
+
+        // Handed over directly once the flusher is gone
+        forwarder.sendAsync( event( 15 ) );
+        forwarder.flush();
+        assertEquals( 16, delegate.events.size() );
+    }
+
+    private void waitFor( int count ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( delegate.events.size() < count && System.currentTimeMillis() < deadline )
+            Thread.sleep( 10 );
+        // Give a wrongly scheduled batch the chance to show up
+        Thread.sleep( 100 );
+    }
+
+    private static InMemoryEvent event( int i )
+    {
+        return ImmutableInMemoryEvent.newBuilder()
+                .setUei( "uei.opennms.org/test/" + i )
+                .setSource( "test" )
+                .build();
+    }
+
+    private static class RecordingForwarder implements EventForwarder
+    {
+        private final List<String> events = Collections.synchronizedList( new ArrayList<>() );
+        private final List<String> threads = Collections.synchronizedList( new ArrayList<>() );
+        private final CountDownLatch started = new CountDownLatch( 1 );
+        private final CountDownLatch proceed = new CountDownLatch( 1 );
+        private volatile boolean blocking = false;
+        private volatile int syncCount = 0;
+
+        @Override
+        public void sendAsync( InMemoryEvent event )
+        {
+            if ( blocking )
+            {
+                started.countDown();
+                try
+                {
+                    proceed.await( 10, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            record( event );
+        }
+
+        @Override
+        public void sendSync( InMemoryEvent event )
+        {
+            syncCount++;
+            record( event );
+        }
+
+        private void record( InMemoryEvent event )
+        {
+            events.add( event.getUei() );
+            threads.add( Thread.currentThread().getName() );
+        }
+
+        private List<String> threadNames()
+        {
+            List<String> names = new ArrayList<>();
+            synchronized ( threads )
+            {
+                for ( String name : threads )
+                    if ( !names.contains( name ) )
+                        names.add( name );
+            }
+            return names;
+        }
+    }
+
+}
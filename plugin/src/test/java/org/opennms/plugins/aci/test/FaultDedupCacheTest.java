@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.FaultDedupCache;
+import org.opennms.plugins.aci.client.FaultRecord;
+
+/**
+ * @author metispro
+ *
+ */
+public class FaultDedupCacheTest
+{
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testKeyOf()
+    {
+        FaultRecord raised = record( "topology/pod-1/node-101/sys/phys-[eth1/1]", "F0532", "raised", "major", "101" );
+        FaultRecord soaking = record( "topology/pod-1/node-101/sys/phys-[eth1/1]", "F0532", "soaking", "major", "101" );
+
+        assertEquals( FaultDedupCache.keyOf( "LS6", raised ), FaultDedupCache.keyOf( "LS6", record( "topology/pod-1/node-101/sys/phys-[eth1/1]", "F0532", "raised", "major", "101" ) ) );
+        assertNotEquals( FaultDedupCache.keyOf( "LS6", raised ), FaultDedupCache.keyOf( "LS6", soaking ) );
+        assertNotEquals( FaultDedupCache.keyOf( "LS6", raised ), FaultDedupCache.keyOf( "LS7", raised ) );
+    }
+
+    @Test
+    public void testDuplicateWithinTtl()
+    {
+        FaultDedupCache cache = new FaultDedupCache( 1000, 60000 );
+        FaultRecord raised = record( "topology/pod-1/node-101", "F0532", "raised", "major", "101" );
+        long key = FaultDedupCache.keyOf( "LS6", raised );
+
+        assertFalse( cache.isDuplicate( key, 0 ) );
+        assertTrue( cache.isDuplicate( key, 1000 ) );
+        // Survives one rotation
+        assertFalse( cache.isDuplicate( key + 1, 60000 ) );
+        assertTrue( cache.isDuplicate( key, 70000 ) );
+        // Gone after the second
+        assertFalse( cache.isDuplicate( key + 2, 120000 ) );
+        assertFalse( cache.isDuplicate( key, 120001 ) );
+
+        assertEquals( 2, cache.getHitCount() );
+        assertEquals( 2, cache.getRotationCount() );
+    }
+
+    @Test
+    public void testSizeBound()
+    {
+        FaultDedupCache cache = new FaultDedupCache( 100, Long.MAX_VALUE / 4 );
+        for ( long key = 1; key <= 1000; key++ )
+            assertFalse( cache.isDuplicate( key, 0 ) );
+
+        assertTrue( cache.size() <= 100 );
+        // The most recent keys are still known, the oldest are evicted
+        assertTrue( cache.isDuplicate( 1000, 0 ) );
+        assertFalse( cache.isDuplicate( 1, 0 ) );
+    }
+
+    private static FaultRecord record( String affected, String code, String lc, String severity, String id )
+    {
+        FaultRecord record = new FaultRecord( FaultRecord.FAULT_RECORD );
+        record.put( "affected", affected );
+        record.put( "code", code );
+        record.put( "lc", lc );
+        record.put( "severity", severity );
+        record.put( "id", id );
+        return record;
+    }
+
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.FlapDamper;
+import org.opennms.plugins.aci.client.FaultRecord;
+
+/**
+ * @author metispro
+ *
+ */
+public class FlapDamperTest
+{
+
+    private static final long HALF_LIFE = 60000;
+
+    private static final String DN = "topology/pod-1/node-101/sys/phys-[eth1/1]";
+
+    private final List<FaultRecord> stable = new ArrayList<>();
+
+    private final List<Integer> flapping = new ArrayList<>();
+
+    private FlapDamper damper;
+
+    private FlapDamper.Listener listener;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        damper = new FlapDamper( 1000, 3000, 750, 12000, HALF_LIFE, 300000 );
+        listener = new FlapDamper.Listener()
+        {
+            @Override
+            public void onFlapping( FaultRecord last, int transitions )
+            {
+                flapping.add( transitions );
+            }
+
+            @Override
+            public void onStable( FaultRecord last )
+            {
+                stable.add( last );
+            }
+        };
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testSuppressAfterRepeatedTransitions()
+    {
+        assertTrue( damper.admit( record( "major" ), 0 ) );
+        assertTrue( damper.admit( record( "cleared" ), 0 ) );
+        assertTrue( damper.admit( record( "major" ), 0 ) );
+        // The same state again is no transition
+        assertTrue( damper.admit( record( "major" ), 0 ) );
+        assertEquals( 0, damper.getSuppressedCount() );
+
+        // Third transition reaches the suppress limit
+        assertFalse( damper.admit( record( "cleared" ), 0 ) );
+        assertFalse( damper.admit( record( "major" ), 0 ) );
+        assertEquals( 1, damper.getSuppressedCount() );
+        assertEquals( 2, damper.getSuppressedRecordCount() );
+
+        // Other faults are not affected
+        FaultRecord other = record( "major" );
+        other.put( "code", "F0546" );
+        assertTrue( damper.admit( other, 0 ) );
+    }
+
+    @Test
+    public void testPenaltyDecays()
+    {
+        damper.admit( record( "major" ), 0 );
+        damper.admit( record( "cleared" ), 0 );
+        damper.admit( record( "major" ), 0 );
+
+        // Two transitions halved twice are far from the limit, two more reach it
+        assertTrue( damper.admit( record( "cleared" ), 2 * HALF_LIFE ) );
+        assertTrue( damper.admit( record( "major" ), 2 * HALF_LIFE ) );
+        assertFalse( damper.admit( record( "cleared" ), 2 * HALF_LIFE ) );
+    }
+
+    @Test
+    public void testSummaryAndRelease()
+    {
+        FaultRecord last = suppress();
+
+        // Reported right away, then once per interval while it keeps flapping
+        damper.tick( 0, listener );
+        assertEquals( 1, flapping.size() );
+        assertEquals( Integer.valueOf( 3 ), flapping.get( 0 ) );
+        damper.tick( 1000, listener );
+        assertEquals( 1, flapping.size() );
+        assertEquals( 1, damper.getSummaryCount() );
+
+        // 3000 halved twice is 750, still not below the reuse limit
+        damper.tick( 2 * HALF_LIFE, listener );
+        assertTrue( stable.isEmpty() );
+        assertEquals( 1, damper.getSuppressedCount() );
+
+        damper.tick( 2 * HALF_LIFE + 1000, listener );
+        assertEquals( 1, stable.size() );
+        assertSame( last, stable.get( 0 ) );
+        assertEquals( 0, damper.getSuppressedCount() );
+        assertTrue( damper.admit( record( "cleared" ), 2 * HALF_LIFE + 1000 ) );
+    }
+
+    @Test
+    public void testNewerRecordDuringRelease()
+    {
+        FaultRecord last = suppress();
+        final FaultRecord newer = record( "major" );
+        final List<Boolean> admitted = new ArrayList<>();
+
+        damper.tick( 3 * HALF_LIFE, new FlapDamper.Listener()
+        {
+            @Override
+            public void onFlapping( FaultRecord record, int transitions )
+            {
+            }
+
+            @Override
+            public void onStable( FaultRecord record )
+            {
+                stable.add( record );
+                // A new record arrives while the final state is being reported
+                if ( stable.size() == 1 )
+                    admitted.add( damper.admit( newer, 3 * HALF_LIFE ) );
+            }
+        } );
+
+        // Held back and reported after the stale state, not overtaken by it
+        assertEquals( 1, admitted.size() );
+        assertFalse( admitted.get( 0 ) );
+        assertEquals( 2, stable.size() );
+        assertSame( last, stable.get( 0 ) );
+        assertSame( newer, stable.get( 1 ) );
+        assertEquals( 0, damper.getSuppressedCount() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidLimits()
+    {
+        new FlapDamper( 1000, 750, 3000, 12000, HALF_LIFE, 300000 );
+    }
+
+    /**
+     * Flap the fault until it is suppressed.
+     *
+     * @return the last record held back
+     */
+    private FaultRecord suppress()
+    {
+        damper.admit( record( "major" ), 0 );
+        damper.admit( record( "cleared" ), 0 );
+        damper.admit( record( "major" ), 0 );
+        FaultRecord last = record( "cleared" );
+        assertFalse( damper.admit( last, 0 ) );
+        return last;
+    }
+
+    private static FaultRecord record( String severity )
+    {
+        FaultRecord record = new FaultRecord( FaultRecord.FAULT_RECORD );
+        record.put( "affected", DN );
+        record.put( "code", "F0532" );
+        record.put( "severity", severity );
+        return record;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.plugins.aci.client.InFlightLimiter;
+
+/**
+ * @author metispro
+ *
+ */
+public class InFlightLimiterTest
+{
+
+    private static final int LIMIT = 4;
+
+    private final List<CompletableFuture<Integer>> started = new ArrayList<>();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    private InFlightLimiter limiter;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        limiter = new InFlightLimiter( LIMIT );
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+    }
+
+    @Test
+    public void testNeverExceedsLimit() throws Exception
+    {
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for ( int i = 0; i < 20; i++ )
+            results.add( limiter.submit( this::startTask ) );
+
+        assertEquals( LIMIT, limiter.getInFlight() );
+        assertEquals( 16, limiter.getQueued() );
+        assertEquals( LIMIT, started.size() );
+
+        // Completing one request starts exactly one queued request
+        for ( int i = 0; i < 20; i++ )
+        {
+            running.decrementAndGet();
+            started.get( i ).complete( i );
+            assertTrue( limiter.getInFlight() <= LIMIT );
+        }
+
+        for ( int i = 0; i < 20; i++ )
+            assertEquals( Integer.valueOf( i ), results.get( i ).get( 1, TimeUnit.SECONDS ) );
+        assertEquals( LIMIT, maxRunning.get() );
+        assertEquals( LIMIT, limiter.getPeakInFlight() );
+        assertEquals( 0, limiter.getInFlight() );
+        assertEquals( 0, limiter.getQueued() );
+        assertEquals( 20, limiter.getCompleted() );
+    }
+
+    @Test
+    public void testConcurrentSubmitters() throws Exception
+    {
+        // Requests complete on other threads while more are submitted
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for ( int i = 0; i < 500; i++ )
+        {
+            final int value = i;
+            results.add( limiter.submit( () -> {
+                enter();
+                return CompletableFuture.supplyAsync( () -> {
+                    running.decrementAndGet();
+                    return value;
+                } );
+            } ) );
+        }
+        for ( int i = 0; i < 500; i++ )
+            assertEquals( Integer.valueOf( i ), results.get( i ).get( 10, TimeUnit.SECONDS ) );
+
+        assertTrue( maxRunning.get() <= LIMIT );
+        assertTrue( limiter.getPeakInFlight() <= LIMIT );
+        assertEquals( 0, limiter.getInFlight() );
+        assertEquals( 0, limiter.getQueued() );
+        assertEquals( 500, limiter.getCompleted() );
+    }
+
+    @Test
+    public void testFailuresReleaseSlots() throws Exception
+    {
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for ( int i = 0; i < 12; i++ )
+            results.add( limiter.submit( this::startTask ) );
+        // A task that throws instead of returning a future
+        results.add( limiter.submit( () -> {
+            throw new IllegalStateException( "broken" );
+        } ) );
+
+        for ( int i = 0; i < 12; i++ )
+        {
+            CompletableFuture<Integer> request = started.get( i );
+            if ( i % 3 == 0 )
+                request.completeExceptionally( new IllegalStateException( "failed" ) );
+            else if ( i % 3 == 1 )
+                request.cancel( false );
+            else
+                request.complete( i );
+        }
+
+        for ( int i = 0; i < 12; i++ )
+        {
+            CompletableFuture<Integer> result = results.get( i );
+            assertTrue( result.isDone() );
+            assertEquals( i % 3 != 2, result.isCompletedExceptionally() );
+        }
+        assertTrue( results.get( 12 ).isCompletedExceptionally() );
+        assertEquals( 0, limiter.getInFlight() );
+        assertEquals( 0, limiter.getQueued() );
+        assertEquals( 13, limiter.getCompleted() );
+    }
+
+    @Test
+    public void testCancelledResultStillReleases() throws Exception
+    {
+        CompletableFuture<Integer> first = limiter.submit( this::startTask );
+        for ( int i = 1; i < LIMIT + 2; i++ )
+            limiter.submit( this::startTask );
+        assertEquals( 2, limiter.getQueued() );
+
+        // The caller gives up, the slot is only free once the request ends
+        first.cancel( false );
+        assertEquals( LIMIT, limiter.getInFlight() );
+        started.get( 0 ).completeExceptionally( new CancellationException() );
+        assertEquals( LIMIT, limiter.getInFlight() );
+        assertEquals( 1, limiter.getQueued() );
+
+        for ( int i = 1; i < started.size(); i++ )
+            started.get( i ).complete( i );
+        assertEquals( LIMIT + 2, started.size() );
+        assertEquals( 0, limiter.getInFlight() );
+        assertEquals( 0, limiter.getQueued() );
+    }
+
+    @Test
+    public void testTryAcquire() throws Exception
+    {
+        for ( int i = 0; i < LIMIT - 1; i++ )
+            limiter.submit( this::startTask );
+        assertTrue( limiter.tryAcquire() );
+        assertFalse( limiter.tryAcquire() );
+
+        // Queued requests go first
+        limiter.submit( this::startTask );
+        started.get( 0 ).complete( 0 );
+        assertEquals( LIMIT, limiter.getInFlight() );
+        assertFalse( limiter.tryAcquire() );
+
+        limiter.release();
+        assertEquals( LIMIT - 1, limiter.getInFlight() );
+        assertTrue( limiter.tryAcquire() );
+        limiter.release();
+        for ( int i = 1; i < started.size(); i++ )
+            started.get( i ).complete( i );
+        assertEquals( 0, limiter.getInFlight() );
+    }
+
+    private CompletableFuture<Integer> startTask()
+    {
+        enter();
+        CompletableFuture<Integer> request = new CompletableFuture<>();
+        started.add( request );
+        return request;
+    }
+
+    private void enter()
+    {
+        maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+    }
+
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.aci.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.integration.api.v1.dao.NodeDao;
+import org.opennms.integration.api.v1.model.IpInterface;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.aci.IpAddressIndex;
+
+/**
+ * @author metispro
+ *
+ */
+public class IpAddressIndexTest
+{
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    private IpAddressIndex index;
+
+    /**
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        NodeDao nodeDao = mock( NodeDao.class );
+        when( nodeDao.getNodes() ).thenAnswer( invocation -> new ArrayList<>( nodes ) );
+        // Never stale during a test, rebuilds only happen when asked for
+        index = new IpAddressIndex( nodeDao, Long.MAX_VALUE / 2 );
+    }
+
+    /**
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        index.close();
+    }
+
+    @Test
+    public void testLookupIpv4AndIpv6() throws Exception
+    {
+        nodes.add( node( 1, "10.0.0.1", "10.0.0.2" ) );
+        nodes.add( node( 2, "2001:db8::1", "fe80::1" ) );
+        nodes.add( node( 3, "192.168.1.1", "2001:db8::2" ) );
+
+        assertEquals( Integer.valueOf( 1 ), index.lookup( address( "10.0.0.1" ) ) );
+        assertEquals( Integer.valueOf( 1 ), index.lookup( address( "10.0.0.2" ) ) );
+        assertEquals( Integer.valueOf( 2 ), index.lookup( address( "2001:db8:0:0:0:0:0:1" ) ) );
+        assertEquals( Integer.valueOf( 2 ), index.lookup( address( "fe80::1" ) ) );
+        assertEquals( Integer.valueOf( 3 ), index.lookup( address( "192.168.1.1" ) ) );
+        assertEquals( Integer.valueOf( 3 ), index.lookup( address( "2001:db8::2" ) ) );
+        assertNull( index.lookup( address( "10.0.0.3" ) ) );
+        assertNull( index.lookup( address( "2001:db8::3" ) ) );
+
+        assertEquals( 6, index.size() );
+        assertEquals( 1, index.getRebuildCount() );
+        assertEquals( 2, index.getMissCount() );
+    }
+
+    @Test
+    public void testManyAddresses() throws Exception
+    {
+        for ( int i = 1; i <= 2000; i++ )
+            nodes.add( node( i, "10.1." + ( i >> 8 ) + "." + ( i & 0xff ), "2001:db8::" + Integer.toHexString( i ) ) );
+
+        for ( int i = 1; i <= 2000; i++ )
+        {
+            assertEquals( Integer.valueOf( i ), index.lookup( address( "10.1." + ( i >> 8 ) + "." + ( i & 0xff ) ) ) );
+            assertEquals( Integer.valueOf( i ), index.lookup( address( "2001:db8::" + Integer.toHexString( i ) ) ) );
+        }
+        assertEquals( 4000, index.size() );
+    }
+
+    @Test
+    public void testOverlayUntilRebuild() throws Exception
+    {
+        nodes.add( node( 1, "10.0.0.1" ) );
+        index.rebuild();
+
+        // Changes show up right away, before the node table is read again
+        index.put( address( "10.0.0.9" ), 2 );
+        index.put( address( "10.0.0.1" ), 3 );
+        assertEquals( Integer.valueOf( 2 ), index.lookup( address( "10.0.0.9" ) ) );
+        assertEquals( Integer.valueOf( 3 ), index.lookup( address( "10.0.0.1" ) ) );
+        index.remove( address( "10.0.0.1" ) );
+        assertNull( index.lookup( address( "10.0.0.1" ) ) );
+
+        // The rebuild replaces the overlay with what the node table says
+        index.rebuild();
+        assertEquals( Integer.valueOf( 1 ), index.lookup( address( "10.0.0.1" ) ) );
+        assertNull( index.lookup( address( "10.0.0.9" ) ) );
+
+        nodes.add( node( 2, "10.0.0.9" ) );
+        index.rebuild();
+        assertEquals( Integer.valueOf( 2 ), index.lookup( address( "10.0.0.9" ) ) );
+        assertEquals( 3, index.getRebuildCount() );
+    }
+
+    @Test
+    public void testRemoveNode() throws Exception
+    {
+        nodes.add( node( 1, "10.0.0.1", "2001:db8::1" ) );
+        nodes.add( node( 2, "10.0.0.2" ) );
+        index.rebuild();
+        index.put( address( "10.0.0.3" ), 1 );
+
+        List<InetAddress> removed = index.removeNode( 1 );
+        assertEquals( 3, removed.size() );
+        assertTrue( removed.containsAll( Arrays.asList( address( "10.0.0.1" ), address( "2001:db8::1" ), address( "10.0.0.3" ) ) ) );
+
+        assertNull( index.lookup( address( "10.0.0.1" ) ) );
+        assertNull( index.lookup( address( "2001:db8::1" ) ) );
+        assertNull( index.lookup( address( "10.0.0.3" ) ) );
+        assertEquals( Integer.valueOf( 2 ), index.lookup( address( "10.0.0.2" ) ) );
+    }
+
+    @Test
+    public void testFirstNodeKeepsAddress() throws Exception
+    {
+        nodes.add( node( 1, "10.0.0.1" ) );
+        nodes.add( node( 2, "10.0.0.1" ) );
+
+        assertEquals( Integer.valueOf( 1 ), index.lookup( address( "10.0.0.1" ) ) );
+        assertEquals( 1, index.size() );
+    }
+
+    @Test
+    public void testEventDrivenNeverRebuildsOnMiss() throws Exception
+    {
+        nodes.add( node( 1, "10.0.0.1" ) );
+        CountDownLatch release = new CountDownLatch( 1 );
+        NodeDao nodeDao = mock( NodeDao.class );
+        when( nodeDao.getNodes() ).thenAnswer( invocation -> {
+            release.await( 10, TimeUnit.SECONDS );
+            return new ArrayList<>( nodes );
+        } );
+        // Always stale, a polled index would rebuild on every lookup
+        IpAddressIndex eventDriven = new IpAddressIndex( nodeDao, 0, true );
+        try
+        {
+            // The first lookup starts the build but does not wait for it
+            eventDriven.put( address( "10.0.0.2" ), 2 );
+            assertNull( eventDriven.lookup( address( "10.0.0.1" ) ) );
+            assertEquals( Integer.valueOf( 2 ), eventDriven.lookup( address( "10.0.0.2" ) ) );
+            assertFalse( eventDriven.isReady() );
+
+            release.countDown();
+            for ( int i = 0; i < 100 && !eventDriven.isReady(); i++ )
+                Thread.sleep( 50 );
+            assertTrue( eventDriven.isReady() );
+
+            assertEquals( Integer.valueOf( 1 ), eventDriven.lookup( address( "10.0.0.1" ) ) );
+            for ( int i = 0; i < 10; i++ )
+                assertNull( eventDriven.lookup( address( "10.0.0.9" ) ) );
+            Thread.sleep( 100 );
+            assertEquals( 1, eventDriven.getRebuildCount() );
+            verify( nodeDao, times( 1 ) ).getNodes();
+        }
+        finally
+        {
+            eventDriven.close();
+        }
+    }
+
+    private static Node node( int id, String... addresses ) throws Exception
+    {
+        List<IpInterface> ipInterfaces = new ArrayList<>();
+        for ( String address : addresses )
+        {
+            IpInterface ipInterface = mock( IpInterface.class );
+            when( ipInterface.getIpAddress() ).thenReturn( address( address ) );
+            ipInterfaces.add( ipInterface );
+        }
+        Node node = mock( Node.class );
+        when( node.getId() ).thenReturn( id );
+        when( node.getIpInterfaces() ).thenReturn( ipInterfaces );
+        return node;
+    }
+
+    private static InetAddress address( String address ) throws Exception
+    {
+        return InetAddress.getByName( address );
+    }
+
+}